@@ -1,6 +1,8 @@
 package com.gloomy;
 
+import com.gloomy.server.ReceiveMode;
 import com.gloomy.server.Server;
+import com.gloomy.server.ServerConfig;
 
 import java.net.*;
 
@@ -8,7 +10,9 @@ class Entry
 {
     public static void main(String[] args)
     {
-        Server mainServer = Server.Create(3223);
+        Server mainServer = Server.Create(3223, new ServerConfig()
+                .setReceiveMode(ReceiveMode.CHANNEL)
+                .setVirtualThreads(Boolean.getBoolean("gloomy.virtualThreads")));
         mainServer.start();
 
         DatagramSocket socket = null;
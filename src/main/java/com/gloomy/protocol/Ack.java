@@ -0,0 +1,37 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A client acknowledging the reliable messages it has received, sent when it has nothing else to piggyback the
+ * acknowledgement on
+ */
+public final class Ack extends ClientPacket
+{
+    private final int sessionId;
+
+    private final int clientId;
+
+    public Ack(int sessionId, int clientId, int ack, long ackBits)
+    {
+        this.sessionId = sessionId;
+        this.clientId  = clientId;
+        setAck(ack, ackBits);
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.ACK;
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+
+    public int getClientId()
+    {
+        return clientId;
+    }
+}
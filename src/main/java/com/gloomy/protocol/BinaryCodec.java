@@ -0,0 +1,477 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encodes and decodes the compact binary protocol. Every binary packet starts with a two byte header, the protocol
+ * VERSION followed by the PacketType, and is followed by the fields of that packet type in a fixed order:
+ *
+ *   JOIN_SUCCESS        host:u8 cId:u8 sId:i32 team:u8
+ *   ALL_CLIENT_INFO     v:i32 count:u8 { entry }
+ *   CLIENT_ADDED        v:i32 entry
+ *   CLIENT_UPDATED      v:i32 entry
+ *   CLIENT_DISCONNECTED v:i32 cId:u8
+ *   YOURE_DISCONNECTED  -
+ *   HOST_CHANGE         newHost:u8 oldHost:u8
+ *   GAME_READY          -
+ *   MATCH_REQUEST       name:str [rating:u16]
+ *   CLIENT_DISCONNECT   sId:i32 cId:u8
+ *   GAME_START          sId:i32
+ *   ROSTER_RESYNC       sId:i32 cId:u8 [ack:u16 ackBits:i32]
+ *   ACK                 sId:i32 cId:u8 ack:u16 ackBits:i32
+ *   HEARTBEAT           sId:i32 cId:u8 [ack:u16 ackBits:i32]
+ *   REDIRECT            sId:i32 ip:addr port:u16
+ *   LIST_SESSIONS       minFree:u8 page:u16
+ *   SESSION_LIST        page:u16 pages:u16 count:u8 { listing }
+ *   RELAY_ASSIGNED      port:u16 ticket:i64
+ *   GET_ROSTER_PAGE     sId:i32 cId:u8 page:u8
+ *   ROSTER_PAGE         v:i32 page:u8 pages:u8 total:u16 count:u8 { entry }
+ *
+ * where a roster entry is cId:u8 team:u8 h:u8 port:u16 ip:addr name:str and v is the sessions roster version. A
+ * listing is sId:i32 n:u8 max:u8 host:str, a session with n of max clients hosted by the named client.
+ * Fields in brackets are optional, a client adds them to acknowledge reliable messages while it is sending anyway.
+ *
+ * Integers are big endian, str is a u8 byte length followed by utf-8 bytes and addr is a u8 byte length followed by
+ * the raw 4 or 16 address bytes. Json packets always begin with '{' so a server can accept both formats on one port.
+ */
+public final class BinaryCodec
+{
+    /** First byte of every binary packet, bumped whenever a layout changes **/
+    public static final byte VERSION = 2;
+
+    public static final int HEADER_SIZE = 2;
+
+    /** Offset of sId in every inbound packet that carries one **/
+    public static final int SESSION_ID_OFFSET = HEADER_SIZE;
+
+    /** Offset of cId in every inbound packet that names a client **/
+    public static final int CLIENT_ID_OFFSET = SESSION_ID_OFFSET + 4;
+
+    /** Offset of ack in ACK, and in ROSTER_RESYNC and HEARTBEAT when the client piggybacks one **/
+    public static final int ACK_OFFSET = CLIENT_ID_OFFSET + 1;
+
+    /** Offset of ackBits, right after ack **/
+    public static final int ACK_BITS_OFFSET = ACK_OFFSET + 2;
+
+    /** Offset of the name in MATCH_REQUEST **/
+    public static final int NAME_OFFSET = HEADER_SIZE;
+
+    /** Offset of the page in GET_ROSTER_PAGE **/
+    public static final int ROSTER_PAGE_OFFSET = CLIENT_ID_OFFSET + 1;
+
+    /** Offsets of minFree and page in LIST_SESSIONS **/
+    public static final int MIN_FREE_OFFSET = HEADER_SIZE;
+    public static final int PAGE_OFFSET     = MIN_FREE_OFFSET + 1;
+
+    /** Most elements a list field can hold, its count is a single byte **/
+    public static final int MAX_LIST_SIZE = 255;
+
+    private static final int MAX_STRING_BYTES = 255;
+
+    private static final Field[][] LAYOUTS = new Field[128][];
+
+    private static final Field[] ROSTER_ENTRY =
+            fields(u8("cId"), u8("team"), bool("h"), u16("port"), address("ip"), string("name"));
+
+    /** Offsets of team and h in an encoded roster entry, the fields that change while a client is in a session **/
+    public static final int ROSTER_ENTRY_TEAM_OFFSET = 1;
+    public static final int ROSTER_ENTRY_HOST_OFFSET = 2;
+
+    private static final Field[] SESSION_LISTING = fields(i32("sId"), u8("n"), u8("max"), string("host"));
+
+    static
+    {
+        LAYOUTS[PacketType.JOIN_SUCCESS]        = fields(bool("host"), u8("cId"), i32("sId"), u8("team"));
+        LAYOUTS[PacketType.ALL_CLIENT_INFO]     = fields(i32("v"), list("clients", ROSTER_ENTRY));
+        LAYOUTS[PacketType.CLIENT_ADDED]        = withVersion(ROSTER_ENTRY);
+        LAYOUTS[PacketType.CLIENT_UPDATED]      = withVersion(ROSTER_ENTRY);
+        LAYOUTS[PacketType.CLIENT_DISCONNECTED] = fields(i32("v"), u8("cId"));
+        LAYOUTS[PacketType.YOURE_DISCONNECTED]  = fields();
+        LAYOUTS[PacketType.HOST_CHANGE]         = fields(u8("newHost"), u8("oldHost"));
+        LAYOUTS[PacketType.GAME_READY]          = fields();
+        LAYOUTS[PacketType.MATCH_REQUEST]       = fields(string("name"));
+        LAYOUTS[PacketType.CLIENT_DISCONNECT]   = fields(i32("sId"), u8("cId"));
+        LAYOUTS[PacketType.GAME_START]          = fields(i32("sId"));
+        LAYOUTS[PacketType.ROSTER_RESYNC]       = fields(i32("sId"), u8("cId"));
+        LAYOUTS[PacketType.ACK]                 = fields(i32("sId"), u8("cId"), u16("ack"), i32("ackBits"));
+        LAYOUTS[PacketType.HEARTBEAT]           = fields(i32("sId"), u8("cId"));
+        LAYOUTS[PacketType.REDIRECT]            = fields(i32("sId"), address("ip"), u16("port"));
+        LAYOUTS[PacketType.LIST_SESSIONS]       = fields(u8("minFree"), u16("page"));
+        LAYOUTS[PacketType.SESSION_LIST]        = fields(u16("page"), u16("pages"), list("sessions", SESSION_LISTING));
+        LAYOUTS[PacketType.RELAY_ASSIGNED]      = fields(u16("port"), i64("ticket"));
+        LAYOUTS[PacketType.GET_ROSTER_PAGE]     = fields(i32("sId"), u8("cId"), u8("page"));
+        LAYOUTS[PacketType.ROSTER_PAGE]         = fields(i32("v"), u8("page"), u8("pages"), u16("total"),
+                                                         list("clients", ROSTER_ENTRY));
+    }
+
+    private static final ThreadLocal<ByteBuffer> ENCODE_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(65507));
+
+    private static final ThreadLocal<byte[]> STRING_BUFFER = ThreadLocal.withInitial(() -> new byte[MAX_STRING_BYTES]);
+
+    private BinaryCodec() {}
+
+    /**
+     * @param data A received packet, positioned at its first byte
+     * @return true if the packet is in the binary format
+     */
+    public static boolean isBinary(ByteBuffer data)
+    {
+        return data.remaining() >= HEADER_SIZE && data.get(data.position()) == VERSION;
+    }
+
+    /**
+     * @param data A binary packet, positioned at its first byte
+     * @return The PacketType of the packet
+     */
+    public static int getPacketType(ByteBuffer data)
+    {
+        return data.get(data.position() + 1);
+    }
+
+    /**
+     * Read the session id of a packet without validating the rest of it, used to route packets to a worker
+     * @param data A binary packet, positioned at its first byte
+     * @return The session id, or -1 if the packet type does not carry one or the packet is too short
+     */
+    public static int peekSessionId(ByteBuffer data)
+    {
+        if (!carriesSessionId(getPacketType(data)) || data.remaining() < SESSION_ID_OFFSET + 4)
+            return -1;
+
+        return readInt(data, SESSION_ID_OFFSET);
+    }
+
+    /**
+     * @param type A packet type a client sends
+     * @return true if packets of the type belong to a session and are routed by their sId, in either wire format
+     */
+    public static boolean carriesSessionId(int type)
+    {
+        return type == PacketType.CLIENT_DISCONNECT || type == PacketType.GAME_START || type == PacketType.ROSTER_RESYNC
+                || type == PacketType.ACK || type == PacketType.HEARTBEAT || type == PacketType.GET_ROSTER_PAGE;
+    }
+
+    /**
+     * Check that a binary packet is long enough to hold every field of its layout. Does not allocate.
+     * @param data A binary packet, positioned at its first byte
+     * @return true if every field can be read, false if the type is unknown or the packet is truncated
+     */
+    public static boolean isComplete(ByteBuffer data)
+    {
+        int type = getPacketType(data);
+        if (type < 0 || type >= LAYOUTS.length || LAYOUTS[type] == null)
+            return false;
+
+        int end = measure(data, data.position() + HEADER_SIZE, data.limit(), LAYOUTS[type]);
+        return end >= 0 && end <= data.limit();
+    }
+
+    /**
+     * Read a big endian int at an offset from the start of the packet
+     * @param data A binary packet, positioned at its first byte
+     * @param offset The offset of the field
+     * @return The field value
+     */
+    public static int readInt(ByteBuffer data, int offset)
+    {
+        return data.getInt(data.position() + offset);
+    }
+
+    /**
+     * @param data A complete binary packet of a type that can carry an acknowledgement, positioned at its first byte
+     * @return true if the client added ack and ackBits to it
+     */
+    public static boolean hasAck(ByteBuffer data)
+    {
+        return data.remaining() >= ACK_BITS_OFFSET + 4;
+    }
+
+    /**
+     * @param data A complete MATCH_REQUEST, positioned at its first byte
+     * @return The rating the client added after its name, or 0 if it sent none
+     */
+    public static int readRating(ByteBuffer data)
+    {
+        int offset = NAME_OFFSET + 1 + readUnsignedByte(data, NAME_OFFSET);
+        return data.remaining() >= offset + 2 ? readUnsignedShort(data, offset) : 0;
+    }
+
+    /**
+     * Read a big endian unsigned short at an offset from the start of the packet
+     * @param data A binary packet, positioned at its first byte
+     * @param offset The offset of the field
+     * @return The field value
+     */
+    public static int readUnsignedShort(ByteBuffer data, int offset)
+    {
+        return data.getShort(data.position() + offset) & 0xFFFF;
+    }
+
+    /**
+     * Read an unsigned byte at an offset from the start of the packet
+     * @param data A binary packet, positioned at its first byte
+     * @param offset The offset of the field
+     * @return The field value
+     */
+    public static int readUnsignedByte(ByteBuffer data, int offset)
+    {
+        return data.get(data.position() + offset) & 0xFF;
+    }
+
+    /**
+     * Read a length prefixed string at an offset from the start of the packet
+     * @param data A binary packet, positioned at its first byte
+     * @param offset The offset of the length byte
+     * @return The decoded string
+     */
+    public static String readString(ByteBuffer data, int offset)
+    {
+        int start  = data.position() + offset;
+        int length = data.get(start) & 0xFF;
+        byte[] bytes = STRING_BUFFER.get();
+
+        for (int i = 0; i < length; i++)
+            bytes[i] = data.get(start + 1 + i);
+
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Encode a message into the binary format
+     * @param messageType The PacketType of the message
+     * @param values The message fields keyed the same way as the json format
+     * @return The encoded packet
+     */
+    public static byte[] encode(int messageType, Map<String, Object> values)
+    {
+        if (messageType < 0 || messageType >= LAYOUTS.length || LAYOUTS[messageType] == null)
+            throw new IllegalArgumentException("No binary layout for packet type " + messageType);
+
+        ByteBuffer out = ENCODE_BUFFER.get();
+        out.clear();
+        out.put(VERSION);
+        out.put((byte) messageType);
+
+        try {
+            write(out, LAYOUTS[messageType], values);
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("Packet type " + messageType + " is too large to encode", e);
+        }
+
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void write(ByteBuffer out, Field[] layout, Map<String, Object> values)
+    {
+        for (Field field : layout)
+        {
+            Object value = values.get(field.key);
+            switch (field.type)
+            {
+                case BOOL:   out.put((byte) (Boolean.TRUE.equals(value) ? 1 : 0)); break;
+                case U8:     out.put((byte) number(value)); break;
+                case U16:    out.putShort((short) number(value)); break;
+                case I32:    out.putInt(number(value)); break;
+                case I64:    out.putLong(value == null ? 0 : ((Number) value).longValue()); break;
+                case STRING: putBytes(out, value == null ? new byte[0] : value.toString().getBytes(StandardCharsets.UTF_8)); break;
+                case ADDRESS: putBytes(out, addressBytes(value)); break;
+                case LIST:
+                {
+                    List<Object> elements = (List<Object>) value;
+                    int count = elements == null ? 0 : elements.size();
+                    if (count > MAX_LIST_SIZE)
+                        throw new IllegalArgumentException("Too many elements in " + field.key);
+
+                    out.put((byte) count);
+                    for (int i = 0; i < count; i++)
+                    {
+                        Object element = elements.get(i);
+                        if (element instanceof EncodedRosterEntry)
+                            out.put(((EncodedRosterEntry) element).getBinary());
+                        else
+                            write(out, field.elementLayout, (Map<String, Object>) element);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode one roster entry the way it is written into a roster list, to be cached and copied into many messages
+     * @param entry The clients info map
+     * @return The encoded entry
+     */
+    public static byte[] encodeRosterEntry(Map<String, Object> entry)
+    {
+        ByteBuffer out = ENCODE_BUFFER.get();
+        out.clear();
+        write(out, ROSTER_ENTRY, entry);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    /**
+     * Size in bytes of one roster entry as it is written into ALL_CLIENT_INFO, used to pack rosters into datagrams
+     * @param entry The clients info map
+     * @return The encoded size of the entry
+     */
+    public static int rosterEntrySize(Map<String, Object> entry)
+    {
+        return size(ROSTER_ENTRY, entry);
+    }
+
+    /**
+     * Size in bytes of one session listing as it is written into SESSION_LIST, used to pack listings into pages
+     * @param listing The listing
+     * @return The encoded size of the listing
+     */
+    public static int sessionListingSize(Map<String, Object> listing)
+    {
+        return size(SESSION_LISTING, listing);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int size(Field[] layout, Map<String, Object> values)
+    {
+        int size = 0;
+        for (Field field : layout)
+        {
+            Object value = values.get(field.key);
+            switch (field.type)
+            {
+                case BOOL:
+                case U8:      size += 1; break;
+                case U16:     size += 2; break;
+                case I32:     size += 4; break;
+                case I64:     size += 8; break;
+                case STRING:  size += 1 + Math.min(MAX_STRING_BYTES, value == null ? 0 : value.toString().getBytes(StandardCharsets.UTF_8).length); break;
+                case ADDRESS: size += 1 + Math.min(MAX_STRING_BYTES, addressBytes(value).length); break;
+                case LIST:
+                {
+                    size += 1;
+                    List<Object> elements = (List<Object>) value;
+                    if (elements != null)
+                        for (Object element : elements)
+                            size += element instanceof EncodedRosterEntry ? ((EncodedRosterEntry) element).getBinary().length
+                                                                          : size(field.elementLayout, (Map<String, Object>) element);
+                    break;
+                }
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Walk a layout over a packet without reading values
+     * @return The offset just past the last field, or -1 if a length prefix runs past the limit
+     */
+    private static int measure(ByteBuffer data, int offset, int limit, Field[] layout)
+    {
+        for (Field field : layout)
+        {
+            if (offset < 0 || offset > limit)
+                return -1;
+
+            switch (field.type)
+            {
+                case BOOL:
+                case U8:  offset += 1; break;
+                case U16: offset += 2; break;
+                case I32: offset += 4; break;
+                case I64: offset += 8; break;
+                case STRING:
+                case ADDRESS:
+                    if (offset >= limit)
+                        return -1;
+                    offset += 1 + (data.get(offset) & 0xFF);
+                    break;
+                case LIST:
+                {
+                    if (offset >= limit)
+                        return -1;
+                    int count = data.get(offset++) & 0xFF;
+                    for (int i = 0; i < count && offset >= 0; i++)
+                        offset = measure(data, offset, limit, field.elementLayout);
+                    break;
+                }
+            }
+        }
+
+        return offset;
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes)
+    {
+        int length = Math.min(bytes.length, MAX_STRING_BYTES);
+        out.put((byte) length);
+        out.put(bytes, 0, length);
+    }
+
+    private static int number(Object value)
+    {
+        if (value instanceof Boolean)
+            return (Boolean) value ? 1 : 0;
+        return value == null ? 0 : ((Number) value).intValue();
+    }
+
+    private static byte[] addressBytes(Object value)
+    {
+        if (value instanceof InetAddress)
+            return ((InetAddress) value).getAddress();
+
+        try {
+            return value == null ? new byte[0] : InetAddress.getByName(value.toString()).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Not an ip address: " + value, e);
+        }
+    }
+
+    private enum FieldType { BOOL, U8, U16, I32, I64, STRING, ADDRESS, LIST }
+
+    /**
+     * A single entry of a packet layout
+     */
+    private static final class Field
+    {
+        final String key;
+        final FieldType type;
+        final Field[] elementLayout;
+
+        Field(String key, FieldType type, Field[] elementLayout)
+        {
+            this.key = key;
+            this.type = type;
+            this.elementLayout = elementLayout;
+        }
+    }
+
+    private static Field[] fields(Field... fields) { return fields; }
+
+    private static Field[] withVersion(Field[] layout)
+    {
+        Field[] versioned = new Field[layout.length + 1];
+        versioned[0] = i32("v");
+        System.arraycopy(layout, 0, versioned, 1, layout.length);
+        return versioned;
+    }
+
+    private static Field bool(String key)          { return new Field(key, FieldType.BOOL, null); }
+    private static Field u8(String key)            { return new Field(key, FieldType.U8, null); }
+    private static Field u16(String key)           { return new Field(key, FieldType.U16, null); }
+    private static Field i32(String key)           { return new Field(key, FieldType.I32, null); }
+    private static Field i64(String key)           { return new Field(key, FieldType.I64, null); }
+    private static Field string(String key)        { return new Field(key, FieldType.STRING, null); }
+    private static Field address(String key)       { return new Field(key, FieldType.ADDRESS, null); }
+    private static Field list(String key, Field... elementLayout) { return new Field(key, FieldType.LIST, elementLayout); }
+}
@@ -0,0 +1,107 @@
+package com.gloomy.protocol;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * A Reader that decodes utf-8 straight out of a ByteBuffer using absolute reads, so neither the buffers position
+ * nor its contents are changed and no intermediate String or byte[] is made. Malformed sequences are read as U+FFFD.
+ */
+class ByteBufferReader extends Reader
+{
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final ByteBuffer data;
+
+    private final int limit;
+
+    private int position;
+
+    /** Low surrogate left over when a supplementary character did not fit in the callers buffer **/
+    private int pendingLowSurrogate = -1;
+
+    /**
+     * @param data The buffer to read
+     * @param start The index to start reading at
+     * @param limit The index to stop reading at
+     */
+    ByteBufferReader(ByteBuffer data, int start, int limit)
+    {
+        this.data     = data;
+        this.limit    = limit;
+        this.position = start;
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length)
+    {
+        if (length == 0)
+            return 0;
+        if (position >= limit && pendingLowSurrogate < 0)
+            return -1;
+
+        int count = 0;
+
+        if (pendingLowSurrogate >= 0)
+        {
+            buffer[offset + count++] = (char) pendingLowSurrogate;
+            pendingLowSurrogate = -1;
+        }
+
+        while (count < length && position < limit)
+        {
+            int b = data.get(position) & 0xFF;
+
+            if (b < 0x80)  // Json control packets are almost always plain ascii
+            {
+                buffer[offset + count++] = (char) b;
+                position++;
+                continue;
+            }
+
+            int extra;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0)      { extra = 1; codePoint = b & 0x1F; }
+            else if ((b & 0xF0) == 0xE0) { extra = 2; codePoint = b & 0x0F; }
+            else if ((b & 0xF8) == 0xF0) { extra = 3; codePoint = b & 0x07; }
+            else                         { extra = 0; codePoint = REPLACEMENT; }
+
+            if (position + extra >= limit && extra > 0)
+            {
+                codePoint = REPLACEMENT;  // Truncated sequence
+                extra = limit - position - 1;
+            }
+            else
+            {
+                for (int i = 1; i <= extra; i++)
+                {
+                    int next = data.get(position + i) & 0xFF;
+                    if ((next & 0xC0) != 0x80)
+                    {
+                        codePoint = REPLACEMENT;
+                        extra = i - 1;
+                        break;
+                    }
+                    codePoint = (codePoint << 6) | (next & 0x3F);
+                }
+            }
+            position += 1 + extra;
+
+            if (Character.isSupplementaryCodePoint(codePoint))
+            {
+                buffer[offset + count++] = Character.highSurrogate(codePoint);
+                if (count < length)
+                    buffer[offset + count++] = Character.lowSurrogate(codePoint);
+                else
+                    pendingLowSurrogate = Character.lowSurrogate(codePoint);
+            }
+            else
+                buffer[offset + count++] = (char) codePoint;
+        }
+
+        return count;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,35 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A client leaving the session it is in
+ */
+public final class ClientDisconnect extends ClientPacket
+{
+    private final int sessionId;
+
+    private final int clientId;
+
+    public ClientDisconnect(int sessionId, int clientId)
+    {
+        this.sessionId = sessionId;
+        this.clientId  = clientId;
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.CLIENT_DISCONNECT;
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+
+    public int getClientId()
+    {
+        return clientId;
+    }
+}
@@ -0,0 +1,48 @@
+package com.gloomy.protocol;
+
+/**
+ * A decoded packet sent to the server by a client. Each packet type the server accepts has its own subclass
+ * holding its fields as primitives.
+ *
+ * Packets that name a client may also carry an acknowledgement of the reliable messages that client has received,
+ * so a client that is sending anyway does not need a separate ACK packet.
+ */
+public abstract class ClientPacket
+{
+    private int ack = -1;
+
+    private long ackBits;
+
+    /**
+     * @return The PacketType of this packet
+     */
+    public abstract int getType();
+
+    /**
+     * @param ack The newest reliable sequence number the client has received
+     * @param ackBits Bit n set means sequence number ack - 1 - n was received too
+     */
+    void setAck(int ack, long ackBits)
+    {
+        this.ack     = ack;
+        this.ackBits = ackBits;
+    }
+
+    /**
+     * @return true if the packet carried an acknowledgement
+     */
+    public boolean hasAck()
+    {
+        return ack >= 0;
+    }
+
+    public int getAck()
+    {
+        return ack;
+    }
+
+    public long getAckBits()
+    {
+        return ackBits;
+    }
+}
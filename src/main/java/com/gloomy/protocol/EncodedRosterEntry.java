@@ -0,0 +1,55 @@
+package com.gloomy.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A clients roster entry already encoded in every wire format. Placed in the clients list of a roster message it is
+ * copied into the message as it is, so a client that is listed in many messages is only ever encoded once
+ */
+public final class EncodedRosterEntry
+{
+    private final String json;
+
+    private final int jsonSize;
+
+    private final byte[] binary;
+
+    /**
+     * @param json The entry as a json object
+     * @param binary The entry as BinaryCodec writes it into a roster list
+     */
+    public EncodedRosterEntry(String json, byte[] binary)
+    {
+        this(json, json.getBytes(StandardCharsets.UTF_8).length, binary);
+    }
+
+    /**
+     * @param json The entry as a json object
+     * @param jsonSize The size of the json entry in utf-8 bytes, for callers that know it without encoding the json
+     * @param binary The entry as BinaryCodec writes it into a roster list
+     */
+    public EncodedRosterEntry(String json, int jsonSize, byte[] binary)
+    {
+        this.json     = json;
+        this.jsonSize = jsonSize;
+        this.binary   = binary;
+    }
+
+    public String getJson()
+    {
+        return json;
+    }
+
+    /**
+     * @return The size of the json entry in utf-8 bytes
+     */
+    public int getJsonSize()
+    {
+        return jsonSize;
+    }
+
+    public byte[] getBinary()
+    {
+        return binary;
+    }
+}
@@ -0,0 +1,27 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A host starting the game of its session
+ */
+public final class GameStart extends ClientPacket
+{
+    private final int sessionId;
+
+    public GameStart(int sessionId)
+    {
+        this.sessionId = sessionId;
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.GAME_START;
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+}
@@ -0,0 +1,36 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A client telling the server it is still there while it has nothing else to send. Clients that go quiet for longer
+ * than the servers client timeout are disconnected
+ */
+public final class Heartbeat extends ClientPacket
+{
+    private final int sessionId;
+
+    private final int clientId;
+
+    public Heartbeat(int sessionId, int clientId)
+    {
+        this.sessionId = sessionId;
+        this.clientId  = clientId;
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.HEARTBEAT;
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+
+    public int getClientId()
+    {
+        return clientId;
+    }
+}
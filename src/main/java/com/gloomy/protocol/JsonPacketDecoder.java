@@ -0,0 +1,240 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+import com.gloomy.server.PacketWorkflowHandler;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes json packets from clients straight into typed ClientPackets using a streaming reader. Fields are read as
+ * primitives as they stream past, nothing is put into a Map and the packet is never turned into a String. The
+ * decoder holds no state between calls so one instance can be shared by every thread.
+ */
+public final class JsonPacketDecoder
+{
+    private static final String CLIENT_NAME_KEY = "name";
+
+    private static final String SESSION_ID_KEY  = "sId";
+
+    private static final String CLIENT_ID_KEY   = "cId";
+
+    private static final String ACK_KEY         = "ack";
+
+    private static final String ACK_BITS_KEY    = "ackBits";
+
+    private static final String MIN_FREE_KEY    = "minFree";
+
+    private static final String PAGE_KEY        = "page";
+
+    private static final String RATING_KEY      = "rating";
+
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    private static final byte[] TYPE_KEY_BYTES = PacketWorkflowHandler.TYPE_OF_PACKET_KEY.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] SESSION_ID_KEY_BYTES = SESSION_ID_KEY.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Decode a json packet
+     * @param data The received packet, positioned at its first byte. The buffers position is not changed
+     * @return The decoded packet, or null if the packet is malformed, truncated, missing a field its type needs or
+     *         is of a type clients do not send
+     */
+    public ClientPacket decode(ByteBuffer data)
+    {
+        int start = data.position();
+        int end   = data.limit();
+
+        // Cheap framing check before any parsing. Old clients pad packets with zeros so trailing nulls are ignored
+        while (start < end && isPadding(data.get(start)))
+            start++;
+        while (end > start && (isPadding(data.get(end - 1)) || data.get(end - 1) == 0))
+            end--;
+        if (end - start < 2 || data.get(start) != '{' || data.get(end - 1) != '}')
+            return null;
+
+        int packetType = MISSING;
+        int sessionId  = MISSING;
+        int clientId   = MISSING;
+        String name    = null;
+        int ack        = MISSING;
+        long ackBits   = 0;
+        int minFree    = 0;
+        int page       = 0;
+        int rating     = 0;
+
+        try {
+            JsonReader reader = new JsonReader(new ByteBufferReader(data, start, end));
+            reader.setLenient(true);  // Older clients send single quoted keys and strings
+            reader.beginObject();
+
+            while (reader.hasNext())
+            {
+                String key = reader.nextName();
+
+                if (PacketWorkflowHandler.TYPE_OF_PACKET_KEY.equals(key))
+                    packetType = reader.nextInt();
+                else if (SESSION_ID_KEY.equals(key))
+                    sessionId = reader.nextInt();
+                else if (CLIENT_ID_KEY.equals(key))
+                    clientId = reader.nextInt();
+                else if (ACK_KEY.equals(key))
+                    ack = reader.nextInt() & 0xFFFF;
+                else if (ACK_BITS_KEY.equals(key))
+                    ackBits = reader.nextLong() & 0xFFFFFFFFL;
+                else if (MIN_FREE_KEY.equals(key))
+                    minFree = reader.nextInt();
+                else if (PAGE_KEY.equals(key))
+                    page = reader.nextInt();
+                else if (RATING_KEY.equals(key))
+                    rating = reader.nextInt();
+                else if (CLIENT_NAME_KEY.equals(key) && reader.peek() == JsonToken.STRING)
+                    name = reader.nextString();
+                else
+                    reader.skipValue();
+            }
+
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException | JsonParseException e) {
+            return null;
+        }
+
+        ClientPacket packet = createPacket(packetType, sessionId, clientId, name, ack, ackBits, minFree, page, rating);
+
+        if (packet != null && ack != MISSING && !packet.hasAck())
+            packet.setAck(ack, ackBits);
+        return packet;
+    }
+
+    private static ClientPacket createPacket(int packetType, int sessionId, int clientId, String name, int ack, long ackBits,
+                                             int minFree, int page, int rating)
+    {
+        switch (packetType)
+        {
+            case PacketType.MATCH_REQUEST:
+                return name == null ? null : new MatchRequest(name, rating);
+            case PacketType.CLIENT_DISCONNECT:
+                return sessionId == MISSING || clientId == MISSING ? null : new ClientDisconnect(sessionId, clientId);
+            case PacketType.GAME_START:
+                return sessionId == MISSING ? null : new GameStart(sessionId);
+            case PacketType.ROSTER_RESYNC:
+                return sessionId == MISSING || clientId == MISSING ? null : new RosterResync(sessionId, clientId);
+            case PacketType.ACK:
+                return sessionId == MISSING || clientId == MISSING || ack == MISSING ? null
+                        : new Ack(sessionId, clientId, ack, ackBits);
+            case PacketType.HEARTBEAT:
+                return sessionId == MISSING || clientId == MISSING ? null : new Heartbeat(sessionId, clientId);
+            case PacketType.LIST_SESSIONS:
+                return new ListSessions(minFree, page);
+            case PacketType.GET_ROSTER_PAGE:
+                return sessionId == MISSING || clientId == MISSING ? null : new RosterPageRequest(sessionId, clientId, page);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Find the session id of a json packet with a byte scan instead of a parse, used to route packets to a worker
+     * before they are decoded. The scan reads the top level keys of the packet, the packet type and the sId, skipping
+     * over strings whole so a key quoted inside a name is never taken for one. Like BinaryCodec.peekSessionId only
+     * the packet types that carry a session id have one, so a match request or a session list query is never routed
+     * by an sId it happens to carry. Keys given twice count as the last one given, as they do when decoding.
+     * @param data The received packet, positioned at its first byte. The buffers position is not changed
+     * @return The session id, or -1 if the packet has none
+     */
+    public int peekSessionId(ByteBuffer data)
+    {
+        int end        = data.limit();
+        int depth      = 0;
+        int packetType = MISSING;
+        int sessionId  = MISSING;
+
+        for (int i = data.position(); i < end; i++)
+        {
+            byte b = data.get(i);
+            if (b == '{' || b == '[')
+                depth++;
+            else if (b == '}' || b == ']')
+                depth--;
+            if (b != '"' && b != '\'')
+                continue;
+
+            int keyStart = i + 1;
+            int keyEnd   = endOfString(data, i, end);
+            if (keyEnd < 0)
+                return -1;
+            i = keyEnd;
+
+            int j = keyEnd + 1;
+            while (j < end && isPadding(data.get(j)))
+                j++;
+            if (depth != 1 || j >= end || data.get(j) != ':')
+                continue;   // A value, or a key of a nested object
+            j++;
+            while (j < end && isPadding(data.get(j)))
+                j++;
+
+            if (isKey(data, keyStart, keyEnd, TYPE_KEY_BYTES))
+                packetType = readUnsigned(data, j, end);
+            else if (isKey(data, keyStart, keyEnd, SESSION_ID_KEY_BYTES))
+                sessionId = readUnsigned(data, j, end);
+        }
+
+        return packetType != MISSING && sessionId != MISSING && BinaryCodec.carriesSessionId(packetType) ? sessionId : -1;
+    }
+
+    /**
+     * @param start The index of the quote that opens the string
+     * @return The index of the quote that closes it, or -1 if the packet ends first
+     */
+    private static int endOfString(ByteBuffer data, int start, int end)
+    {
+        byte quote = data.get(start);
+        for (int i = start + 1; i < end; i++)
+        {
+            byte b = data.get(i);
+            if (b == '\\')
+                i++;
+            else if (b == quote)
+                return i;
+        }
+        return -1;
+    }
+
+    private static boolean isKey(ByteBuffer data, int start, int end, byte[] key)
+    {
+        if (end - start != key.length)
+            return false;
+        for (int i = 0; i < key.length; i++)
+            if (data.get(start + i) != key[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @return The unsigned integer at start, or MISSING if there is none or it does not fit an int
+     */
+    private static int readUnsigned(ByteBuffer data, int start, int end)
+    {
+        long value = 0;
+        int digits = 0;
+        for (int i = start; i < end && digits < 10; i++, digits++)
+        {
+            byte b = data.get(i);
+            if (b < '0' || b > '9')
+                break;
+            value = value * 10 + (b - '0');
+        }
+        return digits == 0 || value > Integer.MAX_VALUE ? MISSING : (int) value;
+    }
+
+    private static boolean isPadding(byte b)
+    {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
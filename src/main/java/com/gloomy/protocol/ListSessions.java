@@ -0,0 +1,38 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A client browsing the lobbies of the server one page at a time
+ */
+public final class ListSessions extends ClientPacket
+{
+    private final int minFreeSlots;
+
+    private final int page;
+
+    public ListSessions(int minFreeSlots, int page)
+    {
+        this.minFreeSlots = minFreeSlots;
+        this.page         = page;
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.LIST_SESSIONS;
+    }
+
+    /**
+     * @return Only sessions with at least this many free slots are listed, 0 lists full sessions too
+     */
+    public int getMinFreeSlots()
+    {
+        return minFreeSlots;
+    }
+
+    public int getPage()
+    {
+        return page;
+    }
+}
@@ -0,0 +1,44 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A client asking to join an open session, or host one if none are open
+ */
+public final class MatchRequest extends ClientPacket
+{
+    private final String name;
+
+    private final int rating;
+
+    public MatchRequest(String name)
+    {
+        this(name, 0);
+    }
+
+    /**
+     * @param name The name the client asked for
+     * @param rating The skill rating of the client, 0 if it has none
+     */
+    public MatchRequest(String name, int rating)
+    {
+        this.name   = name;
+        this.rating = rating;
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.MATCH_REQUEST;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getRating()
+    {
+        return rating;
+    }
+}
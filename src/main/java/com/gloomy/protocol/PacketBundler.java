@@ -0,0 +1,123 @@
+package com.gloomy.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs several packets for the same client into as few datagrams as the MTU allows. Json packets are bundled as a
+ * json array of the packets. Binary packets are bundled in a framed envelope:
+ *
+ *   marker:u8 { length:u16 packet }
+ *
+ * where the frames run to the end of the datagram. Neither envelope can be mistaken for a single packet or a
+ * fragment, so a client tells them apart by the first byte. A packet that ends up alone in a datagram is sent as it
+ * is, and fragments are never bundled, they are sent in order between the bundles around them.
+ */
+public final class PacketBundler
+{
+    /** First byte of a binary bundle **/
+    public static final byte BUNDLE_MARKER = (byte) 0xB1;
+
+    /** Bytes in front of every packet in a binary bundle **/
+    public static final int FRAME_HEADER_SIZE = 2;
+
+    private PacketBundler() {}
+
+    /**
+     * Pack packets into datagrams
+     * @param packets The datagrams queued for one client, in the order they should arrive
+     * @param format The format the client speaks
+     * @param mtu The largest datagram that may be produced
+     * @return The datagrams to send, in order
+     */
+    public static List<byte[]> bundle(List<byte[]> packets, WireFormat format, int mtu)
+    {
+        List<byte[]> datagrams = new ArrayList<>(packets.size());
+        int overhead = format == WireFormat.JSON ? 2 : 1;       // [ and ] or the marker
+        int perPacket = format == WireFormat.JSON ? 1 : FRAME_HEADER_SIZE;     // The comma or the frame length
+
+        int first = 0;      // First packet of the bundle being built
+        int size  = overhead;
+
+        for (int i = 0; i < packets.size(); i++)
+        {
+            byte[] packet = packets.get(i);
+
+            if (!canBundle(packet, format, mtu - overhead - perPacket))
+            {
+                flush(packets, first, i, format, size, datagrams);
+                datagrams.add(packet);
+                first = i + 1;
+                size  = overhead;
+                continue;
+            }
+
+            int added = packet.length + (format == WireFormat.BINARY || i > first ? perPacket : 0);
+            if (size + added > mtu)
+            {
+                flush(packets, first, i, format, size, datagrams);
+                first = i;
+                size  = overhead;
+                added = packet.length + (format == WireFormat.BINARY ? perPacket : 0);
+            }
+
+            size += added;
+        }
+
+        flush(packets, first, packets.size(), format, size, datagrams);
+        return datagrams;
+    }
+
+    /**
+     * @return true if the packet can share a datagram, fragments and packets too big to share are sent on their own
+     */
+    private static boolean canBundle(byte[] packet, WireFormat format, int room)
+    {
+        if (packet.length == 0 || packet.length > room || packet.length > 0xFFFF)
+            return false;
+
+        return format == WireFormat.JSON ? packet[0] == '{' : packet[0] == BinaryCodec.VERSION;
+    }
+
+    /**
+     * Write the packets from first up to end as one datagram
+     * @param size The size of the bundle, used when there is more than one packet
+     */
+    private static void flush(List<byte[]> packets, int first, int end, WireFormat format, int size, List<byte[]> datagrams)
+    {
+        if (end - first == 0)
+            return;
+
+        if (end - first == 1)
+        {
+            datagrams.add(packets.get(first));
+            return;
+        }
+
+        ByteBuffer bundle = ByteBuffer.allocate(size);
+
+        if (format == WireFormat.JSON)
+        {
+            bundle.put((byte) '[');
+            for (int i = first; i < end; i++)
+            {
+                if (i > first)
+                    bundle.put((byte) ',');
+                bundle.put(packets.get(i));
+            }
+            bundle.put((byte) ']');
+        }
+        else
+        {
+            bundle.put(BUNDLE_MARKER);
+            for (int i = first; i < end; i++)
+            {
+                bundle.putShort((short) packets.get(i).length);
+                bundle.put(packets.get(i));
+            }
+        }
+
+        datagrams.add(bundle.array());
+    }
+}
@@ -0,0 +1,99 @@
+package com.gloomy.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits packets that are bigger than the MTU into fragments. A fragment is a normal datagram that starts with a
+ * five byte header in place of the packets own first bytes:
+ *
+ *   marker:u8 messageId:u16 index:u8 count:u8 payload
+ *
+ * The marker can never start a json or binary packet, so fragments share the port with both formats. Every fragment
+ * of one packet has the same messageId, and joining the payloads in index order gives back the original packet.
+ * Packets that fit in the MTU are sent as they are, with no header.
+ */
+public final class PacketFragmenter
+{
+    /** First byte of every fragment **/
+    public static final byte FRAGMENT_MARKER = (byte) 0xF1;
+
+    public static final int HEADER_SIZE = 5;
+
+    public static final int MESSAGE_ID_OFFSET = 1;
+
+    public static final int INDEX_OFFSET = 3;
+
+    public static final int COUNT_OFFSET = 4;
+
+    /** Index and count are a single byte each **/
+    public static final int MAX_FRAGMENTS = 255;
+
+    private final int mtu;
+
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    /**
+     * @param mtu The largest datagram in bytes that should be sent, fragment header included
+     */
+    public PacketFragmenter(int mtu)
+    {
+        if (mtu <= HEADER_SIZE)
+            throw new IllegalArgumentException("An mtu of " + mtu + " has no room for a fragment payload");
+
+        this.mtu = mtu;
+    }
+
+    /**
+     * @param data A received datagram, positioned at its first byte
+     * @return true if the datagram is a fragment of a bigger packet
+     */
+    public static boolean isFragment(ByteBuffer data)
+    {
+        return data.remaining() > HEADER_SIZE && data.get(data.position()) == FRAGMENT_MARKER;
+    }
+
+    /**
+     * Split a packet into datagrams that each fit the MTU
+     * @param packet The encoded packet
+     * @return The packet itself if it already fits, otherwise its fragments in order
+     */
+    public byte[][] split(byte[] packet)
+    {
+        if (packet.length <= mtu)
+            return new byte[][] { packet };
+
+        int payloadSize = mtu - HEADER_SIZE;
+        int count = (packet.length + payloadSize - 1) / payloadSize;
+        if (count > MAX_FRAGMENTS)
+            throw new IllegalArgumentException("Packet of " + packet.length + " bytes needs more than "
+                    + MAX_FRAGMENTS + " fragments at an mtu of " + mtu);
+
+        int messageId = nextMessageId.getAndIncrement() & 0xFFFF;
+        byte[][] fragments = new byte[count][];
+
+        for (int i = 0; i < count; i++)
+        {
+            int offset = i * payloadSize;
+            int length = Math.min(payloadSize, packet.length - offset);
+
+            ByteBuffer fragment = ByteBuffer.allocate(HEADER_SIZE + length);
+            fragment.put(FRAGMENT_MARKER);
+            fragment.putShort((short) messageId);
+            fragment.put((byte) i);
+            fragment.put((byte) count);
+            fragment.put(packet, offset, length);
+            fragments[i] = fragment.array();
+        }
+
+        return fragments;
+    }
+
+    /**
+     * @return The largest datagram in bytes this fragmenter produces
+     */
+    public int getMtu()
+    {
+        return mtu;
+    }
+}
@@ -0,0 +1,43 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A client in a large lobby asking for one page of the roster of its session
+ */
+public final class RosterPageRequest extends ClientPacket
+{
+    private final int sessionId;
+
+    private final int clientId;
+
+    private final int page;
+
+    public RosterPageRequest(int sessionId, int clientId, int page)
+    {
+        this.sessionId = sessionId;
+        this.clientId  = clientId;
+        this.page      = page;
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.GET_ROSTER_PAGE;
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+
+    public int getClientId()
+    {
+        return clientId;
+    }
+
+    public int getPage()
+    {
+        return page;
+    }
+}
@@ -0,0 +1,35 @@
+package com.gloomy.protocol;
+
+import com.gloomy.server.PacketType;
+
+/**
+ * A client that missed a roster delta asking for the full roster of its session again
+ */
+public final class RosterResync extends ClientPacket
+{
+    private final int sessionId;
+
+    private final int clientId;
+
+    public RosterResync(int sessionId, int clientId)
+    {
+        this.sessionId = sessionId;
+        this.clientId  = clientId;
+    }
+
+    @Override
+    public int getType()
+    {
+        return PacketType.ROSTER_RESYNC;
+    }
+
+    public int getSessionId()
+    {
+        return sessionId;
+    }
+
+    public int getClientId()
+    {
+        return clientId;
+    }
+}
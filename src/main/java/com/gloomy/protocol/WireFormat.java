@@ -0,0 +1,13 @@
+package com.gloomy.protocol;
+
+/**
+ * The encodings a client can speak. A client is answered in the same format that its match request arrived in.
+ */
+public enum WireFormat
+{
+    /** Original text protocol, a json object keyed by PacketWorkflowHandler.TYPE_OF_PACKET_KEY */
+    JSON,
+
+    /** Compact fixed layout protocol described by BinaryCodec */
+    BINARY
+}
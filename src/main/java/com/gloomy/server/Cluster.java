@@ -0,0 +1,440 @@
+package com.gloomy.server;
+
+import com.gloomy.protocol.WireFormat;
+import com.gloomy.utils.ConsistentHashRing;
+import com.gloomy.utils.GloomyNetMessageBuilder;
+import com.gloomy.utils.ServerThreads;
+import org.pmw.tinylog.Logger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Splits sessions between several master server nodes that run side by side without a coordinator. Every node is
+ * configured with the same list of node addresses and its own place in it, and from that alone each node works out
+ * which session ids it owns.
+ *
+ * Session ids are grouped into blocks of BLOCK_SIZE and blocks are placed on the nodes with a ConsistentHashRing, so
+ * a node only ever creates sessions in its own blocks and any node can tell from a session id where the session
+ * lives. Each node hands out its ids from a local id space that maps onto its blocks in order, which keeps its id
+ * allocator dense.
+ *
+ * Nodes tell each other how many open slots and free session ids they have every clusterStatusIntervalMillis.
+ * Matchmaking forwards a request it can not place in a local session to the peer with the most open slots, so
+ * lobbies across the cluster fill up before new ones are created, and to a peer with free ids when it runs out of
+ * its own. A packet for a session owned by another node is forwarded to that node and the client is sent a REDIRECT
+ * naming the node to talk to from then on.
+ *
+ * Nodes talk to each other on their normal port. Their packets start with CLUSTER_MARKER and are only accepted from
+ * configured node addresses:
+ *
+ *   STATUS   marker kind:u8 node:u16 openSlots:i32 freeIds:i32
+ *   FORWARD  marker kind:u8 ip:addr port:u16 packet
+ *
+ * A forwarded packet is handled as if it had come straight from the client endpoint it names, and is never
+ * forwarded again. Replies go from the node that handled it straight to the client.
+ */
+public class Cluster
+{
+    /** First byte of every packet sent between nodes **/
+    public static final byte CLUSTER_MARKER = (byte) 0xC1;
+
+    /** Session ids are placed on nodes in blocks of this many **/
+    public static final int BLOCK_SIZE = 256;
+
+    private static final int BLOCK_BITS = 8;
+
+    /** Points per node on the ring, enough to spread blocks within a few percent of even **/
+    private static final int VIRTUAL_NODES = 128;
+
+    private static final byte STATUS  = 0;
+    private static final byte FORWARD = 1;
+
+    /** marker kind node openSlots freeIds **/
+    private static final int STATUS_SIZE = 1 + 1 + 2 + 4 + 4;
+
+    private final Server owningServer;
+
+    private final List<InetSocketAddress> nodes;
+
+    private final int self;
+
+    private final int maxSessions;
+
+    /** Local block n is global block ownedBlocks[n], null when there is only one node **/
+    private final int[] ownedBlocks;
+
+    /** Global block n is local block localBlocks[n], or -1 if another node owns it **/
+    private final int[] localBlocks;
+
+    private final ConsistentHashRing ring;
+
+    private final int localCapacity;
+
+    /** Last open slots and free ids reported by each node **/
+    private final AtomicIntegerArray openSlots;
+    private final AtomicIntegerArray freeIds;
+
+    private volatile Thread statusThread;
+
+    /**
+     * @param owningServer The server this node runs. Its config names the nodes, this nodes index and the id space
+     */
+    public Cluster(Server owningServer)
+    {
+        ServerConfig config = owningServer.getConfig();
+        this.owningServer   = owningServer;
+        this.nodes          = config.getClusterNodes();
+        this.self           = config.getClusterSelf();
+        this.maxSessions    = config.getMaxSessions();
+        this.openSlots      = new AtomicIntegerArray(Math.max(1, nodes.size()));
+        this.freeIds        = new AtomicIntegerArray(Math.max(1, nodes.size()));
+
+        if (!isClustered())
+        {
+            ring          = null;
+            ownedBlocks   = null;
+            localBlocks   = null;
+            localCapacity = maxSessions;
+            return;
+        }
+
+        if (self < 0 || self >= nodes.size())
+            throw new IllegalArgumentException("This node is not one of the " + nodes.size() + " cluster nodes: " + self);
+
+        ring = new ConsistentHashRing(nodes.size(), VIRTUAL_NODES);
+
+        int blocks  = (maxSessions + BLOCK_SIZE - 1) >>> BLOCK_BITS;
+        localBlocks = new int[blocks];
+        int[] owned = new int[blocks];
+        int count   = 0;
+        for (int block = 0; block < blocks; block++)
+        {
+            if (ring.nodeFor(block) == self)
+            {
+                localBlocks[block] = count;
+                owned[count++] = block;
+            }
+            else
+                localBlocks[block] = -1;
+        }
+
+        ownedBlocks = Arrays.copyOf(owned, count);
+        if (count == 0)
+            throw new IllegalArgumentException("Node " + self + " owns no session ids, raise maxSessions");
+
+        // The last block is cut short by maxSessions, and only ever sits at the end of the local id space
+        boolean ownsLastBlock = count > 0 && ownedBlocks[count - 1] == blocks - 1;
+        localCapacity = count * BLOCK_SIZE - (ownsLastBlock ? blocks * BLOCK_SIZE - maxSessions : 0);
+    }
+
+    /**
+     * @return true if there is more than one node
+     */
+    public boolean isClustered()
+    {
+        return nodes.size() > 1;
+    }
+
+    /**
+     * @param sessionId A session id
+     * @return The index of the node that owns the session
+     */
+    public int ownerOf(int sessionId)
+    {
+        if (!isClustered())
+            return 0;
+
+        return ring.nodeFor(sessionId >>> BLOCK_BITS);
+    }
+
+    /**
+     * @param sessionId A session id
+     * @return true if the session would live on this node. Ids no node can own count as local
+     */
+    public boolean isLocal(int sessionId)
+    {
+        return !isClustered() || sessionId < 0 || sessionId >= maxSessions || toLocalId(sessionId) >= 0;
+    }
+
+    /**
+     * @return The amount of session ids this node owns
+     */
+    public int getLocalCapacity()
+    {
+        return localCapacity;
+    }
+
+    /**
+     * @param localId An id from 0 to getLocalCapacity - 1
+     * @return The session id it stands for
+     */
+    public int toSessionId(int localId)
+    {
+        if (!isClustered())
+            return localId;
+
+        return (ownedBlocks[localId >>> BLOCK_BITS] << BLOCK_BITS) | (localId & (BLOCK_SIZE - 1));
+    }
+
+    /**
+     * @param sessionId A session id
+     * @return The local id it maps to, or -1 if the session id is out of range or owned by another node
+     */
+    public int toLocalId(int sessionId)
+    {
+        if (sessionId < 0 || sessionId >= maxSessions)
+            return -1;
+        if (!isClustered())
+            return sessionId;
+
+        int localBlock = localBlocks[sessionId >>> BLOCK_BITS];
+        return localBlock < 0 ? -1 : (localBlock << BLOCK_BITS) | (sessionId & (BLOCK_SIZE - 1));
+    }
+
+    /**
+     * Start telling the other nodes how much room this node has, every clusterStatusIntervalMillis
+     */
+    public void start()
+    {
+        if (isClustered())
+            statusThread = ServerThreads.start("cluster-status", this::sendStatus, false);
+    }
+
+    /**
+     * Stop telling the other nodes about this node, waiting for the status thread to finish
+     */
+    public void stop()
+    {
+        Thread thread = statusThread;
+        if (thread == null)
+            return;
+
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param node The index of a node
+     * @return The open slots the node last reported, less those counted as taken since, 0 until it has reported
+     */
+    public int getReportedOpenSlots(int node)
+    {
+        return openSlots.get(node);
+    }
+
+    /**
+     * @param node The index of a node
+     * @return The free session ids the node last reported, less those counted as taken since, 0 until it has
+     *         reported
+     */
+    public int getReportedFreeIds(int node)
+    {
+        return freeIds.get(node);
+    }
+
+    /**
+     * Pick the peer with the most open slots and count one of them as taken, so a burst of requests does not all
+     * go to a peer that only reported one slot
+     * @return The index of the node, or -1 if no peer reported an open slot
+     */
+    public int takePeerWithOpenSlots()
+    {
+        int best = pickPeer(openSlots);
+        if (best >= 0)
+            openSlots.decrementAndGet(best);
+        return best;
+    }
+
+    /**
+     * Pick the peer with the most free session ids to host a new session
+     * @return The index of the node, or -1 if no peer reported a free id
+     */
+    public int takePeerWithFreeIds()
+    {
+        int best = pickPeer(freeIds);
+        if (best >= 0)
+            freeIds.decrementAndGet(best);
+        return best;
+    }
+
+    private int pickPeer(AtomicIntegerArray room)
+    {
+        int best = -1;
+        for (int node = 0; node < nodes.size(); node++)
+            if (node != self && room.get(node) > 0 && (best < 0 || room.get(node) > room.get(best)))
+                best = node;
+        return best;
+    }
+
+    /**
+     * @param data A received packet, positioned at its first byte
+     * @return true if the packet was sent by another node
+     */
+    public static boolean isClusterPacket(ByteBuffer data)
+    {
+        return data.remaining() >= 2 && data.get(data.position()) == CLUSTER_MARKER;
+    }
+
+    /**
+     * Handle a packet from another node. The datagram is released
+     * @param datagram A datagram that isClusterPacket accepted
+     * @return The client packet it carried if it was forwarded, to be handled like any received packet, otherwise
+     *         null
+     */
+    public ReceivedDatagram receive(ReceivedDatagram datagram)
+    {
+        try {
+            int node = nodeAt(datagram.getAddress(), datagram.getPort());
+            if (node < 0)
+            {
+                Logger.warn("Dropping cluster packet from {}:{}, it is not a cluster node", datagram.getAddress(), datagram.getPort());
+                return null;
+            }
+
+            ByteBuffer data = datagram.getData();
+            int start = data.position();
+
+            if (data.get(start + 1) == FORWARD)
+                return unwrap(data);
+
+            if (data.get(start + 1) == STATUS && data.remaining() >= STATUS_SIZE && (data.getShort(start + 2) & 0xFFFF) == node)
+            {
+                openSlots.set(node, data.getInt(start + 4));
+                freeIds.set(node, data.getInt(start + 8));
+            }
+            return null;
+        } finally {
+            datagram.release();
+        }
+    }
+
+    /**
+     * Send a client packet on to another node, which handles it as if the client had sent it there. The packet is
+     * not released
+     * @param packet The packet to forward
+     * @param node The index of the node to send it to
+     * @return false if the packet is too big for the node to receive once wrapped
+     */
+    public boolean forward(ReceivedDatagram packet, int node)
+    {
+        ByteBuffer data = packet.getData();
+        byte[] address  = packet.getAddress().getAddress();
+
+        byte[] envelope = new byte[2 + 1 + address.length + 2 + data.remaining()];
+        if (envelope.length > owningServer.getConfig().getReceiveBufferSize())
+            return false;
+
+        ByteBuffer out = ByteBuffer.wrap(envelope);
+        out.put(CLUSTER_MARKER).put(FORWARD);
+        out.put((byte) address.length).put(address).putShort((short) packet.getPort());
+        out.put(data.duplicate());
+
+        send(envelope, nodes.get(node));
+        return true;
+    }
+
+    /**
+     * Handle a packet for a session another node owns. The packet is forwarded to that node, and the client is
+     * told which node to send to from now on. Forwarded packets that land on the wrong node again are dropped, as
+     * the nodes disagree about who owns the session
+     * @param packet A packet naming a session that is not local
+     * @param sessionId The session the packet names
+     * @param wireFormat The format the client speaks
+     */
+    public void redirect(ReceivedDatagram packet, int sessionId, WireFormat wireFormat)
+    {
+        if (packet.isFromPeer())
+        {
+            Logger.warn("Session {} was forwarded here but belongs to node {}, are the cluster configs the same?",
+                        sessionId, ownerOf(sessionId));
+            return;
+        }
+
+        InetSocketAddress owner = nodes.get(ownerOf(sessionId));
+        forward(packet, ownerOf(sessionId));
+
+        byte[] redirect = GloomyNetMessageBuilder.Create(PacketType.REDIRECT)
+                .addData("sId", sessionId)
+                .addData("ip", owner.getAddress().getHostAddress())
+                .addData("port", owner.getPort())
+                .buildBytes(wireFormat);
+        send(redirect, new InetSocketAddress(packet.getAddress(), packet.getPort()));
+    }
+
+    /** Runs on the status thread until the server stops listening or the thread is interrupted **/
+    private void sendStatus()
+    {
+        int interval = owningServer.getConfig().getClusterStatusIntervalMillis();
+        byte[] status = new byte[STATUS_SIZE];
+
+        while (owningServer.isListening() && !Thread.currentThread().isInterrupted())
+        {
+            ByteBuffer.wrap(status)
+                    .put(CLUSTER_MARKER).put(STATUS)
+                    .putShort((short) self)
+                    .putInt(owningServer.getOpenSessions().getOpenSlots())
+                    .putInt(localCapacity - owningServer.getSessionCount());
+
+            for (int node = 0; node < nodes.size(); node++)
+                if (node != self)
+                    send(status, nodes.get(node));
+
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private ReceivedDatagram unwrap(ByteBuffer data)
+    {
+        ByteBuffer in = data.duplicate();
+        in.position(in.position() + 2);
+
+        try {
+            byte[] address = new byte[in.get() & 0xFF];
+            in.get(address);
+            int port = in.getShort() & 0xFFFF;
+
+            byte[] packet = new byte[in.remaining()];
+            in.get(packet);
+
+            ReceivedDatagram forwarded = ReceivedDatagram.Wrap(ByteBuffer.wrap(packet), InetAddress.getByAddress(address), port);
+            forwarded.markFromPeer();
+            return forwarded;
+        } catch (RuntimeException | UnknownHostException e) {
+            Logger.warn("Dropping malformed forwarded packet");
+            return null;
+        }
+    }
+
+    private int nodeAt(InetAddress address, int port)
+    {
+        for (int node = 0; node < nodes.size(); node++)
+            if (node != self && nodes.get(node).getPort() == port && nodes.get(node).getAddress().equals(address))
+                return node;
+        return -1;
+    }
+
+    private void send(byte[] data, InetSocketAddress to)
+    {
+        try {
+            owningServer.getSocket().send(new DatagramPacket(data, data.length, to.getAddress(), to.getPort()));
+        } catch (IOException e) {
+            Logger.warn("Could not send to {}: {}", to, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.gloomy.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Server wide index from the ip and port a client sends from to the session and client id it holds. An endpoint can
+ * only ever be one client on the server, which makes duplicate joins, and packets naming a client they were not
+ * sent by, cheap to spot.
+ *
+ * Ipv4 endpoints are packed into a long, the address in the upper bits and the port in the lower 16, and kept in an
+ * open addressing table of primitive longs so lookups neither box nor allocate. Ipv6 endpoints fall back to a
+ * HashMap. Lookups are optimistic reads of a StampedLock that only retry under the read lock if a write raced them,
+ * writes take the lock exclusively.
+ *
+ * Matchmaking reserves an endpoint before it starts placing a client and the session that adds the client claims
+ * the reservation with the clients ids. Reservations that are never claimed, because the request was dropped
+ * somewhere on the way, expire after RESERVATION_TIMEOUT_MILLIS.
+ */
+public class EndpointIndex
+{
+    /** Returned by lookup for endpoints that hold no client **/
+    public static final long NONE = -1;
+
+    /** How long matchmaking may take to place a client before its reservation is given up **/
+    public static final long RESERVATION_TIMEOUT_MILLIS = 5000;
+
+    /** Keys are at most 48 bits, so an all ones key never collides with an endpoint **/
+    private static final long EMPTY = -1;
+
+    /** Reservations have the sign bit set and carry the time they were made **/
+    private static final long RESERVED = Long.MIN_VALUE;
+
+    private static final float MAX_LOAD = 0.5f;
+
+    private final StampedLock lock = new StampedLock();
+
+    private volatile Table table;
+
+    private int size;
+
+    private final Map<InetSocketAddress, Long> ipv6Endpoints = new HashMap<>();
+
+    /**
+     * @param initialCapacity The amount of ipv4 endpoints the index has room for before it grows
+     */
+    public EndpointIndex(int initialCapacity)
+    {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (initialCapacity / MAX_LOAD)) - 1) << 1;
+        table = new Table(capacity);
+    }
+
+    /**
+     * Reserve an endpoint for a client that is about to be placed in a session
+     * @param address The address the client sends from
+     * @param port The port the client sends from
+     * @return false if the endpoint is already a client, or has a reservation that has not expired
+     */
+    public boolean reserve(InetAddress address, int port)
+    {
+        long stamp = lock.writeLock();
+        try {
+            long current = get(address, port);
+            if (current != NONE && (current >= 0 || !isExpired(current)))
+                return false;
+
+            put(address, port, RESERVED | nowMillis());
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Give an endpoint to a client, taking over a reservation if there is one
+     * @param address The address the client sends from
+     * @param port The port the client sends from
+     * @param sessionId The session the client is joining
+     * @param clientId The id the client gets in that session
+     * @return false if the endpoint already is a client
+     */
+    public boolean claim(InetAddress address, int port, int sessionId, int clientId)
+    {
+        long stamp = lock.writeLock();
+        try {
+            if (get(address, port) >= 0)
+                return false;
+
+            put(address, port, pack(sessionId, clientId));
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Drop the reservation of an endpoint whose client could not be placed. Does nothing once the endpoint has
+     * been claimed
+     * @param address The address the client sends from
+     * @param port The port the client sends from
+     */
+    public void release(InetAddress address, int port)
+    {
+        long stamp = lock.writeLock();
+        try {
+            long current = get(address, port);
+            if (current != NONE && current < 0)
+                delete(address, port);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Free the endpoint of a client that left its session
+     * @param address The address the client sends from
+     * @param port The port the client sends from
+     * @param sessionId The session the client left
+     * @param clientId The id the client had in that session
+     * @return false if the endpoint did not belong to that client
+     */
+    public boolean remove(InetAddress address, int port, int sessionId, int clientId)
+    {
+        long stamp = lock.writeLock();
+        try {
+            if (get(address, port) != pack(sessionId, clientId))
+                return false;
+
+            delete(address, port);
+            return true;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param address The address a packet came from
+     * @param port The port a packet came from
+     * @return The session and client id of the endpoint packed into a long, NONE if it is not a client
+     */
+    public long lookup(InetAddress address, int port)
+    {
+        if (!(address instanceof Inet4Address))
+        {
+            long stamp = lock.readLock();
+            try {
+                Long entry = ipv6Endpoints.get(new InetSocketAddress(address, port));
+                return entry == null || entry < 0 ? NONE : entry;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        long key = ipv4Key(address, port);
+        long stamp = lock.tryOptimisticRead();
+        long entry = table.find(key);
+
+        if (!lock.validate(stamp))
+        {
+            stamp = lock.readLock();
+            try {
+                entry = table.find(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        return entry < 0 ? NONE : entry;
+    }
+
+    /**
+     * @param address The address a packet came from
+     * @param port The port a packet came from
+     * @param sessionId The session the packet names
+     * @param clientId The client the packet names
+     * @return true if the endpoint is that client
+     */
+    public boolean matches(InetAddress address, int port, int sessionId, int clientId)
+    {
+        return lookup(address, port) == pack(sessionId, clientId);
+    }
+
+    /**
+     * @return The amount of endpoints that are clients or reserved
+     */
+    public int size()
+    {
+        long stamp = lock.readLock();
+        try {
+            return size + ipv6Endpoints.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public static int sessionIdOf(long entry)
+    {
+        return (int) (entry >>> 32);
+    }
+
+    public static int clientIdOf(long entry)
+    {
+        return (int) entry;
+    }
+
+    private static long pack(int sessionId, int clientId)
+    {
+        return ((long) sessionId << 32) | (clientId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Inet4Address.hashCode is the address as an int in every JDK, unlike getAddress it does not copy the bytes
+     */
+    private static long ipv4Key(InetAddress address, int port)
+    {
+        return ((address.hashCode() & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+
+    private static long nowMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime()) & ~RESERVED;
+    }
+
+    private static boolean isExpired(long reservation)
+    {
+        return ((nowMillis() - (reservation & ~RESERVED)) & ~RESERVED) >= RESERVATION_TIMEOUT_MILLIS;
+    }
+
+    /** Called with the write lock held **/
+    private long get(InetAddress address, int port)
+    {
+        if (!(address instanceof Inet4Address))
+        {
+            Long entry = ipv6Endpoints.get(new InetSocketAddress(address, port));
+            return entry == null ? NONE : entry;
+        }
+
+        return table.find(ipv4Key(address, port));
+    }
+
+    /** Called with the write lock held **/
+    private void put(InetAddress address, int port, long value)
+    {
+        if (!(address instanceof Inet4Address))
+        {
+            ipv6Endpoints.put(new InetSocketAddress(address, port), value);
+            return;
+        }
+
+        if (size + 1 > table.keys.length * MAX_LOAD)
+            table = table.grow();
+
+        if (table.insert(ipv4Key(address, port), value))
+            size++;
+    }
+
+    /** Called with the write lock held **/
+    private void delete(InetAddress address, int port)
+    {
+        if (!(address instanceof Inet4Address))
+            ipv6Endpoints.remove(new InetSocketAddress(address, port));
+        else if (table.delete(ipv4Key(address, port)))
+            size--;
+    }
+
+    /**
+     * A linear probing table. Keys and values live in parallel arrays that are swapped together when the table
+     * grows, so an optimistic reader always probes a matching pair
+     */
+    private static final class Table
+    {
+        final long[] keys;
+        final long[] values;
+        final int mask;
+
+        Table(int capacity)
+        {
+            keys   = new long[capacity];
+            values = new long[capacity];
+            mask   = capacity - 1;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        /**
+         * @return The value held for the key, or NONE. Probes at most the whole table so a reader racing a
+         *         delete can never spin
+         */
+        long find(long key)
+        {
+            int slot = slot(key);
+            for (int probes = 0; probes <= mask; probes++)
+            {
+                long candidate = keys[slot];
+                if (candidate == key)
+                    return values[slot];
+                if (candidate == EMPTY)
+                    return NONE;
+                slot = (slot + 1) & mask;
+            }
+
+            return NONE;
+        }
+
+        /**
+         * @return true if the key was not in the table yet
+         */
+        boolean insert(long key, long value)
+        {
+            int slot = slot(key);
+            while (keys[slot] != EMPTY && keys[slot] != key)
+                slot = (slot + 1) & mask;
+
+            boolean added = keys[slot] == EMPTY;
+            values[slot] = value;
+            keys[slot]   = key;
+            return added;
+        }
+
+        /**
+         * Remove a key and shift the entries probing past it back, so no tombstones are needed
+         * @return true if the key was in the table
+         */
+        boolean delete(long key)
+        {
+            int slot = slot(key);
+            while (keys[slot] != key)
+            {
+                if (keys[slot] == EMPTY)
+                    return false;
+                slot = (slot + 1) & mask;
+            }
+
+            int hole = slot;
+            for (int next = (hole + 1) & mask; keys[next] != EMPTY; next = (next + 1) & mask)
+            {
+                int home = slot(keys[next]);
+                // Move the entry back if the hole lies between its home slot and where it is now
+                if (((next - home) & mask) >= ((next - hole) & mask))
+                {
+                    keys[hole]   = keys[next];
+                    values[hole] = values[next];
+                    hole = next;
+                }
+            }
+
+            keys[hole] = EMPTY;
+            return true;
+        }
+
+        Table grow()
+        {
+            Table grown = new Table(keys.length << 1);
+            for (int i = 0; i < keys.length; i++)
+                if (keys[i] != EMPTY)
+                    grown.insert(keys[i], values[i]);
+            return grown;
+        }
+
+        private int slot(long key)
+        {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.gloomy.server;
+
+import com.gloomy.protocol.PacketFragmenter;
+import org.pmw.tinylog.Logger;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Puts fragmented packets back together on the listener thread. Fragment payloads are copied out of the receive
+ * buffer so the buffer goes straight back to the pool, and the copies are held until every fragment of the packet
+ * has arrived. Memory is bounded two ways. A partial packet older than the timeout is dropped, and when the bytes
+ * held would go over the budget the oldest partial packets are dropped to make room. A client that loses a fragment
+ * simply sends the whole packet again.
+ *
+ * Not thread safe, it is only ever used by the thread receiving datagrams.
+ */
+public class FragmentReassembler
+{
+    /** Rough bytes charged for each partial packet on top of its payloads, so tiny fragments can not flood memory **/
+    private static final int PARTIAL_OVERHEAD = 64;
+
+    private final long timeoutNanos;
+
+    private final int maxBufferedBytes;
+
+    /** Partial packets in the order their first fragment arrived, which is also the order they expire in **/
+    private final LinkedHashMap<Key, PartialPacket> pending = new LinkedHashMap<>();
+
+    private int bufferedBytes;
+
+    /**
+     * @param timeoutMillis How long a partial packet waits for its missing fragments
+     * @param maxBufferedBytes The most bytes of partial packets held at once
+     */
+    public FragmentReassembler(int timeoutMillis, int maxBufferedBytes)
+    {
+        this.timeoutNanos     = timeoutMillis * 1_000_000L;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Take in a received fragment. The fragment is released back to its pool before this returns.
+     * @param fragment A datagram that PacketFragmenter.isFragment accepted
+     * @return The reassembled packet if this was its last missing fragment, otherwise null
+     */
+    public ReceivedDatagram accept(ReceivedDatagram fragment)
+    {
+        try {
+            return add(fragment);
+        } finally {
+            fragment.release();
+        }
+    }
+
+    private ReceivedDatagram add(ReceivedDatagram fragment)
+    {
+        long now = System.nanoTime();
+        expire(now);
+
+        ByteBuffer data = fragment.getData();
+        int start     = data.position();
+        int messageId = data.getShort(start + PacketFragmenter.MESSAGE_ID_OFFSET) & 0xFFFF;
+        int index     = data.get(start + PacketFragmenter.INDEX_OFFSET) & 0xFF;
+        int count     = data.get(start + PacketFragmenter.COUNT_OFFSET) & 0xFF;
+
+        if (count == 0 || index >= count)
+        {
+            Logger.warn("Malformed fragment {}/{} received from {}:{}. Ignoring....",
+                    index, count, fragment.getAddress(), fragment.getPort());
+            return null;
+        }
+
+        Key key = new Key(fragment.getAddress(), fragment.getPort(), messageId);
+        PartialPacket partial = pending.get(key);
+
+        if (partial != null && partial.fragments.length != count)
+        {
+            // The message id wrapped around onto a packet that never completed
+            drop(key, partial);
+            partial = null;
+        }
+
+        byte[] payload = new byte[data.remaining() - PacketFragmenter.HEADER_SIZE];
+        ByteBuffer source = data.duplicate();
+        source.position(start + PacketFragmenter.HEADER_SIZE);
+        source.get(payload);
+
+        int charge = payload.length + (partial == null ? PARTIAL_OVERHEAD + count * 8 : 0);
+        if (charge > maxBufferedBytes)
+            return null;
+
+        if (partial != null && partial.fragments[index] != null)
+            return null;    // Duplicate
+
+        makeRoom(charge, key);
+
+        if (partial == null)
+        {
+            partial = new PartialPacket(count, now);
+            partial.bufferedBytes = PARTIAL_OVERHEAD + count * 8;
+            pending.put(key, partial);
+        }
+
+        partial.fragments[index] = payload;
+        partial.received++;
+        partial.bufferedBytes += payload.length;
+        bufferedBytes += charge;
+
+        if (partial.received < count)
+            return null;
+
+        drop(key, partial);
+        return ReceivedDatagram.Wrap(partial.assemble(), fragment.getAddress(), fragment.getPort());
+    }
+
+    /**
+     * @return The amount of packets waiting on fragments
+     */
+    public int pendingPackets()
+    {
+        return pending.size();
+    }
+
+    /**
+     * @return The bytes currently held for partial packets
+     */
+    public int bufferedBytes()
+    {
+        return bufferedBytes;
+    }
+
+    /** Drop every partial packet that has waited longer than the timeout **/
+    private void expire(long now)
+    {
+        Iterator<PartialPacket> oldestFirst = pending.values().iterator();
+        while (oldestFirst.hasNext())
+        {
+            PartialPacket partial = oldestFirst.next();
+            if (now - partial.firstArrival < timeoutNanos)
+                return;
+
+            oldestFirst.remove();
+            bufferedBytes -= partial.bufferedBytes;
+        }
+    }
+
+    /** Drop the oldest partial packets, other than the one being added to, until the charge fits the budget **/
+    private void makeRoom(int charge, Key adding)
+    {
+        Iterator<Map.Entry<Key, PartialPacket>> oldestFirst = pending.entrySet().iterator();
+        while (bufferedBytes + charge > maxBufferedBytes && oldestFirst.hasNext())
+        {
+            Map.Entry<Key, PartialPacket> oldest = oldestFirst.next();
+            if (oldest.getKey().equals(adding))
+                continue;
+
+            Logger.warn("Reassembly buffer is full, dropping a partial packet from {}:{}",
+                    oldest.getKey().address, oldest.getKey().port);
+            oldestFirst.remove();
+            bufferedBytes -= oldest.getValue().bufferedBytes;
+        }
+    }
+
+    private void drop(Key key, PartialPacket partial)
+    {
+        pending.remove(key);
+        bufferedBytes -= partial.bufferedBytes;
+    }
+
+    /**
+     * The fragments of one packet received so far
+     */
+    private static final class PartialPacket
+    {
+        final byte[][] fragments;
+        final long firstArrival;
+        int received;
+        int bufferedBytes;
+
+        PartialPacket(int count, long firstArrival)
+        {
+            this.fragments    = new byte[count][];
+            this.firstArrival = firstArrival;
+        }
+
+        ByteBuffer assemble()
+        {
+            int length = 0;
+            for (byte[] fragment : fragments)
+                length += fragment.length;
+
+            ByteBuffer packet = ByteBuffer.allocate(length);
+            for (byte[] fragment : fragments)
+                packet.put(fragment);
+
+            packet.flip();
+            return packet;
+        }
+    }
+
+    /**
+     * Identifies one fragmented packet, message ids are only unique per sender
+     */
+    private static final class Key
+    {
+        final InetAddress address;
+        final int port;
+        final int messageId;
+
+        Key(InetAddress address, int port, int messageId)
+        {
+            this.address   = address;
+            this.port      = port;
+            this.messageId = messageId;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return port == other.port && messageId == other.messageId && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (address.hashCode() * 31 + port) * 31 + messageId;
+        }
+    }
+}
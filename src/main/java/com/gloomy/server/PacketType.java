@@ -10,5 +10,16 @@ public class PacketType
     public static final byte YOURE_DISCONNECTED = 5;
     public static final byte HOST_CHANGE        = 6;
     public static final byte GAME_READY = 7;
+    public static final byte CLIENT_ADDED = 8;
+    public static final byte CLIENT_UPDATED = 9;
     public static final byte GAME_START = 10;
+    public static final byte ROSTER_RESYNC = 11;
+    public static final byte ACK = 12;
+    public static final byte HEARTBEAT = 13;
+    public static final byte REDIRECT = 14;
+    public static final byte LIST_SESSIONS = 15;
+    public static final byte SESSION_LIST = 16;
+    public static final byte RELAY_ASSIGNED = 17;
+    public static final byte GET_ROSTER_PAGE = 18;
+    public static final byte ROSTER_PAGE = 19;
 }
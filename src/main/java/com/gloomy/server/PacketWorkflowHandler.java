@@ -1,33 +1,92 @@
 package com.gloomy.server;
 
+import com.gloomy.protocol.Ack;
+import com.gloomy.protocol.BinaryCodec;
+import com.gloomy.protocol.ClientDisconnect;
+import com.gloomy.protocol.ClientPacket;
+import com.gloomy.protocol.GameStart;
+import com.gloomy.protocol.Heartbeat;
+import com.gloomy.protocol.JsonPacketDecoder;
+import com.gloomy.protocol.ListSessions;
+import com.gloomy.protocol.MatchRequest;
+import com.gloomy.protocol.RosterPageRequest;
+import com.gloomy.protocol.RosterResync;
+import com.gloomy.protocol.WireFormat;
 import com.gloomy.session.Session;
 import com.gloomy.session.Client;
-import com.gloomy.utils.GloomyNetMessageBuilder;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-import com.sun.javafx.image.BytePixelSetter;
+import com.gloomy.utils.ServerThreads;
+import com.gloomy.utils.SpscRingBuffer;
+import com.gloomy.utils.TimingWheel;
 import org.pmw.tinylog.Logger;
 
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Processes received packets on a set of worker threads called shards. Shard 0 is the matchmaking shard and handles
+ * every MATCH_REQUEST from a client that is not in a session yet. The other shards each own the sessions whose id
+ * maps to them, so packets for unrelated sessions are handled in parallel while everything done to one Session
+ * happens on one thread, in the order it arrived.
+ *
+ * When matchmaking finds an open session it does not add the client itself, the request is forwarded to the shard
+ * that owns that session. If the session filled up in the meantime the request goes back to matchmaking. The
+ * endpoint of a request is reserved in the servers EndpointIndex before it is placed, so an endpoint that is
+ * already a client, or is still being placed, can not join a second time. Packets that name a client are only
+ * acted on when they come from that clients endpoint.
+ *
+ * In a cluster, packets naming a session another node owns are redirected to it before they reach a shard, and
+ * match requests this node can not place are forwarded to a node that can, see Cluster.
+ *
+ * Received packets reach a shard through a preallocated single producer ring buffer that only the listener writes
+ * to, packets forwarded between shards through a separate bounded queue. How an idle shard waits for either, and how
+ * the listener waits on a full ring, is set by the servers WaitStrategy.
+ *
+ * When a client timeout is configured each session shard also keeps an idle timer per client on a TimingWheel.
+ * A packet from a client only records when it was seen, the timer is not moved. When a timer fires it checks the
+ * last seen time and either disconnects the client through its session or schedules itself again for when the
+ * client would time out, so every active client costs one wheel operation per timeout period however often it
+ * sends.
+ */
 public class PacketWorkflowHandler
 {
-    private LinkedBlockingQueue<DatagramPacket> packetsToBeWorked;
+    /** Stateless and shared, json packets are decoded without building a Map **/
+    private static final JsonPacketDecoder JSON_DECODER = new JsonPacketDecoder();
 
-    private boolean working;
+    /** Times a match request may bounce off sessions that filled up before it starts a new session instead **/
+    private static final int MAX_MATCH_ATTEMPTS = 3;
 
-    public static final String TYPE_OF_PACKET_KEY = "T:P";
+    private static final int MATCHMAKING_SHARD = 0;
+
+    /** Resolution of the idle timers, and the longest a shard waits for a packet while it has timers running **/
+    private static final int IDLE_TICK_MILLIS = 100;
+
+    /** 256 ticks of 100ms per level, the third level reaches past 19 days **/
+    private static final int IDLE_WHEEL_SIZE   = 256;
+    private static final int IDLE_WHEEL_LEVELS = 3;
+
+    private static final long IDLE_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(IDLE_TICK_MILLIS);
+
+    /** Empty polls a shard spins through before it starts yielding or parking **/
+    private static final int SPIN_ROUNDS = 100;
+
+    /** How long the listener parks between attempts when a shards ring is full and it is told to block **/
+    private static final long FULL_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private Shard[] shards;
 
-    private static final String CLIENT_NAME_PACKET_KEY = "name";
+    private volatile boolean working;
 
-    private static final String SESSION_ID_KEY = "sId";
+    /** Clients that send nothing for this long are disconnected, 0 or less turns the idle timers off **/
+    private int idleTimeoutMillis;
 
-    private static final String CLIENT_ID_KEY  = "cId";
+    private WaitStrategy waitStrategy;
+
+    public static final String TYPE_OF_PACKET_KEY = "T:P";
 
     private final Server owningServer;
 
@@ -41,121 +100,754 @@ public class PacketWorkflowHandler
     }
 
     /**
-     * Add a packet to the workflow handlers work queue
+     * Add a packet to the ring of the shard that should handle it. Waits if that ring is full. Only ever called by
+     * the servers listener thread, the one producer of every ring. Packets for a session another cluster node owns
+     * are redirected there instead
      * @param packet
      */
-    public void addWork(DatagramPacket packet)
+    public void addWork(ReceivedDatagram packet)
     {
-        packetsToBeWorked.add(packet);
+        ByteBuffer data = packet.getData();
+        boolean binary  = BinaryCodec.isBinary(data);
+        int sessionId   = binary ? BinaryCodec.peekSessionId(data) : JSON_DECODER.peekSessionId(data);
+
+        Cluster cluster = owningServer.getCluster();
+        if (!cluster.isLocal(sessionId))
+        {
+            cluster.redirect(packet, sessionId, binary ? WireFormat.BINARY : WireFormat.JSON);
+            packet.release();
+            return;
+        }
+
+        Shard shard = shards[sessionId < 0 ? MATCHMAKING_SHARD : shardForSession(sessionId)];
+
+        while (!shard.received.offer(packet))
+        {
+            if (!working || Thread.currentThread().isInterrupted())
+            {
+                packet.release();
+                return;
+            }
+
+            if (waitStrategy == WaitStrategy.BLOCKING)
+                LockSupport.parkNanos(this, FULL_BACKOFF_NANOS);
+            else if (waitStrategy == WaitStrategy.YIELDING)
+                Thread.yield();
+        }
+
+        shard.wake();
     }
 
     /**
-     * Starts the workflow handler thread
+     * Starts the matchmaking shard and one thread per session shard
      */
     public void start()
     {
         working = true;
-        packetsToBeWorked = new LinkedBlockingQueue<>();
-        Thread workThread = new Thread(this::handleWork);
-        workThread.start();
+        ServerConfig config = owningServer.getConfig();
+        idleTimeoutMillis = config.getClientTimeoutMillis();
+        waitStrategy = config.getWaitStrategy();
+
+        shards = new Shard[config.getWorkflowShards() + 1];
+        for (int i = 0; i < shards.length; i++)
+        {
+            shards[i] = new Shard(i, config.getReceivePoolSize());
+            ServerThreads.start(i == MATCHMAKING_SHARD ? "packet-matchmaking" : "packet-workflow-" + i,
+                    shards[i]::handleWork, config.isVirtualThreads());
+        }
 
-        System.out.println("Workflow handler has started working");
+        System.out.println("Workflow handler has started working on " + shards.length + " shards");
     }
 
     /**
-     * The main workflow handler thread. Waits for packets to arrive in queue
-     * then puts them through packet processing
+     * Stop every shard once it finishes the packet it is on. Packets still queued are dropped
      */
-    private void handleWork()
+    public void shutdown()
     {
-        DatagramPacket packetToHandle = null;
+        working = false;
+        if (shards == null)
+            return;
 
-        while (working)
+        for (Shard shard : shards)
         {
-            try {
-                // Wait for packets to be placed into the queue. Process "sleeps here"
-                packetToHandle = packetsToBeWorked.take();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            Thread thread = shard.thread;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+    }
 
-            processPacket(packetToHandle);
+    /**
+     * Start timing out the clients of a session that was restored from the journal, as they never joined through
+     * this handler
+     * @param session The restored session
+     */
+    public void trackRestored(Session session)
+    {
+        if (idleTimeoutMillis <= 0)
+            return;
+
+        Shard owner = shards[shardForSession(session.getSessionId())];
+        owner.execute(() ->
+        {
+            for (Client client : session.getClients())
+                owner.trackIdle(session, client);
+        });
+    }
+
+    /**
+     * @param sessionId The id of a session
+     * @return The index of the shard that owns the session
+     */
+    private int shardForSession(int sessionId)
+    {
+        return shardForSession(sessionId, shards.length - 1);
+    }
+
+    /**
+     * Which shard handles a session, the index getProcessedPackets counts that sessions packets under
+     * @param sessionId The id of a session
+     * @param sessionShards The amount of session shards, not counting matchmaking
+     * @return The index of the shard that owns the session, 1 + (sessionId mod sessionShards)
+     */
+    public static int shardForSession(int sessionId, int sessionShards)
+    {
+        return 1 + Math.floorMod(sessionId, sessionShards);
+    }
+
+    /**
+     * @param shard The index of a shard, 0 being matchmaking
+     * @return The packets the shard has handled so far, counting packets it forwarded on to another shard
+     */
+    public long getProcessedPackets(int shard)
+    {
+        return shards[shard].processed;
+    }
+
+    /**
+     * @return The amount of shards, matchmaking included
+     */
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    /**
+     * Move a packet onto another shards queue. Never waits, a worker blocking on another workers full queue could
+     * deadlock the two, so under that much load the packet is dropped and the client will retry.
+     * @param packet The packet to forward
+     * @param shard The index of the shard to forward to
+     */
+    private void forward(ReceivedDatagram packet, int shard)
+    {
+        if (!shards[shard].forwarded.offer(packet))
+        {
+            Logger.warn("Workflow shard {} is full, dropping packet from {}:{}", shard, packet.getAddress(), packet.getPort());
+            packet.release();
+            return;
         }
+
+        shards[shard].wake();
     }
 
     /**
-     * Handle and route the various packets types
-     * @param packet the packet to handle
+     * A worker thread with its own queue of packets
      */
-    private void processPacket(DatagramPacket packet)
+    private class Shard
     {
-        // Route the packet to handle through the workflow
-        Map<String, Object> receivedMessage = getMessageMapFromPacket(packet);
-        InetAddress senderIp = packet.getAddress();
-        int senderPort = packet.getPort();
-        int packetType = ((Double)receivedMessage.get(TYPE_OF_PACKET_KEY)).intValue();
+        private final int index;
+
+        /** Packets from the listener, which is the only thread that adds to it **/
+        private final SpscRingBuffer<ReceivedDatagram> received;
+
+        /** Packets other shards forwarded to this one **/
+        private final BlockingQueue<ReceivedDatagram> forwarded;
+
+        /** Work handed over by other shards, run between packets **/
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        private volatile Thread thread;
+
+        /** Set while the shard is parked, or about to park, waiting for work **/
+        private volatile boolean parked;
+
+        /** Packets handled, only written by the shards thread **/
+        private volatile long processed;
+
+        /** Idle timers of the clients in this shards sessions, null when client timeouts are off **/
+        private final TimingWheel<IdleTimer> idleTimers;
+
+        Shard(int index, int capacity)
+        {
+            this.index = index;
+            this.received  = new SpscRingBuffer<>(capacity);
+            this.forwarded = new ArrayBlockingQueue<>(capacity);
+            this.idleTimers = idleTimeoutMillis > 0 && index != MATCHMAKING_SHARD
+                    ? new TimingWheel<>(IDLE_TICK_MILLIS, IDLE_WHEEL_SIZE, IDLE_WHEEL_LEVELS, Client.nowMillis())
+                    : null;
+        }
 
-        switch (packetType)
+        /**
+         * Run a task on this shards thread, between packets
+         * @param task The task to run
+         */
+        void execute(Runnable task)
         {
-            case PacketType.MATCH_REQUEST:  // Join Game If Session Is Available Or Host If Not
+            tasks.add(task);
+            wake();
+        }
+
+        /**
+         * Unpark the shard if it is waiting for work, called after anything is added to one of its queues
+         */
+        void wake()
+        {
+            if (parked)
+                LockSupport.unpark(thread);
+        }
+
+        private boolean hasWork()
+        {
+            return !received.isEmpty() || !forwarded.isEmpty() || !tasks.isEmpty();
+        }
+
+        /**
+         * Wait for work the way the WaitStrategy says. Returns early whenever it might have arrived
+         * @param idleRounds How many times in a row the shard found nothing to do
+         */
+        private void idle(int idleRounds)
+        {
+            if (waitStrategy == WaitStrategy.BUSY_SPIN || idleRounds < SPIN_ROUNDS)
+                return;
+
+            if (waitStrategy == WaitStrategy.YIELDING)
             {
-                String senderName = (String) receivedMessage.get(CLIENT_NAME_PACKET_KEY);
-                Session openSession = owningServer.findOpenSession();
+                Thread.yield();
+                return;
+            }
 
-                if (openSession != null)
-                    openSession.addClient(new Client(senderName, senderIp, senderPort)); // Join Game
+            parked = true;
+            if (!hasWork() && working)
+            {
+                // Idle timers still need their ticks
+                if (idleTimers == null)
+                    LockSupport.park(this);
                 else
-                    owningServer.createNewSession(new Client(senderName, senderIp, senderPort));   // Host a game
+                    LockSupport.parkNanos(this, IDLE_TICK_NANOS);
+            }
+            parked = false;
+        }
 
-                break;
+        /**
+         * The shards thread. Waits for packets to arrive in queue
+         * then puts them through packet processing
+         */
+        private void handleWork()
+        {
+            ReceivedDatagram packetToHandle;
+            int idleRounds = 0;
+            thread = Thread.currentThread();
+
+            while (working)
+            {
+                packetToHandle = received.poll();
+                if (packetToHandle == null)
+                    packetToHandle = forwarded.poll();
+
+                if (packetToHandle != null)
+                {
+                    idleRounds = 0;
+                    boolean forwardedOn = false;
+                    try {
+                        forwardedOn = processPacket(packetToHandle);
+                    } finally {
+                        if (!forwardedOn)
+                            packetToHandle.release(); // Hand pooled buffers back to the listener
+                        processed++;
+                    }
+                }
+                else if (tasks.isEmpty())
+                {
+                    idle(idleRounds);     // Process "sleeps here" until packets arrive
+                    if (idleRounds < SPIN_ROUNDS)
+                        idleRounds++;
+                }
+
+                for (Runnable task = tasks.poll(); task != null; task = tasks.poll())
+                    task.run();
+                if (idleTimers != null)
+                    idleTimers.advance(Client.nowMillis(), this::expireIdle);
             }
-            case PacketType.CLIENT_DISCONNECT:
+        }
+
+        /**
+         * Start timing a client out, called on the shard that owns its session right after it joined
+         * @param session The session the client joined
+         * @param client The client to time
+         */
+        private void trackIdle(Session session, Client client)
+        {
+            client.touch(Client.nowMillis());
+            idleTimers.schedule(new IdleTimer(session, client), client.getLastSeenMillis() + idleTimeoutMillis);
+        }
+
+        /**
+         * An idle timer came due. Clients that left in the meantime are forgotten, clients that were heard from
+         * since the timer was set get a new timer from their last packet and the rest are disconnected
+         * @param timer The timer that fired
+         */
+        private void expireIdle(IdleTimer timer)
+        {
+            if (!timer.session.hasClient(timer.client))
+                return;
+
+            long lastSeen = timer.client.getLastSeenMillis();
+            if (Client.nowMillis() - lastSeen < idleTimeoutMillis)
             {
-                int senderSessionId = ((Double) receivedMessage.get(SESSION_ID_KEY)).intValue();
-                int senderClientId = ((Double) receivedMessage.get(CLIENT_ID_KEY)).intValue();
-                Session sessionToDisconnectClient = owningServer.getSession(senderSessionId);
+                idleTimers.schedule(timer, lastSeen + idleTimeoutMillis);
+                return;
+            }
 
-                if (sessionToDisconnectClient != null)
-                    sessionToDisconnectClient.disconnectClient(sessionToDisconnectClient.findClientFromId(senderClientId));
-                else
+            Logger.info("Client {} timed out of session {}", timer.client.getUserName(), timer.session.getSessionId());
+            timer.session.disconnectClient(timer.client);
+        }
+
+        /**
+         * Record that a client was heard from, if idle timers are running
+         * @param client The client that sent a packet
+         */
+        private void touch(Client client)
+        {
+            if (idleTimers != null)
+                client.touch(Client.nowMillis());
+        }
+
+        /**
+         * Handle and route the various packets types
+         * @param packet the packet to handle
+         * @return true if the packet was forwarded to another shard and must not be released here
+         */
+        private boolean processPacket(ReceivedDatagram packet)
+        {
+            if (BinaryCodec.isBinary(packet.getData()))
+                return processBinaryPacket(packet);
+            else
+                return processJsonPacket(packet);
+        }
+
+        /**
+         * Route a packet sent in the binary format. Fields are read straight out of the receive buffer.
+         * @param packet the packet to handle
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean processBinaryPacket(ReceivedDatagram packet)
+        {
+            ByteBuffer data = packet.getData();
+            int packetType = BinaryCodec.getPacketType(data);
+
+            if (!BinaryCodec.isComplete(data))
+            {
+                Logger.warn("Malformed binary packet of type {} received. Ignoring....", packetType);
+                return false;
+            }
+
+            switch (packetType)
+            {
+                case PacketType.MATCH_REQUEST:
+                    return handleMatchRequest(packet, BinaryCodec.readString(data, BinaryCodec.NAME_OFFSET),
+                                              BinaryCodec.readRating(data), WireFormat.BINARY);
+                case PacketType.CLIENT_DISCONNECT:
+                    return handleClientDisconnect(packet, BinaryCodec.readInt(data, BinaryCodec.SESSION_ID_OFFSET),
+                            BinaryCodec.readUnsignedByte(data, BinaryCodec.CLIENT_ID_OFFSET));
+                case PacketType.GAME_START:
+                    return handleGameStart(packet, BinaryCodec.readInt(data, BinaryCodec.SESSION_ID_OFFSET));
+                case PacketType.ROSTER_RESYNC:
+                    return handleRosterResync(packet, BinaryCodec.readInt(data, BinaryCodec.SESSION_ID_OFFSET),
+                            BinaryCodec.readUnsignedByte(data, BinaryCodec.CLIENT_ID_OFFSET),
+                            BinaryCodec.hasAck(data) ? BinaryCodec.readUnsignedShort(data, BinaryCodec.ACK_OFFSET) : -1,
+                            BinaryCodec.hasAck(data) ? BinaryCodec.readInt(data, BinaryCodec.ACK_BITS_OFFSET) & 0xFFFFFFFFL : 0);
+                case PacketType.HEARTBEAT:
+                    return handleHeartbeat(packet, BinaryCodec.readInt(data, BinaryCodec.SESSION_ID_OFFSET),
+                            BinaryCodec.readUnsignedByte(data, BinaryCodec.CLIENT_ID_OFFSET),
+                            BinaryCodec.hasAck(data) ? BinaryCodec.readUnsignedShort(data, BinaryCodec.ACK_OFFSET) : -1,
+                            BinaryCodec.hasAck(data) ? BinaryCodec.readInt(data, BinaryCodec.ACK_BITS_OFFSET) & 0xFFFFFFFFL : 0);
+                case PacketType.ACK:
+                    return handleAck(packet, BinaryCodec.readInt(data, BinaryCodec.SESSION_ID_OFFSET),
+                            BinaryCodec.readUnsignedByte(data, BinaryCodec.CLIENT_ID_OFFSET),
+                            BinaryCodec.readUnsignedShort(data, BinaryCodec.ACK_OFFSET),
+                            BinaryCodec.readInt(data, BinaryCodec.ACK_BITS_OFFSET) & 0xFFFFFFFFL);
+                case PacketType.GET_ROSTER_PAGE:
+                    return handleRosterPage(packet, BinaryCodec.readInt(data, BinaryCodec.SESSION_ID_OFFSET),
+                            BinaryCodec.readUnsignedByte(data, BinaryCodec.CLIENT_ID_OFFSET),
+                            BinaryCodec.readUnsignedByte(data, BinaryCodec.ROSTER_PAGE_OFFSET));
+                case PacketType.LIST_SESSIONS:
+                    return handleListSessions(packet, BinaryCodec.readUnsignedByte(data, BinaryCodec.MIN_FREE_OFFSET),
+                            BinaryCodec.readUnsignedShort(data, BinaryCodec.PAGE_OFFSET), WireFormat.BINARY);
+                default:
+                    Logger.warn("Unknown Packet type received. Ignoring.... {}", packetType);
+                    return false;
+            }
+        }
+
+        /**
+         * Route a packet sent in the json format. Malformed, truncated and unknown packets are dropped here
+         * @param packet the packet to handle
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean processJsonPacket(ReceivedDatagram packet)
+        {
+            ClientPacket received = JSON_DECODER.decode(packet.getData());
+
+            if (received == null)
+            {
+                Logger.warn("Malformed or unknown json packet received from {}:{}. Ignoring....",
+                        packet.getAddress(), packet.getPort());
+                return false;
+            }
+
+            switch (received.getType())
+            {
+                case PacketType.MATCH_REQUEST:
+                    return handleMatchRequest(packet, ((MatchRequest) received).getName(),
+                                              ((MatchRequest) received).getRating(), WireFormat.JSON);
+                case PacketType.CLIENT_DISCONNECT:
                 {
-                    Logger.warn("Client {} attempted to disconnect from un-existing session: {}", senderClientId, senderSessionId);
+                    ClientDisconnect disconnect = (ClientDisconnect) received;
+                    return handleClientDisconnect(packet, disconnect.getSessionId(), disconnect.getClientId());
                 }
-                break;
+                case PacketType.GAME_START:
+                    return handleGameStart(packet, ((GameStart) received).getSessionId());
+                case PacketType.ROSTER_RESYNC:
+                {
+                    RosterResync resync = (RosterResync) received;
+                    return handleRosterResync(packet, resync.getSessionId(), resync.getClientId(),
+                            resync.getAck(), resync.getAckBits());
+                }
+                case PacketType.ACK:
+                {
+                    Ack ack = (Ack) received;
+                    return handleAck(packet, ack.getSessionId(), ack.getClientId(), ack.getAck(), ack.getAckBits());
+                }
+                case PacketType.HEARTBEAT:
+                {
+                    Heartbeat heartbeat = (Heartbeat) received;
+                    return handleHeartbeat(packet, heartbeat.getSessionId(), heartbeat.getClientId(),
+                            heartbeat.getAck(), heartbeat.getAckBits());
+                }
+                case PacketType.GET_ROSTER_PAGE:
+                {
+                    RosterPageRequest request = (RosterPageRequest) received;
+                    return handleRosterPage(packet, request.getSessionId(), request.getClientId(), request.getPage());
+                }
+                case PacketType.LIST_SESSIONS:
+                {
+                    ListSessions list = (ListSessions) received;
+                    return handleListSessions(packet, list.getMinFreeSlots(), list.getPage(), WireFormat.JSON);
+                }
+                default:
+                    return false;
             }
-            case PacketType.GAME_START:
+        }
+
+        /**
+         * Join Game If Session Is Available Or Host If Not. On the matchmaking shard this picks the session, on a
+         * session shard it adds the client to the session matchmaking picked.
+         * @param packet The request, carrying the address it came from and the session picked for it
+         * @param senderName The name the client asked for
+         * @param rating The skill rating the client sent, teams are balanced on it
+         * @param wireFormat The format the client should be answered in
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean handleMatchRequest(ReceivedDatagram packet, String senderName, int rating, WireFormat wireFormat)
+        {
+            InetAddress senderIp = packet.getAddress();
+            int senderPort = packet.getPort();
+
+            if (index != MATCHMAKING_SHARD)
+            {
+                Session pickedSession = packet.getTargetSessionId() < 0 ? null : owningServer.getSession(packet.getTargetSessionId());
+
+                if (pickedSession != null && pickedSession.isOpen())
+                {
+                    Client client = new Client(senderName, senderIp, senderPort, wireFormat);
+                    client.setRating(rating);
+                    pickedSession.addClient(client); // Join Game
+                    if (idleTimers != null && pickedSession.hasClient(client))
+                        trackIdle(pickedSession, client);
+                    return false;
+                }
+
+                packet.setTargetSessionId(-1);  // Filled up since it was picked, try again
+                forward(packet, MATCHMAKING_SHARD);
+                return true;
+            }
+
+            int attempt = packet.retryMatch();
+            if (attempt == 0 && !owningServer.getEndpoints().reserve(senderIp, senderPort))
+            {
+                Logger.info("{}:{} is already in a session or joining one, ignoring its match request", senderIp, senderPort);
+                return false;
+            }
+
+            Session openSession = attempt < MAX_MATCH_ATTEMPTS ? owningServer.findOpenSession() : null;
+
+            // Fill the open lobbies of other nodes before starting a new one here
+            if (openSession == null && attempt < MAX_MATCH_ATTEMPTS && forwardToPeer(packet, true))
+                return false;
+
+            if (openSession == null)
+            {
+                Client host = new Client(senderName, senderIp, senderPort, wireFormat);
+                host.setRating(rating);
+                Session newSession = owningServer.createNewSession(host);   // Host a game
+                if (newSession == null)
+                {
+                    owningServer.getEndpoints().release(senderIp, senderPort);
+                    forwardToPeer(packet, false);   // Out of session ids, another node may have some
+                }
+                else if (idleTimeoutMillis > 0)
+                {
+                    Shard owner = shards[shardForSession(newSession.getSessionId())];
+                    owner.execute(() -> owner.trackIdle(newSession, host));
+                }
+                return false;
+            }
+
+            packet.setTargetSessionId(openSession.getSessionId());
+            forward(packet, shardForSession(openSession.getSessionId()));
+            return true;
+        }
+
+        /**
+         * Answer a lobby browser query from the session browsers cached pages. Touches nothing matchmaking uses
+         * @param packet The query
+         * @param minFreeSlots Only sessions with at least this many free slots are listed
+         * @param page The page the client asked for
+         * @param wireFormat The format the client should be answered in
+         * @return false, the packet is never forwarded
+         */
+        private boolean handleListSessions(ReceivedDatagram packet, int minFreeSlots, int page, WireFormat wireFormat)
+        {
+            owningServer.getSessionBrowser().answer(packet.getAddress(), packet.getPort(), minFreeSlots, page, wireFormat);
+            return false;
+        }
+
+        /**
+         * Hand a match request to another cluster node. Requests another node forwarded here are never passed on
+         * @param packet The match request
+         * @param toOpenSession true to pick the node with the most open slots, false the one with the most free ids
+         * @return true if the request was forwarded
+         */
+        private boolean forwardToPeer(ReceivedDatagram packet, boolean toOpenSession)
+        {
+            Cluster cluster = owningServer.getCluster();
+            if (!cluster.isClustered() || packet.isFromPeer())
+                return false;
+
+            int peer = toOpenSession ? cluster.takePeerWithOpenSlots() : cluster.takePeerWithFreeIds();
+            if (peer < 0 || !cluster.forward(packet, peer))
+                return false;
+
+            owningServer.getEndpoints().release(packet.getAddress(), packet.getPort());
+            return true;
+        }
+
+        /**
+         * Remove a client from the session it belongs to
+         * @param packet The disconnect packet
+         * @param senderSessionId The session the client is in
+         * @param senderClientId The id of the client within the session
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean handleClientDisconnect(ReceivedDatagram packet, int senderSessionId, int senderClientId)
+        {
+            if (forwardIfNotOwner(packet, senderSessionId))
+                return true;
+
+            Session sessionToDisconnectClient = owningServer.getSession(senderSessionId);
+
+            if (sessionToDisconnectClient == null)
             {
-                int senderSessionId = ((Double) receivedMessage.get(SESSION_ID_KEY)).intValue();
-                Session sessionToStartGame = owningServer.getSession(senderSessionId);
+                Logger.warn("Client {} attempted to disconnect from un-existing session: {}", senderClientId, senderSessionId);
+                return false;
+            }
+
+            Client client = findSender(packet, sessionToDisconnectClient, senderClientId);
+            if (client != null)
+                sessionToDisconnectClient.disconnectClient(client);
+            return false;
+        }
+
+        /**
+         * Start the game of a session, which shuts the session down on the master server
+         * @param packet The game start packet
+         * @param senderSessionId The session to start
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean handleGameStart(ReceivedDatagram packet, int senderSessionId)
+        {
+            if (forwardIfNotOwner(packet, senderSessionId))
+                return true;
+
+            Session sessionToStartGame = owningServer.getSession(senderSessionId);
+            long sender = owningServer.getEndpoints().lookup(packet.getAddress(), packet.getPort());
+
+            if (sessionToStartGame != null && EndpointIndex.sessionIdOf(sender) == senderSessionId)
                 sessionToStartGame.startGame();
-                break;
+            else if (sessionToStartGame != null)
+                Logger.warn("{}:{} tried to start session {} it is not in", packet.getAddress(), packet.getPort(), senderSessionId);
+            return false;
+        }
+
+        /**
+         * Send a client that reported its roster out of sync the full roster of its session
+         * @param packet The resync packet
+         * @param senderSessionId The session the client is in
+         * @param senderClientId The id of the client within the session
+         * @param ack A piggybacked acknowledgement, or -1 if the client did not add one
+         * @param ackBits The bits of the piggybacked acknowledgement
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean handleRosterResync(ReceivedDatagram packet, int senderSessionId, int senderClientId,
+                                           int ack, long ackBits)
+        {
+            if (forwardIfNotOwner(packet, senderSessionId))
+                return true;
+
+            Session session = owningServer.getSession(senderSessionId);
+            Client client = session == null ? null : findSender(packet, session, senderClientId);
+
+            if (client != null)
+            {
+                touch(client);
+                if (ack >= 0)
+                    session.acknowledge(client, ack, ackBits);
+                session.resyncRoster(client);
             }
-            default:
-                Logger.warn("Unknown Packet type received. Ignoring.... {}", packetType);
-                break;
+            return false;
         }
-    }
 
-    /**
-     * Convert the Data contained in a received packet into a useable Map
-     * @param packet The packet to parse
-     * @return A mapping for String message keys to message values
-     */
-    private Map<String, Object> getMessageMapFromPacket(DatagramPacket packet)
-    {
-        byte[] data = packet.getData();
-        Gson gson = new Gson();
+        /**
+         * Send a client in a large lobby the page of the roster it asked for
+         * @param packet The page request
+         * @param senderSessionId The session the client is in
+         * @param senderClientId The id of the client within the session
+         * @param page The page the client asked for
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean handleRosterPage(ReceivedDatagram packet, int senderSessionId, int senderClientId, int page)
+        {
+            if (forwardIfNotOwner(packet, senderSessionId))
+                return true;
+
+            Session session = owningServer.getSession(senderSessionId);
+            Client client = session == null ? null : findSender(packet, session, senderClientId);
+
+            if (client != null)
+            {
+                touch(client);
+                session.sendRosterPage(client, page);
+            }
+            return false;
+        }
 
-        String receivedString = new String(data).replace("\"", "'").trim();
-        System.out.println(receivedString);
-        return gson.fromJson(receivedString, new TypeToken<Map<String, Object>>(){}.getType());
+        /**
+         * Apply a clients acknowledgement of the reliable messages it has received
+         * @param packet The ack packet
+         * @param senderSessionId The session the client is in
+         * @param senderClientId The id of the client within the session
+         * @param ack The newest reliable sequence number the client has received
+         * @param ackBits Bit n set means sequence number ack - 1 - n was received too
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean handleAck(ReceivedDatagram packet, int senderSessionId, int senderClientId, int ack, long ackBits)
+        {
+            if (forwardIfNotOwner(packet, senderSessionId))
+                return true;
+
+            Session session = owningServer.getSession(senderSessionId);
+            Client client = session == null ? null : findSender(packet, session, senderClientId);
+
+            if (client != null)
+            {
+                touch(client);
+                session.acknowledge(client, ack, ackBits);
+            }
+            return false;
+        }
+
+        /**
+         * Keep a client that has nothing else to send from timing out
+         * @param packet The heartbeat packet
+         * @param senderSessionId The session the client is in
+         * @param senderClientId The id of the client within the session
+         * @param ack A piggybacked acknowledgement, or -1 if the client did not add one
+         * @param ackBits The bits of the piggybacked acknowledgement
+         * @return true if the packet was forwarded to another shard
+         */
+        private boolean handleHeartbeat(ReceivedDatagram packet, int senderSessionId, int senderClientId,
+                                        int ack, long ackBits)
+        {
+            if (forwardIfNotOwner(packet, senderSessionId))
+                return true;
+
+            Session session = owningServer.getSession(senderSessionId);
+            Client client = session == null ? null : findSender(packet, session, senderClientId);
+
+            if (client != null)
+            {
+                touch(client);
+                if (ack >= 0)
+                    session.acknowledge(client, ack, ackBits);
+            }
+            return false;
+        }
+
+        /**
+         * Find the client a packet names, as long as the packet was sent from that clients endpoint
+         * @param packet The received packet
+         * @param session The session the packet names
+         * @param senderClientId The client id the packet names
+         * @return The client, or null if there is no such client or the packet came from somewhere else
+         */
+        private Client findSender(ReceivedDatagram packet, Session session, int senderClientId)
+        {
+            if (!owningServer.getEndpoints().matches(packet.getAddress(), packet.getPort(), session.getSessionId(), senderClientId))
+            {
+                Logger.warn("Packet from {}:{} claims to be client {} of session {}. Ignoring....",
+                        packet.getAddress(), packet.getPort(), senderClientId, session.getSessionId());
+                return null;
+            }
+
+            return session.findClientFromId(senderClientId);
+        }
+
+        /**
+         * Forward a packet to the shard that owns its session, if that is not this shard
+         * @return true if the packet was forwarded
+         */
+        private boolean forwardIfNotOwner(ReceivedDatagram packet, int sessionId)
+        {
+            int owner = shardForSession(sessionId);
+            if (owner == index)
+                return false;
+
+            forward(packet, owner);
+            return true;
+        }
     }
 
     /**
-     * Shut down the work processors thread
+     * A clients idle timer, pointing at the session it was in when the timer was set
      */
-    public void shutDown()
+    private static final class IdleTimer
     {
-        working = false;
+        final Session session;
+        final Client client;
+
+        IdleTimer(Session session, Client client)
+        {
+            this.session = session;
+            this.client  = client;
+        }
     }
 }
@@ -0,0 +1,62 @@
+package com.gloomy.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A fixed set of ReceivedDatagram holders, each backed by its own direct ByteBuffer. Every holder is allocated up
+ * front, so once a server is running receiving a datagram does not allocate anything. When every holder is in use
+ * acquire() waits for one to be released, which pushes back on the listener instead of growing the heap.
+ */
+public class ReceiveBufferPool
+{
+    private final ArrayBlockingQueue<ReceivedDatagram> freeDatagrams;
+
+    private final int bufferSize;
+
+    /**
+     * Creates the pool and all of its buffers
+     * @param poolSize The amount of buffers in the pool
+     * @param bufferSize The size in bytes of each buffer
+     */
+    public ReceiveBufferPool(int poolSize, int bufferSize)
+    {
+        this.freeDatagrams = new ArrayBlockingQueue<>(poolSize);
+        this.bufferSize    = bufferSize;
+
+        for (int i = 0; i < poolSize; i++)
+            freeDatagrams.add(new ReceivedDatagram(ByteBuffer.allocateDirect(bufferSize), this));
+    }
+
+    /**
+     * Take a free datagram holder from the pool, waiting for one if they are all in use
+     * @return A free ReceivedDatagram
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public ReceivedDatagram acquire() throws InterruptedException
+    {
+        return freeDatagrams.take();
+    }
+
+    /**
+     * Return a holder to the pool. Use ReceivedDatagram.release() instead of calling this directly
+     * @param datagram The holder to return
+     */
+    void release(ReceivedDatagram datagram)
+    {
+        freeDatagrams.offer(datagram);
+    }
+
+    /**
+     * @return The amount of holders currently waiting in the pool
+     */
+    public int available()
+    {
+        return freeDatagrams.size();
+    }
+
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+}
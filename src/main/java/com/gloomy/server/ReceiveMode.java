@@ -0,0 +1,13 @@
+package com.gloomy.server;
+
+/**
+ * The ways a Server can pull datagrams off of the network
+ */
+public enum ReceiveMode
+{
+    /** Blocking java.net.DatagramSocket, a fresh buffer and DatagramPacket is allocated for every datagram */
+    SOCKET,
+
+    /** Blocking java.nio DatagramChannel reading into a fixed pool of direct buffers that are recycled */
+    CHANNEL
+}
@@ -0,0 +1,147 @@
+package com.gloomy.server;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A datagram that has been read off the network along with the address it came from. Instances that come from a
+ * ReceiveBufferPool are reused, so a holder must not be touched after release() has been called.
+ */
+public class ReceivedDatagram
+{
+    private final ByteBuffer data;
+
+    private final ReceiveBufferPool pool;
+
+    private InetAddress address;
+
+    private int port;
+
+    /** Session a match request was matched to by the matchmaking shard, or -1 **/
+    private int targetSessionId = -1;
+
+    /** Times the matchmaking shard has looked for a session for this request **/
+    private int matchAttempts;
+
+    /** Set when another cluster node forwarded this packet on behalf of the client **/
+    private boolean fromPeer;
+
+    ReceivedDatagram(ByteBuffer data, ReceiveBufferPool pool)
+    {
+        this.data = data;
+        this.pool = pool;
+    }
+
+    /**
+     * Wrap a packet received through a DatagramSocket. The result does not belong to a pool.
+     * @param packet The received packet
+     * @return A ReceivedDatagram viewing the packets data
+     */
+    public static ReceivedDatagram Wrap(DatagramPacket packet)
+    {
+        return Wrap(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()),
+                packet.getAddress(), packet.getPort());
+    }
+
+    /**
+     * Wrap bytes that did not come straight off the network, such as a reassembled packet. The result does not
+     * belong to a pool.
+     * @param data The packet, positioned at its first byte with the limit at its end
+     * @param address The address the packet came from
+     * @param port The port the packet came from
+     * @return A ReceivedDatagram viewing the data
+     */
+    public static ReceivedDatagram Wrap(ByteBuffer data, InetAddress address, int port)
+    {
+        ReceivedDatagram datagram = new ReceivedDatagram(data, null);
+        datagram.address = address;
+        datagram.port    = port;
+        return datagram;
+    }
+
+    /**
+     * Clear the buffer so that a new datagram can be read into it
+     * @return The cleared buffer
+     */
+    ByteBuffer prepareForReceive()
+    {
+        data.clear();
+        return data;
+    }
+
+    /**
+     * Flip the buffer for reading and record where the datagram came from
+     * @param sender The address returned by the channel receive
+     */
+    void completeReceive(InetSocketAddress sender)
+    {
+        data.flip();
+        address = sender.getAddress();
+        port    = sender.getPort();
+    }
+
+    /**
+     * @return The received bytes, positioned at the start of the datagram with the limit at its end
+     */
+    public ByteBuffer getData()
+    {
+        return data;
+    }
+
+    public InetAddress getAddress()
+    {
+        return address;
+    }
+
+    public int getPort()
+    {
+        return port;
+    }
+
+    public int getTargetSessionId()
+    {
+        return targetSessionId;
+    }
+
+    public void setTargetSessionId(int targetSessionId)
+    {
+        this.targetSessionId = targetSessionId;
+    }
+
+    /**
+     * Count an attempt at matchmaking this request
+     * @return The amount of attempts made before this one
+     */
+    int retryMatch()
+    {
+        return matchAttempts++;
+    }
+
+    /**
+     * @return true if another cluster node forwarded this packet, the address is the client it came from
+     */
+    public boolean isFromPeer()
+    {
+        return fromPeer;
+    }
+
+    void markFromPeer()
+    {
+        fromPeer = true;
+    }
+
+    /** Hand this datagram back to the pool it came from, if any */
+    public void release()
+    {
+        if (pool != null)
+        {
+            address = null;
+            targetSessionId = -1;
+            matchAttempts = 0;
+            fromPeer = false;
+            pool.release(this);
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package com.gloomy.server;
+
+import com.gloomy.utils.IdAllocator;
+import com.gloomy.utils.ServerThreads;
+import org.pmw.tinylog.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Forwards game traffic between the clients of a started session, for clients behind NATs that can not reach each
+ * other directly. When a game starts its clients are opened as a Group on one of the relay ports and each client is
+ * handed a ticket, which it puts in front of every datagram it sends to the relay:
+ *
+ *   client to relay   ticket:i64 to:u16 payload    to is the cId of the recipient, or BROADCAST for every other member
+ *   relay to client   from:u8 payload              from is the cId of the sender
+ *
+ * cIds take up all of a u8, so to is wider to leave room for BROADCAST next to every cId a lobby can hand out.
+ *
+ * The relay learns where each client is from the datagrams it sends, not from where the client reached the master
+ * server, as a symmetric NAT maps the relay to a different port. A datagram that is only a header is not forwarded,
+ * clients send one to tell the relay where they are before they have anything to say. A ticket that shows up from a
+ * new endpoint moves the client there, so NAT rebinding does not break the game.
+ *
+ * Each relay port is a channel with its own thread, and a group only ever lives on one port, so a group is only ever
+ * touched by one thread and forwarding takes no locks. A datagram is received into a direct buffer, the header is
+ * rewritten in place and the same buffer is sent on from the byte before the payload, so the payload is never copied
+ * into the heap. Packets and bytes are counted per sender and recipient pair.
+ *
+ * The low bits of a ticket index the member table and the rest are random, so finding the sender is an array read
+ * and a compare and a ticket can not be guessed from another. Groups nobody has sent anything through for
+ * relayIdleTimeoutMillis are closed.
+ */
+public class Relay
+{
+    /** Send to every other member of the group **/
+    public static final int BROADCAST = 0xFFFF;
+
+    /** ticket:i64 to:u16 **/
+    public static final int HEADER_SIZE = 10;
+
+    private static final int TO_OFFSET = 8;
+
+    /** The sender cId is written over the low byte of to, and the datagram is sent on from there **/
+    private static final int FROM_OFFSET = HEADER_SIZE - 1;
+
+    /** cIds are a u8 **/
+    private static final int CLIENT_IDS = 256;
+
+    private static final int INDEX_BITS = 24;
+
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private static final int MAX_DATAGRAM = 65507;
+
+    /** How stale a groups last activity may get before a worker writes it again **/
+    private static final long ACTIVITY_GRANULARITY_MILLIS = 1000;
+
+    private final int firstPort;
+
+    private final long idleTimeoutMillis;
+
+    private final IdAllocator memberIds;
+
+    private final AtomicReferenceArray<Member> members;
+
+    private final Set<Group> groups = ConcurrentHashMap.newKeySet();
+
+    private final Worker[] workers;
+
+    private final AtomicInteger nextWorker = new AtomicInteger();
+
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile boolean running;
+
+    /**
+     * @param firstPort The first relay port, each thread listens on the next one
+     * @param threads The amount of relay ports and threads
+     * @param maxMembers The most clients that can be relayed for at once
+     * @param idleTimeoutMillis Groups that send nothing for this long are closed
+     */
+    public Relay(int firstPort, int threads, int maxMembers, long idleTimeoutMillis)
+    {
+        this.firstPort         = firstPort;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.memberIds         = new IdAllocator((int) Math.min(maxMembers, 1L << INDEX_BITS));
+        this.members           = new AtomicReferenceArray<>(memberIds.capacity());
+        this.workers           = new Worker[Math.max(1, threads)];
+    }
+
+    /**
+     * Bind the relay ports and start forwarding
+     * @param address The address to bind to
+     * @throws IOException if a port can not be bound, nothing is left open
+     */
+    public void start(InetAddress address) throws IOException
+    {
+        try {
+            for (int i = 0; i < workers.length; i++)
+            {
+                DatagramChannel channel = DatagramChannel.open();
+                workers[i] = new Worker(channel);
+                channel.bind(new InetSocketAddress(address, firstPort + i));
+                workers[i].port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+            }
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+
+        running = true;
+        for (int i = 0; i < workers.length; i++)
+            ServerThreads.start("relay-" + workers[i].port, workers[i], false);
+        ServerThreads.start("relay-reaper", this::closeIdleGroups, false);
+    }
+
+    /** Close every relay port, the threads stop as they notice **/
+    public void stop()
+    {
+        running = false;
+        for (Worker worker : workers)
+        {
+            if (worker == null)
+                continue;
+            try {
+                worker.channel.close();
+            } catch (IOException e) {
+                Logger.warn("Could not close relay port: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Open a group for the clients of a session that is starting its game
+     * @param clientIds The cId of every client in the session
+     * @return The group, holding the port and the ticket of each client, or null if the relay is full
+     */
+    public Group open(int... clientIds)
+    {
+        Group group = new Group(workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)], clientIds.length);
+
+        for (int position = 0; position < clientIds.length; position++)
+        {
+            int index = memberIds.allocate();
+            if (index < 0)
+            {
+                group.close();
+                Logger.warn("The relay is full, {} clients get no relay", clientIds.length);
+                return null;
+            }
+
+            long ticket = (random.nextLong() << INDEX_BITS) | index;
+            Member member = new Member(group, clientIds[position], position, ticket);
+            group.add(member);
+            members.set(index, member);
+        }
+
+        groups.add(group);
+        return group;
+    }
+
+    /**
+     * @return The amount of groups being relayed for
+     */
+    public int getGroupCount()
+    {
+        return groups.size();
+    }
+
+    private Member member(long ticket)
+    {
+        Member member = members.get((int) (ticket & INDEX_MASK));
+        return member != null && member.ticket == ticket ? member : null;
+    }
+
+    private void closeIdleGroups()
+    {
+        while (running)
+        {
+            try {
+                Thread.sleep(ACTIVITY_GRANULARITY_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = nowMillis();
+            for (Group group : groups)
+                if (now - group.lastActiveMillis > idleTimeoutMillis)
+                    group.close();
+        }
+    }
+
+    private static long nowMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * The clients of one game, all relayed through the same port
+     */
+    public final class Group
+    {
+        private final Worker worker;
+        private final Member[] byClientId = new Member[CLIENT_IDS];
+        private final Member[] byPosition;
+        /** Indexed by sender position * size + recipient position, only written by the groups worker **/
+        private final long[] packets;
+        private final long[] bytes;
+        private volatile long lastActiveMillis = nowMillis();
+        private int size;
+
+        private Group(Worker worker, int capacity)
+        {
+            this.worker     = worker;
+            this.byPosition = new Member[capacity];
+            this.packets    = new long[capacity * capacity];
+            this.bytes      = new long[capacity * capacity];
+        }
+
+        private void add(Member member)
+        {
+            byClientId[member.clientId & 0xFF] = member;
+            byPosition[size++] = member;
+        }
+
+        /**
+         * @return The relay port the clients of this group send to
+         */
+        public int getPort()
+        {
+            return worker.port;
+        }
+
+        /**
+         * @param clientId The cId of a client in the group
+         * @return The ticket that client sends with, or 0 if it is not in the group
+         */
+        public long getTicket(int clientId)
+        {
+            Member member = clientId >= 0 && clientId < CLIENT_IDS ? byClientId[clientId] : null;
+            return member == null ? 0 : member.ticket;
+        }
+
+        /**
+         * @return The datagrams relayed from one client to another so far
+         */
+        public long getPackets(int fromClientId, int toClientId)
+        {
+            return count(packets, fromClientId, toClientId);
+        }
+
+        /**
+         * @return The payload bytes relayed from one client to another so far
+         */
+        public long getBytes(int fromClientId, int toClientId)
+        {
+            return count(bytes, fromClientId, toClientId);
+        }
+
+        private long count(long[] counters, int fromClientId, int toClientId)
+        {
+            Member from = byClientId[fromClientId & 0xFF];
+            Member to   = byClientId[toClientId & 0xFF];
+            return from == null || to == null ? 0 : counters[from.position * byPosition.length + to.position];
+        }
+
+        /** Stop relaying for this group and free its tickets, closing twice does nothing **/
+        public void close()
+        {
+            groups.remove(this);
+            for (int i = 0; i < size; i++)
+            {
+                int index = (int) (byPosition[i].ticket & INDEX_MASK);
+                if (members.compareAndSet(index, byPosition[i], null))
+                    memberIds.free(index);
+            }
+        }
+
+        /** Called by the worker for every datagram relayed **/
+        private void forward(Member sender, ByteBuffer datagram, int to) throws IOException
+        {
+            int payload = datagram.remaining() - HEADER_SIZE;
+            datagram.put(FROM_OFFSET, (byte) sender.clientId);
+            int row = sender.position * byPosition.length;
+
+            if (to != BROADCAST)
+            {
+                Member recipient = to < CLIENT_IDS ? byClientId[to] : null;
+                if (recipient != null && recipient != sender && recipient.endpoint != null)
+                    send(datagram, recipient, row, payload);
+                return;
+            }
+
+            for (int i = 0; i < size; i++)
+                if (byPosition[i] != sender && byPosition[i].endpoint != null)
+                    send(datagram, byPosition[i], row, payload);
+        }
+
+        private void send(ByteBuffer datagram, Member recipient, int row, int payload) throws IOException
+        {
+            datagram.position(FROM_OFFSET);
+            worker.channel.send(datagram, recipient.endpoint);
+            packets[row + recipient.position]++;
+            bytes[row + recipient.position] += payload;
+        }
+    }
+
+    private static final class Member
+    {
+        private final Group group;
+        private final int clientId;
+        private final int position;
+        private final long ticket;
+        /** Where the client last sent from, only touched by the groups worker **/
+        private InetSocketAddress endpoint;
+
+        Member(Group group, int clientId, int position, long ticket)
+        {
+            this.group    = group;
+            this.clientId = clientId;
+            this.position = position;
+            this.ticket   = ticket;
+        }
+    }
+
+    /**
+     * Receives and forwards every datagram of one relay port
+     */
+    private final class Worker implements Runnable
+    {
+        private final DatagramChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        private int port;
+
+        Worker(DatagramChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run()
+        {
+            while (running)
+            {
+                try {
+                    buffer.clear();
+                    InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                    buffer.flip();
+                    relay(sender);
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    Logger.warn("Relay port {} failed to forward a datagram: {}", port, e.getMessage());
+                }
+            }
+        }
+
+        private void relay(InetSocketAddress from) throws IOException
+        {
+            if (buffer.remaining() < HEADER_SIZE)
+                return;
+
+            Member sender = member(buffer.getLong(0));
+            if (sender == null || sender.group.worker != this)
+                return;
+
+            if (!from.equals(sender.endpoint))
+                sender.endpoint = from;
+
+            Group group = sender.group;
+            long now = nowMillis();
+            if (now - group.lastActiveMillis >= ACTIVITY_GRANULARITY_MILLIS)
+                group.lastActiveMillis = now;
+
+            if (buffer.remaining() > HEADER_SIZE)
+                group.forward(sender, buffer, buffer.getShort(TO_OFFSET) & 0xFFFF);
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package com.gloomy.server;
 
+import com.gloomy.protocol.PacketFragmenter;
+import com.gloomy.session.EgressScheduler;
 import com.gloomy.session.Session;
 import com.gloomy.session.Client;
+import com.gloomy.session.OpenSessionIndex;
+import com.gloomy.session.SessionPool;
+import com.gloomy.utils.IdAllocator;
+import com.gloomy.utils.ServerThreads;
 import org.pmw.tinylog.Configurator;
 import org.pmw.tinylog.Logger;
 
@@ -9,32 +15,53 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Paths;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class Server
 {
     private final int PORT;
-    private final int DATA_BUFFER_SIZE = 512;
-    private final int maxSessions = 256;
+    private final int DATA_BUFFER_SIZE;
 
+    private final ServerConfig config;
     private byte[] byteBuffer;
-    private boolean listening;
+    private volatile boolean listening;
     private DatagramSocket socket;
+    private DatagramChannel channel;
+    private ReceiveBufferPool receivePool;
     private DatagramPacket dataPacket;
 
-    private final List<Session> sessions = Collections.synchronizedList(new ArrayList<>());
-    private final ConcurrentLinkedQueue<Integer> availableSessionIds = new ConcurrentLinkedQueue<>();
+    private final SessionDirectory sessions = new SessionDirectory(256);
+    private final OpenSessionIndex openSessions = new OpenSessionIndex();
+    private final EndpointIndex endpoints = new EndpointIndex(2048);
+    private final IdAllocator sessionIds;
+    private final Cluster cluster;
+    private final SessionBrowser sessionBrowser;
+    private SessionJournal journal;
+    private Relay relay;
+    private SessionPool sessionPool;
 
-    private final PacketWorkflowHandler packetHandler = new PacketWorkflowHandler(this);
+    private final PacketWorkflowHandler packetHandler;
+    private final EgressScheduler egressScheduler;
+    private final PacketFragmenter fragmenter;
+    private final FragmentReassembler reassembler;
 
-    private Server(int port)
+    private Server(int port, ServerConfig config)
     {
         Configurator.currentConfig().formatPattern("{level}: {message|indent=4}").activate();
-        this.PORT = port;
-
-        for (int i = 0; i < maxSessions; i++)
-            availableSessionIds.add(i);
+        this.PORT             = port;
+        this.config           = config;
+        this.DATA_BUFFER_SIZE = config.getReceiveBufferSize();
+        this.packetHandler    = new PacketWorkflowHandler(this);
+        this.egressScheduler  = new EgressScheduler(config.getEgressThreads(), config.isVirtualThreads(),
+                                                    config.getCoalesceWindowMillis(), config.isReliableDelivery());
+        this.fragmenter       = new PacketFragmenter(config.getMtu());
+        this.reassembler      = new FragmentReassembler(config.getFragmentTimeoutMillis(), config.getReassemblyBufferBytes());
+        this.cluster          = new Cluster(this);
+        this.sessionIds       = new IdAllocator(cluster.getLocalCapacity());
+        this.sessionBrowser   = new SessionBrowser(this);
     }
 
     /**
@@ -44,29 +71,180 @@ public class Server
      */
     public static Server Create(int port)
     {
-        return new Server(port);
+        return new Server(port, new ServerConfig());
+    }
+
+    /**
+     * Create an instance of a Server listening on the Given Port using the provided configuration
+     * @param port To Listen on
+     * @param config The settings this server should run with
+     * @return
+     */
+    public static Server Create(int port, ServerConfig config)
+    {
+        return new Server(port, config);
     }
 
     /** Start the server **/
     public void start()
     {
         try {
-            socket = new DatagramSocket(PORT, InetAddress.getByName("127.0.0.1"));
+            if (config.getReceiveMode() == ReceiveMode.CHANNEL)
+            {
+                receivePool = new ReceiveBufferPool(config.getReceivePoolSize(), DATA_BUFFER_SIZE);
+                channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), PORT));
+                socket = channel.socket(); // Sessions send through the channels socket adaptor
+            }
+            else
+                socket = new DatagramSocket(PORT, InetAddress.getByName("127.0.0.1"));
         } catch (IOException e) {
             e.printStackTrace();
         }
 
         System.out.println("Server starting listening at port " + PORT);
 
+        if (config.isVirtualThreads() && !ServerThreads.virtualThreadsSupported())
+            Logger.warn("Virtual threads were requested but this JVM does not support them, using platform threads");
+        if (config.isBusySpinDowngraded())
+            Logger.warn("BUSY_SPIN would pin the carrier threads of virtual threads, waiting with YIELDING instead");
+
+        if (config.getSessionPoolSize() > 0)
+        {
+            sessionPool = new SessionPool(this, config.getSessionPoolSize());
+            sessionPool.prewarm();
+        }
+
         listening = true;
-        Thread listenThread = new Thread(() -> listen());
+        egressScheduler.start();
         packetHandler.start();
-        listenThread.start();
+        openJournal();
+        cluster.start();
+        sessionBrowser.start();
+        startRelay();
+        ServerThreads.start("server-listener", this::listen, config.isVirtualThreads());
+    }
+
+    /**
+     * Stop the server. The socket is closed and the listener, the workflow shards and the egress senders stop once
+     * they finish what they are on. Sessions are not shut down, a journal keeps them for the next start
+     */
+    public void stop()
+    {
+        listening = false;
+        cluster.stop();
+        sessionBrowser.stop();
+        packetHandler.shutdown();
+        egressScheduler.shutdown();
+
+        try {
+            egressScheduler.awaitTermination(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (channel != null)
+        {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Logger.warn("Could not close the server channel: {}", e.getMessage());
+            }
+        }
+        else if (socket != null)
+            socket.close();
+
+        if (relay != null)
+            relay.stop();
+
+        if (journal != null)
+        {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Logger.warn("Could not close the session journal: {}", e.getMessage());
+            }
+        }
+
+        System.out.println("Server stopped listening at port " + PORT);
+    }
+
+    /**
+     * Start the relay if one is configured. Games start without a relay if its ports can not be bound
+     */
+    private void startRelay()
+    {
+        if (config.getRelayPort() <= 0)
+            return;
+
+        Relay relay = new Relay(config.getRelayPort(), config.getRelayThreads(), config.getRelayMaxClients(),
+                                config.getRelayIdleTimeoutMillis());
+        try {
+            relay.start(InetAddress.getByName("127.0.0.1"));
+            this.relay = relay;
+        } catch (IOException e) {
+            Logger.error(e, "Could not bind the relay at port {}, games will start without one", config.getRelayPort());
+        }
+    }
+
+    /**
+     * Open the session journal if one is configured and bring back the sessions it recorded, before any packet is
+     * received. The server runs without a journal if it can not be opened
+     */
+    private void openJournal()
+    {
+        if (config.getJournalDirectory() == null)
+            return;
+
+        try {
+            journal = SessionJournal.Open(Paths.get(config.getJournalDirectory()), config.getJournalBytes(),
+                                          config.getSnapshotIntervalMillis());
+        } catch (IOException e) {
+            Logger.error(e, "Could not open the session journal in {}, sessions will not survive a restart",
+                         config.getJournalDirectory());
+            return;
+        }
+
+        long started = System.nanoTime();
+        for (SessionJournal.SessionImage image : journal.getRecoveredSessions())
+            restoreSession(image);
+        Logger.info("Restored {} sessions in {}ms", sessions.size(), (System.nanoTime() - started) / 1000000);
+    }
+
+    private void restoreSession(SessionJournal.SessionImage image)
+    {
+        int localId = cluster.toLocalId(image.getSessionId());
+        if (localId < 0 || !sessionIds.claim(localId))
+        {
+            Logger.warn("Session {} could not be restored, its id is out of range, taken or another nodes", image.getSessionId());
+            journal.sessionShutdown(image.getSessionId());
+            return;
+        }
+
+        Session session = Session.Restore(image, this);
+        if (session.getClients().isEmpty())
+        {
+            sessionIds.free(localId);
+            journal.sessionShutdown(image.getSessionId());
+            return;
+        }
+
+        sessions.add(session);
+        packetHandler.trackRestored(session);
     }
 
     private void listen()
     {
         Logger.info("Listening");
+        if (config.getReceiveMode() == ReceiveMode.CHANNEL)
+            listenOnChannel();
+        else
+            listenOnSocket();
+    }
+
+    /** Receive loop for ReceiveMode.SOCKET. Allocates a new buffer and packet for each datagram **/
+    private void listenOnSocket()
+    {
         while (listening)
         {
             byteBuffer = new byte[DATA_BUFFER_SIZE];
@@ -76,49 +254,99 @@ public class Server
                 socket.receive(dataPacket);
                 System.out.println("Data Packet Recieved");
             } catch (IOException e) {
+                if (socket.isClosed())
+                    return;
                 e.printStackTrace();
+                continue;
             }
 
-            packetHandler.addWork(dataPacket);
+            dispatch(ReceivedDatagram.Wrap(dataPacket));
         }
     }
 
     /**
-     * Creates a new game session if available session ids exist
-     * @param host The Client instance representing the host of the session
+     * Receive loop for ReceiveMode.CHANNEL. Datagrams are read into buffers taken from the receive pool, and the
+     * workflow handler releases each buffer back to the pool once the packet has been processed.
      */
-    public synchronized void createNewSession(Client host)
+    private void listenOnChannel()
     {
-        if (availableSessionIds.isEmpty())
-            return;
+        while (listening)
+        {
+            ReceivedDatagram datagram;
+            try {
+                datagram = receivePool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
 
-        Session newSession = Session.Create(host,this, availableSessionIds.poll());
-        sessions.add(newSession);
+            try {
+                InetSocketAddress sender = (InetSocketAddress) channel.receive(datagram.prepareForReceive());
+                datagram.completeReceive(sender);
+            } catch (IOException e) {
+                datagram.release();
+                if (!channel.isOpen())
+                    return;
+                e.printStackTrace();
+                continue;
+            }
 
-        System.out.println("New Session Has Been Created By " + host.getUserName());
+            dispatch(datagram);
+        }
     }
 
     /**
-     * Cycle through sessions and find the first session that is available to have clients join
-     * @return The Session instance that is open
+     * Hand a received datagram to the workflow handler. Fragments are held back until their packet is complete, and
+     * packets from other cluster nodes are unwrapped
+     * @param datagram The datagram that was just received
      */
-    public synchronized Session findOpenSession()
+    private void dispatch(ReceivedDatagram datagram)
     {
-        synchronized (sessions)
+        if (PacketFragmenter.isFragment(datagram.getData()))
         {
-            Iterator i = sessions.iterator(); // Must be in synchronized block
-            Session sessionToCheck;
-            while (i.hasNext())
-            {
-                sessionToCheck = (Session) i.next();
-                if (sessionToCheck.isOpen())
-                {
-                    return sessionToCheck;
-                }
-            }
+            datagram = reassembler.accept(datagram);
+            if (datagram == null)
+                return;
+        }
+        else if (Cluster.isClusterPacket(datagram.getData()))
+        {
+            datagram = cluster.receive(datagram);
+            if (datagram == null)
+                return;
+        }
+
+        packetHandler.addWork(datagram);
+    }
 
+    /**
+     * Creates a new game session if available session ids exist. In a cluster only ids this node owns are used
+     * @param host The Client instance representing the host of the session
+     * @return The created session, or null if the server is out of session ids
+     */
+    public Session createNewSession(Client host)
+    {
+        int localId = sessionIds.allocate();
+        if (localId < 0)
             return null;
-        }
+
+        int sessionId = cluster.toSessionId(localId);
+
+        Session newSession = sessionPool != null
+                ? sessionPool.open(host, sessionId, config.getLobbyMaxClients(), config.getLobbyTeams())
+                : Session.CreateAndConfigure(host, this, sessionId, config.getLobbyMaxClients(), config.getLobbyTeams());
+        sessions.add(newSession);
+
+        System.out.println("New Session Has Been Created By " + host.getUserName());
+        return newSession;
+    }
+
+    /**
+     * Find a session that is available to have clients join, preferring the one closest to full
+     * @return The Session instance that is open, or null if every session is full
+     */
+    public Session findOpenSession()
+    {
+        return openSessions.pickOpenSession();
     }
 
 
@@ -129,7 +357,9 @@ public class Server
     public void sessionShutdown(Session session) {
         boolean success = sessions.remove(session);
         if (success) {
-            availableSessionIds.add(session.getSessionId());
+            if (journal != null)
+                journal.sessionShutdown(session.getSessionId());
+            sessionIds.free(cluster.toLocalId(session.getSessionId()));
             session.shutdown();
             Logger.info("Session {} has been shutdown.", session.getSessionId());
         }
@@ -142,30 +372,119 @@ public class Server
         return PORT;
     }
 
+    public ServerConfig getConfig()
+    {
+        return config;
+    }
+
+    /**
+     * @return The amount of sessions currently running on this server
+     */
+    public int getSessionCount()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * @return The lobby browser answering LIST_SESSIONS
+     */
+    public SessionBrowser getSessionBrowser()
+    {
+        return sessionBrowser;
+    }
+
+    /**
+     * @return The relay games are started on, or null if this server does not run one
+     */
+    public Relay getRelay()
+    {
+        return relay;
+    }
+
+    /**
+     * @return The cluster this server is a node of, a cluster of one if it runs alone
+     */
+    public Cluster getCluster()
+    {
+        return cluster;
+    }
+
+    /**
+     * @return A snapshot of the sessions currently running on this server
+     */
     public List<Session> getSessions()
     {
-        return sessions;
+        return sessions.snapshot();
+    }
+
+    /**
+     * @return true from start until stop
+     */
+    public boolean isListening()
+    {
+        return listening;
     }
 
     public DatagramSocket getSocket() {
         return socket;
     }
 
+    /**
+     * @return The journal sessions record their changes to, or null if this server does not journal its sessions
+     */
+    public SessionJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * @return The pool new sessions are taken from, or null if sessions are not pooled
+     */
+    public SessionPool getSessionPool()
+    {
+        return sessionPool;
+    }
+
+    /**
+     * @return The handler received packets are processed by
+     */
+    public PacketWorkflowHandler getPacketHandler()
+    {
+        return packetHandler;
+    }
+
+    public EgressScheduler getEgressScheduler() {
+        return egressScheduler;
+    }
+
+    public PacketFragmenter getFragmenter() {
+        return fragmenter;
+    }
+
+    /**
+     * @return The index of sessions that still have room, kept up to date by the sessions themselves
+     */
+    public OpenSessionIndex getOpenSessions() {
+        return openSessions;
+    }
+
+    /**
+     * @return The index of which endpoint is which client, shared by every session on this server
+     */
+    public EndpointIndex getEndpoints() {
+        return endpoints;
+    }
+
     /**
      * Get the Session instance associated with the specified sessionId
      * @param senderSessionId The session Id to find the Session of
      * @return The found session, or null if the session was not found
      */
     public Session getSession(int senderSessionId) {
+        Session session = sessions.get(senderSessionId);
 
-        synchronized (sessions) {
-            for (Session session: sessions) {
-                if (session.getSessionId() == senderSessionId)
-                    return session;
-            }
-            Logger.warn("Host sent disconnect message, but no session found with the given host id");
-            return null;
-        }
+        if (session == null)
+            Logger.warn("No session found with the id {}", senderSessionId);
+        return session;
     }
 
 }
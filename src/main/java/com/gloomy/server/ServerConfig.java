@@ -0,0 +1,501 @@
+package com.gloomy.server;
+
+import com.gloomy.protocol.BinaryCodec;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Holds the tunable settings of a Server. Setters return this instance so a config can be built in one statement
+ * and handed to Server.Create
+ */
+public class ServerConfig
+{
+    private ReceiveMode receiveMode   = ReceiveMode.SOCKET;
+    private int receiveBufferSize     = 512;
+    private int receivePoolSize       = 1024;
+    private int egressThreads         = 2;
+    private boolean virtualThreads    = false;
+    private int workflowShards        = Runtime.getRuntime().availableProcessors();
+    private int mtu                   = 508;
+    private int fragmentTimeoutMillis = 2000;
+    private int reassemblyBufferBytes = 256 * 1024;
+    private int coalesceWindowMillis  = -1;
+    private boolean reliableDelivery  = false;
+    private int clientTimeoutMillis   = 0;
+    private int maxSessions           = 1 << 24;
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private String journalDirectory   = null;
+    private int journalBytes          = 4 * 1024 * 1024;
+    private int snapshotIntervalMillis = 30000;
+    private List<InetSocketAddress> clusterNodes = Collections.emptyList();
+    private int clusterSelf           = 0;
+    private int clusterStatusIntervalMillis = 250;
+    private int sessionListIntervalMillis = 1000;
+    private int relayPort             = 0;
+    private int relayThreads          = 1;
+    private int relayMaxClients       = 1 << 16;
+    private int relayIdleTimeoutMillis = 30000;
+    private int lobbyMaxClients       = 6;
+    private int lobbyTeams            = 2;
+    private int rosterPageSize        = 32;
+    private int sessionPoolSize       = 64;
+
+    /**
+     * @param receiveMode How the server should receive datagrams
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setReceiveMode(ReceiveMode receiveMode)
+    {
+        this.receiveMode = receiveMode;
+        return this;
+    }
+
+    /**
+     * @param receiveBufferSize The largest datagram in bytes that the server will read. Anything bigger is truncated
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setReceiveBufferSize(int receiveBufferSize)
+    {
+        this.receiveBufferSize = receiveBufferSize;
+        return this;
+    }
+
+    /**
+     * @param receivePoolSize The amount of receive buffers that can be in flight between the listener and the
+     *                        workflow handler at once. The listener waits for a free buffer when all are in use.
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setReceivePoolSize(int receivePoolSize)
+    {
+        this.receivePoolSize = receivePoolSize;
+        return this;
+    }
+
+    /**
+     * @param egressThreads The amount of threads that send outgoing messages for every session on the server
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setEgressThreads(int egressThreads)
+    {
+        this.egressThreads = egressThreads;
+        return this;
+    }
+
+    /**
+     * @param virtualThreads true to run the listener, workflow handler and egress senders on virtual threads. Needs
+     *                       a Java 21 runtime, older runtimes fall back to platform threads
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setVirtualThreads(boolean virtualThreads)
+    {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * @param workflowShards The amount of threads that process packets for sessions. Every session belongs to one
+     *                       of them, matchmaking runs on a thread of its own on top of these
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setWorkflowShards(int workflowShards)
+    {
+        this.workflowShards = Math.max(1, workflowShards);
+        return this;
+    }
+
+    /**
+     * @param mtu The largest datagram in bytes the server sends. Rosters are packed into datagrams of up to this
+     *            size and any other message that is bigger is fragmented. The default of 508 is the largest udp
+     *            payload every ipv4 path has to deliver without ip fragmentation
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setMtu(int mtu)
+    {
+        this.mtu = mtu;
+        return this;
+    }
+
+    /**
+     * @param fragmentTimeoutMillis How long a partly received fragmented packet is kept waiting for its missing
+     *                              fragments before it is dropped
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setFragmentTimeoutMillis(int fragmentTimeoutMillis)
+    {
+        this.fragmentTimeoutMillis = fragmentTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param reassemblyBufferBytes The most bytes of partly received fragmented packets held at once. When a new
+     *                              fragment would go over this the oldest partial packets are dropped
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setReassemblyBufferBytes(int reassemblyBufferBytes)
+    {
+        this.reassemblyBufferBytes = reassemblyBufferBytes;
+        return this;
+    }
+
+    /**
+     * @param coalesceWindowMillis How long a session waits after its first queued message before sending, so that
+     *                             everything it queues in that window is bundled per client into as few datagrams
+     *                             as the mtu allows. 0 only bundles messages that were already queued together and
+     *                             a negative window turns bundling off. Clients must understand PacketBundler
+     *                             envelopes before this is turned on
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setCoalesceWindowMillis(int coalesceWindowMillis)
+    {
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        return this;
+    }
+
+    /**
+     * @param reliableDelivery true to send control messages such as JOIN_SUCCESS and HOST_CHANGE in sequenced
+     *                         frames that are retransmitted until the client acknowledges them. Clients must send
+     *                         ACK packets, or piggyback ack fields, before this is turned on
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setReliableDelivery(boolean reliableDelivery)
+    {
+        this.reliableDelivery = reliableDelivery;
+        return this;
+    }
+
+    /**
+     * @param clientTimeoutMillis How long a client may go without sending anything before it is disconnected from
+     *                            its session, as if it had sent CLIENT_DISCONNECT. Clients that have nothing to
+     *                            send keep themselves alive with HEARTBEAT packets. 0 or less never times clients
+     *                            out, which is the default as older clients do not send heartbeats
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setClientTimeoutMillis(int clientTimeoutMillis)
+    {
+        this.clientTimeoutMillis = clientTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @param maxSessions The most sessions the server runs at once. Session ids and the memory behind them are only
+     *                    taken as sessions are created, so a high limit costs nothing until it is reached
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setMaxSessions(int maxSessions)
+    {
+        this.maxSessions = Math.max(1, maxSessions);
+        return this;
+    }
+
+    /**
+     * @param waitStrategy How workflow shards wait for packets, and the listener for room in a full shard. Anything
+     *                     but BLOCKING keeps cores busy while the server is idle. BUSY_SPIN runs as YIELDING on
+     *                     virtual threads, a spinning virtual thread would never give its carrier thread up
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setWaitStrategy(WaitStrategy waitStrategy)
+    {
+        this.waitStrategy = waitStrategy;
+        return this;
+    }
+
+    /**
+     * @param journalDirectory The directory the server journals its sessions to, so a restarted server picks up the
+     *                         lobbies it was running. Null, the default, keeps sessions in memory only
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setJournalDirectory(String journalDirectory)
+    {
+        this.journalDirectory = journalDirectory;
+        return this;
+    }
+
+    /**
+     * @param journalBytes The size of the memory mapped session journal. A snapshot is taken whenever it fills up
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setJournalBytes(int journalBytes)
+    {
+        this.journalBytes = journalBytes;
+        return this;
+    }
+
+    /**
+     * @param snapshotIntervalMillis How often every session is written to the snapshot and the journal started over
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setSnapshotIntervalMillis(int snapshotIntervalMillis)
+    {
+        this.snapshotIntervalMillis = Math.max(1, snapshotIntervalMillis);
+        return this;
+    }
+
+    /**
+     * @param clusterNodes The address of every master server node in the cluster, in the same order on every node.
+     *                     Empty, the default, runs a single server
+     * @param clusterSelf The index of this server in the list
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setCluster(List<InetSocketAddress> clusterNodes, int clusterSelf)
+    {
+        this.clusterNodes = Collections.unmodifiableList(new ArrayList<>(clusterNodes));
+        this.clusterSelf  = clusterSelf;
+        return this;
+    }
+
+    /**
+     * @param clusterStatusIntervalMillis How often cluster nodes tell each other how much room they have
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setClusterStatusIntervalMillis(int clusterStatusIntervalMillis)
+    {
+        this.clusterStatusIntervalMillis = Math.max(1, clusterStatusIntervalMillis);
+        return this;
+    }
+
+    /**
+     * @param sessionListIntervalMillis How often the lobby browser listing is rebuilt, browsing clients see sessions
+     *                                  as they were up to this long ago
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setSessionListIntervalMillis(int sessionListIntervalMillis)
+    {
+        this.sessionListIntervalMillis = Math.max(1, sessionListIntervalMillis);
+        return this;
+    }
+
+    /**
+     * @param relayPort The first port of the relay that forwards game traffic for clients that can not connect to
+     *                  each other, or 0 to not run a relay
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setRelayPort(int relayPort)
+    {
+        this.relayPort = relayPort;
+        return this;
+    }
+
+    /**
+     * @param relayThreads The amount of relay ports, counting up from the relay port, each forwarded by its own thread
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setRelayThreads(int relayThreads)
+    {
+        this.relayThreads = Math.max(1, relayThreads);
+        return this;
+    }
+
+    /**
+     * @param relayMaxClients The most clients the relay forwards for at once, games started beyond it get no relay
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setRelayMaxClients(int relayMaxClients)
+    {
+        this.relayMaxClients = Math.max(1, relayMaxClients);
+        return this;
+    }
+
+    /**
+     * @param relayIdleTimeoutMillis How long a game may send nothing through the relay before its slots are freed
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setRelayIdleTimeoutMillis(int relayIdleTimeoutMillis)
+    {
+        this.relayIdleTimeoutMillis = Math.max(1, relayIdleTimeoutMillis);
+        return this;
+    }
+
+    /**
+     * @param maxClients The most clients a session started by matchmaking holds, at most Session.MAX_CLIENT_IDS.
+     *                   Sessions holding more than a roster page are large lobbies
+     * @param teams The amount of teams the clients of a session are spread over
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setLobbySize(int maxClients, int teams)
+    {
+        this.lobbyMaxClients = Math.max(1, maxClients);
+        this.lobbyTeams      = Math.max(1, teams);
+        return this;
+    }
+
+    /**
+     * @param rosterPageSize The clients on one page of the roster of a large lobby. Clients joining a large lobby are
+     *                       sent the first page and ask for the others, instead of being sent the whole roster
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setRosterPageSize(int rosterPageSize)
+    {
+        this.rosterPageSize = Math.max(1, Math.min(rosterPageSize, BinaryCodec.MAX_LIST_SIZE));
+        return this;
+    }
+
+    /**
+     * @param sessionPoolSize The most shut down sessions kept to be reused for new lobbies, created when the server
+     *                        starts. 0 creates every session from scratch
+     * @return This ServerConfig instance
+     */
+    public ServerConfig setSessionPoolSize(int sessionPoolSize)
+    {
+        this.sessionPoolSize = Math.max(0, sessionPoolSize);
+        return this;
+    }
+
+    public ReceiveMode getReceiveMode()
+    {
+        return receiveMode;
+    }
+
+    public int getReceiveBufferSize()
+    {
+        return receiveBufferSize;
+    }
+
+    public int getReceivePoolSize()
+    {
+        return receivePoolSize;
+    }
+
+    public int getEgressThreads()
+    {
+        return egressThreads;
+    }
+
+    public boolean isVirtualThreads()
+    {
+        return virtualThreads;
+    }
+
+    public int getWorkflowShards()
+    {
+        return workflowShards;
+    }
+
+    public int getMtu()
+    {
+        return mtu;
+    }
+
+    public int getFragmentTimeoutMillis()
+    {
+        return fragmentTimeoutMillis;
+    }
+
+    public int getReassemblyBufferBytes()
+    {
+        return reassemblyBufferBytes;
+    }
+
+    public int getCoalesceWindowMillis()
+    {
+        return coalesceWindowMillis;
+    }
+
+    public boolean isReliableDelivery()
+    {
+        return reliableDelivery;
+    }
+
+    public int getClientTimeoutMillis()
+    {
+        return clientTimeoutMillis;
+    }
+
+    public int getMaxSessions()
+    {
+        return maxSessions;
+    }
+
+    /**
+     * @return The wait strategy the server runs with, YIELDING in place of BUSY_SPIN on virtual threads
+     */
+    public WaitStrategy getWaitStrategy()
+    {
+        return waitStrategy == WaitStrategy.BUSY_SPIN && virtualThreads ? WaitStrategy.YIELDING : waitStrategy;
+    }
+
+    /**
+     * @return true if BUSY_SPIN was asked for on virtual threads and the server falls back to YIELDING
+     */
+    public boolean isBusySpinDowngraded()
+    {
+        return waitStrategy == WaitStrategy.BUSY_SPIN && virtualThreads;
+    }
+
+    public String getJournalDirectory()
+    {
+        return journalDirectory;
+    }
+
+    public int getJournalBytes()
+    {
+        return journalBytes;
+    }
+
+    public int getSnapshotIntervalMillis()
+    {
+        return snapshotIntervalMillis;
+    }
+
+    public List<InetSocketAddress> getClusterNodes()
+    {
+        return clusterNodes;
+    }
+
+    public int getClusterSelf()
+    {
+        return clusterSelf;
+    }
+
+    public int getClusterStatusIntervalMillis()
+    {
+        return clusterStatusIntervalMillis;
+    }
+
+    public int getSessionListIntervalMillis()
+    {
+        return sessionListIntervalMillis;
+    }
+
+    public int getRelayPort()
+    {
+        return relayPort;
+    }
+
+    public int getRelayThreads()
+    {
+        return relayThreads;
+    }
+
+    public int getRelayMaxClients()
+    {
+        return relayMaxClients;
+    }
+
+    public int getRelayIdleTimeoutMillis()
+    {
+        return relayIdleTimeoutMillis;
+    }
+
+    public int getLobbyMaxClients()
+    {
+        return lobbyMaxClients;
+    }
+
+    public int getLobbyTeams()
+    {
+        return lobbyTeams;
+    }
+
+    public int getRosterPageSize()
+    {
+        return rosterPageSize;
+    }
+
+    public int getSessionPoolSize()
+    {
+        return sessionPoolSize;
+    }
+}
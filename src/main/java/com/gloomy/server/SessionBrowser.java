@@ -0,0 +1,237 @@
+package com.gloomy.server;
+
+import com.gloomy.protocol.BinaryCodec;
+import com.gloomy.protocol.WireFormat;
+import com.gloomy.session.Client;
+import com.gloomy.session.Session;
+import com.gloomy.utils.GloomyNetMessageBuilder;
+import com.gloomy.utils.ServerThreads;
+import org.pmw.tinylog.Logger;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Answers LIST_SESSIONS, the lobby browser, without going near the structures matchmaking works on. Every
+ * sessionListIntervalMillis a background thread reads the live sessions once and publishes an immutable Listing of
+ * them, ordered by free slots with the sessions closest to full first. Queries only ever read the current listing
+ * through a volatile reference, so a browsing client never takes a lock and never sees a listing change under it.
+ *
+ * A query filters on the minimum free slots a party needs, which is a suffix of the listing, and asks for a page.
+ * The pages of a filter are packed into datagrams that fit the MTU and encoded the first time that filter is asked
+ * for in a format, then kept with the listing, so repeated queries until the next rebuild are a map lookup and a
+ * send.
+ */
+public class SessionBrowser
+{
+    private final Server owningServer;
+
+    private volatile Listing listing = new Listing(Collections.emptyList());
+
+    private volatile boolean running;
+
+    private volatile Thread rebuildThread;
+
+    /**
+     * @param owningServer The server whose sessions are listed
+     */
+    public SessionBrowser(Server owningServer)
+    {
+        this.owningServer = owningServer;
+    }
+
+    /**
+     * Build the first listing and start rebuilding it every sessionListIntervalMillis
+     */
+    public void start()
+    {
+        rebuild();
+        running = true;
+        rebuildThread = ServerThreads.start("session-browser", this::rebuildPeriodically, false);
+    }
+
+    /**
+     * Stop rebuilding the listing, waiting for the rebuild thread to finish. The last listing is still answered from
+     */
+    public void stop()
+    {
+        running = false;
+        Thread thread = rebuildThread;
+        if (thread == null)
+            return;
+
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Take a new listing of the servers sessions, replacing the old one and the pages cached with it
+     */
+    public void rebuild()
+    {
+        List<Map<String, Object>> entries = new ArrayList<>();
+        for (Session session : owningServer.getSessions())
+        {
+            Client host = session.getHost();
+            int clients = session.getClients().size();
+            if (host == null || clients == 0)
+                continue;
+
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("sId", session.getSessionId());
+            entry.put("n", clients);
+            entry.put("max", session.getMaxClients());
+            entry.put("host", host.getUserName());
+            entries.add(entry);
+        }
+
+        entries.sort((a, b) -> freeSlots(a) != freeSlots(b) ? Integer.compare(freeSlots(a), freeSlots(b))
+                                                            : Integer.compare((int) a.get("sId"), (int) b.get("sId")));
+        listing = new Listing(entries);
+    }
+
+    /**
+     * @param minFreeSlots Only sessions with at least this many free slots are listed
+     * @param page The page to get, pages past the last give the last page
+     * @param format The format to encode the page in
+     * @return The encoded SESSION_LIST page. There is always at least one page, an empty listing has one empty page
+     */
+    public byte[] getPage(int minFreeSlots, int page, WireFormat format)
+    {
+        byte[][] pages = listing.pages(Math.max(0, minFreeSlots), format, owningServer.getConfig().getMtu());
+        return pages[Math.min(Math.max(0, page), pages.length - 1)];
+    }
+
+    /**
+     * Send a client the page it asked for
+     * @param address The address the query came from
+     * @param port The port the query came from
+     * @param minFreeSlots Only sessions with at least this many free slots are listed
+     * @param page The page to send
+     * @param format The format the client speaks
+     */
+    public void answer(InetAddress address, int port, int minFreeSlots, int page, WireFormat format)
+    {
+        byte[] data = getPage(minFreeSlots, page, format);
+        try {
+            owningServer.getSocket().send(new DatagramPacket(data, data.length, address, port));
+        } catch (IOException e) {
+            Logger.warn("Could not send the session list to {}:{}: {}", address, port, e.getMessage());
+        }
+    }
+
+    private void rebuildPeriodically()
+    {
+        int interval = owningServer.getConfig().getSessionListIntervalMillis();
+        while (running)
+        {
+            try {
+                Thread.sleep(interval);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            rebuild();
+        }
+    }
+
+    private static int freeSlots(Map<String, Object> entry)
+    {
+        return (int) entry.get("max") - (int) entry.get("n");
+    }
+
+    /**
+     * The sessions as they were at one rebuild, never changed once published. Encoded pages are added to its cache
+     * as filters are asked for
+     */
+    private static final class Listing
+    {
+        /** Ordered by free slots, fewest first **/
+        private final List<Map<String, Object>> entries;
+
+        /** Pages keyed by filter and format **/
+        private final ConcurrentHashMap<Integer, byte[][]> pages = new ConcurrentHashMap<>();
+
+        Listing(List<Map<String, Object>> entries)
+        {
+            this.entries = entries;
+        }
+
+        byte[][] pages(int minFreeSlots, WireFormat format, int mtu)
+        {
+            int filter = Math.min(minFreeSlots, Session.MAX_CLIENT_IDS);
+            return pages.computeIfAbsent(filter * 2 + format.ordinal(), key -> encode(firstWithRoom(filter), format, mtu));
+        }
+
+        /** Binary search for the first entry with at least minFreeSlots free **/
+        private int firstWithRoom(int minFreeSlots)
+        {
+            int low = 0, high = entries.size();
+            while (low < high)
+            {
+                int middle = (low + high) >>> 1;
+                if (freeSlots(entries.get(middle)) < minFreeSlots)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        /** Pack the entries from start on into pages by encoded size, the same way rosters are packed **/
+        private byte[][] encode(int start, WireFormat format, int mtu)
+        {
+            // The most digits page numbers can take, so no page outgrows the budget once they are filled in
+            byte[] empty  = pageBuilder(0xFFFF, 0xFFFF, new ArrayList<>()).buildBytes(format);
+            int budget    = mtu - empty.length;
+            int separator = format == WireFormat.JSON ? 1 : 0;
+            int maxCount  = format == WireFormat.BINARY ? BinaryCodec.MAX_LIST_SIZE : Integer.MAX_VALUE;
+
+            List<List<Map<String, Object>>> grouped = new ArrayList<>();
+            List<Map<String, Object>> current = new ArrayList<>();
+            int used = 0;
+
+            for (int i = start; i < entries.size(); i++)
+            {
+                Map<String, Object> entry = entries.get(i);
+                int size = format == WireFormat.BINARY ? BinaryCodec.sessionListingSize(entry)
+                                                       : GloomyNetMessageBuilder.jsonSize(entry);
+
+                if (!current.isEmpty() && (used + separator + size > budget || current.size() == maxCount))
+                {
+                    grouped.add(current);
+                    current = new ArrayList<>();
+                    used = 0;
+                }
+
+                used += (current.isEmpty() ? 0 : separator) + size;
+                current.add(entry);
+            }
+            grouped.add(current);
+
+            byte[][] encoded = new byte[grouped.size()][];
+            for (int page = 0; page < encoded.length; page++)
+                encoded[page] = pageBuilder(page, encoded.length, grouped.get(page)).buildBytes(format);
+            return encoded;
+        }
+
+        private static GloomyNetMessageBuilder pageBuilder(int page, int pages, List<Map<String, Object>> sessions)
+        {
+            return GloomyNetMessageBuilder.Create(PacketType.SESSION_LIST)
+                    .addData("page", page)
+                    .addData("pages", pages)
+                    .addData("sessions", sessions);
+        }
+    }
+}
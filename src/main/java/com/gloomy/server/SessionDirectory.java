@@ -0,0 +1,156 @@
+package com.gloomy.server;
+
+import com.gloomy.session.Session;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * The servers live sessions, indexed by session id, with a plain array slot per id. Session ids are always below
+ * maxSessions, so the array never grows past that. A server running alone hands its ids out densely from zero, a
+ * cluster node only owns some of the blocks of 256 ids the cluster spreads over its nodes, so its ids and the used slots
+ * are sparse, and the array holds room for the ids of the other nodes too. Lookups are a single volatile read and
+ * never lock. Adding and removing a session is
+ * a compare and set on its slot under a shared lock, so concurrent adds and removes never wait on each other. Only
+ * growing the array takes the lock exclusively, so no add or remove can land in a table that is being copied.
+ */
+public class SessionDirectory
+{
+    private volatile AtomicReferenceArray<Session> table;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final StampedLock growLock = new StampedLock();
+
+    /**
+     * @param initialCapacity The amount of session ids the directory has room for before it needs to grow
+     */
+    public SessionDirectory(int initialCapacity)
+    {
+        table = new AtomicReferenceArray<>(Math.max(1, initialCapacity));
+    }
+
+    /**
+     * @param sessionId The id of the session to find
+     * @return The session with that id, or null if there is none
+     */
+    public Session get(int sessionId)
+    {
+        AtomicReferenceArray<Session> current = table;
+        return sessionId >= 0 && sessionId < current.length() ? current.get(sessionId) : null;
+    }
+
+    /**
+     * Add a session under its session id
+     * @param session The session to add
+     * @return false if another session already holds that id
+     */
+    public boolean add(Session session)
+    {
+        int sessionId = session.getSessionId();
+        if (sessionId < 0)
+            throw new IllegalArgumentException("Session ids can not be negative: " + sessionId);
+
+        if (sessionId >= table.length())
+            grow(sessionId);
+
+        long stamp = growLock.readLock();
+        try {
+            AtomicReferenceArray<Session> current = table;
+            if (current.get(sessionId) == session)
+                return true;
+            if (!current.compareAndSet(sessionId, null, session))
+                return false;
+        } finally {
+            growLock.unlockRead(stamp);
+        }
+
+        size.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Remove a session, if it is still the session held under its id
+     * @param session The session to remove
+     * @return true if the session was in the directory
+     */
+    public boolean remove(Session session)
+    {
+        int sessionId = session.getSessionId();
+
+        long stamp = growLock.readLock();
+        try {
+            AtomicReferenceArray<Session> current = table;
+            if (sessionId < 0 || sessionId >= current.length() || !current.compareAndSet(sessionId, session, null))
+                return false;
+        } finally {
+            growLock.unlockRead(stamp);
+        }
+
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return The amount of sessions in the directory
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return The amount of slots currently in the directory. Slots at and above this have no session
+     */
+    public int capacity()
+    {
+        return table.length();
+    }
+
+    /**
+     * @return A new list holding every session in the directory at the time of the call
+     */
+    public List<Session> snapshot()
+    {
+        AtomicReferenceArray<Session> current = table;
+        List<Session> sessions = new ArrayList<>(size.get());
+
+        for (int i = 0; i < current.length(); i++)
+        {
+            Session session = current.get(i);
+            if (session != null)
+                sessions.add(session);
+        }
+
+        return sessions;
+    }
+
+    /**
+     * Grow the table until it can hold a session id
+     * @param sessionId A session id that is about to be stored
+     */
+    private void grow(int sessionId)
+    {
+        long stamp = growLock.writeLock();
+        try {
+            AtomicReferenceArray<Session> current = table;
+            if (sessionId < current.length())
+                return;
+
+            int newLength = current.length();
+            while (newLength <= sessionId)
+                newLength = newLength < (1 << 30) ? newLength << 1 : Integer.MAX_VALUE - 8;
+
+            AtomicReferenceArray<Session> grown = new AtomicReferenceArray<>(newLength);
+            for (int i = 0; i < current.length(); i++)
+                grown.set(i, current.get(i));
+
+            table = grown;
+        } finally {
+            growLock.unlockWrite(stamp);
+        }
+    }
+}
@@ -0,0 +1,891 @@
+package com.gloomy.server;
+
+import com.gloomy.protocol.WireFormat;
+import com.gloomy.session.Client;
+import com.gloomy.utils.ServerThreads;
+import org.pmw.tinylog.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the sessions of a server on disk so a restarted server can pick its lobbies back up instead of sending every
+ * player back to matchmaking at once.
+ *
+ * Sessions report every change to them, a session being created, a client joining, leaving or changing team, the
+ * host changing and the session shutting down, and each change is appended as a small record to a journal file that
+ * is mapped into memory, so recording a change is a copy into the page cache and no system call. Records are written
+ * length last, after a zero length that ends the journal, so a record cut short by a crash is never read back.
+ *
+ * The journal file is split into two segments that are written in turn, each under a generation of its own. The
+ * journal keeps a compact image of every live session next to it. When the segment being written fills up, or every
+ * snapshotIntervalMillis, the images are encoded into memory, recording moves on to the other segment, and the
+ * session-snapshots thread writes the encoded images to a snapshot file, which is forced to disk and moved over the
+ * previous snapshot. Only that thread ever waits on the disk, recording a change never does, unless the other segment
+ * fills up too before its snapshot is written. A snapshot carries the generation of the last segment folded into it,
+ * so a segment it already covers is never replayed on top of it.
+ *
+ * Opening a journal loads the snapshot, replays the segments written after it in generation order and snapshots the
+ * result straight away, the sessions that were running are then available from getRecoveredSessions.
+ */
+public class SessionJournal implements Closeable
+{
+    private static final int JOURNAL_MAGIC  = 0x474A4E4C;   // GJNL
+    private static final int SNAPSHOT_MAGIC = 0x47534E50;   // GSNP
+    private static final int FORMAT_VERSION = 2;
+
+    /** magic:i32 version:i32 generation:i64, at the start of each segment and of the snapshot **/
+    private static final int HEADER_BYTES = 16;
+
+    /** Every record starts with its length, a zero length ends the segment **/
+    private static final int LENGTH_BYTES = 2;
+
+    /** Largest record, a join with an ipv6 address and the longest name **/
+    private static final int MAX_RECORD_BYTES = 1 + 4 + 1 + ClientImage.MAX_BYTES;
+
+    private static final int SEGMENTS = 2;
+
+    private static final byte CREATE      = 1;
+    private static final byte JOIN        = 2;
+    private static final byte LEAVE       = 3;
+    private static final byte HOST_CHANGE = 4;
+    private static final byte SHUTDOWN    = 5;
+    private static final byte TEAM_CHANGE = 6;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Signalled when a segment has been folded into a snapshot, or the journal failed **/
+    private final Condition segmentFolded = lock.newCondition();
+
+    /** Signalled when a segment was rotated out, or the journal is closing **/
+    private final Condition snapshotWanted = lock.newCondition();
+
+    /** Held while a snapshot is written, so only one is written at a time. Never taken while holding lock **/
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+
+    private final Path snapshotPath;
+
+    private final FileChannel journalChannel;
+
+    private final MappedByteBuffer journal;
+
+    private final int segmentBytes;
+
+    private final long snapshotIntervalMillis;
+
+    /** Generation of the segment being written to **/
+    private long generation;
+
+    private int activeSegment;
+
+    /** Where the next record goes, always on a zero length **/
+    private int writePosition;
+
+    /** The images as they were when the last segment was rotated out, until they are written. Null while the other
+     *  segment is free to be written to **/
+    private byte[] pendingSnapshot;
+
+    private boolean closed;
+
+    /** Set if a snapshot could not be written, the server keeps running without a journal **/
+    private boolean failed;
+
+    /** The state of every live session as the journal has recorded it **/
+    private final Map<Integer, SessionImage> images = new HashMap<>();
+
+    private final List<SessionImage> recovered;
+
+    private final Thread snapshotThread;
+
+    private SessionJournal(Path directory, int journalBytes, long snapshotIntervalMillis) throws IOException
+    {
+        Files.createDirectories(directory);
+        this.snapshotPath           = directory.resolve("sessions.snapshot");
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+        this.segmentBytes           = Math.max(journalBytes / SEGMENTS,
+                                               HEADER_BYTES + 2 * (LENGTH_BYTES + MAX_RECORD_BYTES) + LENGTH_BYTES);
+        this.journalChannel         = FileChannel.open(directory.resolve("sessions.journal"), StandardOpenOption.CREATE,
+                                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.journal                = journalChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                                                         (long) SEGMENTS * segmentBytes);
+
+        loadSnapshot();
+        replayJournal();
+        this.recovered = Collections.unmodifiableList(new ArrayList<>(images.values()));
+
+        // Fold everything recovered into a snapshot before either segment is written over
+        lock.lock();
+        try {
+            writeSnapshotFile(encodeSnapshot(generation));
+            journal.putInt(segmentBytes, 0);
+            startSegment(0, generation + 1);
+            journal.force();
+        } finally {
+            lock.unlock();
+        }
+
+        this.snapshotThread = ServerThreads.start("session-snapshots", this::takeSnapshots, false);
+    }
+
+    /**
+     * Open the journal kept in a directory, recovering the sessions recorded in it. Snapshots are only taken when a
+     * segment fills up and when the journal is closed
+     * @param directory The directory the journal and snapshot files live in, created if it does not exist
+     * @param journalBytes The size of the journal file, a snapshot is taken whenever one of its two segments fills up
+     * @return The opened journal
+     * @throws IOException if the files can not be opened or the recovered sessions can not be snapshotted
+     */
+    public static SessionJournal Open(Path directory, int journalBytes) throws IOException
+    {
+        return new SessionJournal(directory, journalBytes, 0);
+    }
+
+    /**
+     * Open the journal kept in a directory, recovering the sessions recorded in it
+     * @param directory The directory the journal and snapshot files live in, created if it does not exist
+     * @param journalBytes The size of the journal file, a snapshot is taken whenever one of its two segments fills up
+     * @param snapshotIntervalMillis How often to snapshot a segment that has records, 0 or less only snapshots full
+     *                               segments
+     * @return The opened journal
+     * @throws IOException if the files can not be opened or the recovered sessions can not be snapshotted
+     */
+    public static SessionJournal Open(Path directory, int journalBytes, long snapshotIntervalMillis) throws IOException
+    {
+        return new SessionJournal(directory, journalBytes, snapshotIntervalMillis);
+    }
+
+    /**
+     * @return The sessions that were running when the journal was last written, as they were then
+     */
+    public List<SessionImage> getRecoveredSessions()
+    {
+        return recovered;
+    }
+
+    /**
+     * Record a new session. Its host is recorded separately by clientJoined
+     * @param sessionId The id of the session
+     * @param maxClients The most clients the session holds
+     * @param teams The amount of teams in the session
+     */
+    public void sessionCreated(int sessionId, int maxClients, int teams)
+    {
+        lock.lock();
+        try {
+            ByteBuffer out = beginRecord(CREATE, sessionId);
+            if (out == null)
+                return;
+
+            out.putShort((short) maxClients);
+            out.put((byte) teams);
+            endRecord();
+            applyCreate(sessionId, maxClients, teams);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a client joining a session, after it was given its client id and team
+     * @param sessionId The session the client joined
+     * @param client The client that joined
+     */
+    public void clientJoined(int sessionId, Client client)
+    {
+        ClientImage image = ClientImage.Of(client);
+
+        lock.lock();
+        try {
+            ByteBuffer out = beginRecord(JOIN, sessionId);
+            if (out == null)
+                return;
+
+            out.put((byte) (client.isHost() ? 1 : 0));
+            image.write(out);
+            endRecord();
+            applyJoin(sessionId, client.isHost(), image);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a client leaving a session
+     * @param sessionId The session the client left
+     * @param clientId The id the client had in that session
+     */
+    public void clientLeft(int sessionId, int clientId)
+    {
+        recordClient(LEAVE, sessionId, clientId);
+    }
+
+    /**
+     * Record a session handing its host role to another client
+     * @param sessionId The session whose host changed
+     * @param clientId The id of the new host
+     */
+    public void hostChanged(int sessionId, int clientId)
+    {
+        recordClient(HOST_CHANGE, sessionId, clientId);
+    }
+
+    /**
+     * Record a client being moved to another team when the teams of its session were rebalanced
+     * @param sessionId The session of the client
+     * @param clientId The id of the client
+     * @param team The id of the team it was moved to
+     */
+    public void teamChanged(int sessionId, int clientId, int team)
+    {
+        lock.lock();
+        try {
+            ByteBuffer out = beginRecord(TEAM_CHANGE, sessionId);
+            if (out == null)
+                return;
+
+            out.put((byte) clientId).put((byte) team);
+            endRecord();
+            applyTeamChange(sessionId, clientId, team);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a session shutting down, it will not be recovered
+     * @param sessionId The id of the session
+     */
+    public void sessionShutdown(int sessionId)
+    {
+        lock.lock();
+        try {
+            if (beginRecord(SHUTDOWN, sessionId) == null)
+                return;
+
+            endRecord();
+            images.remove(sessionId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write every live session to the snapshot file and start the journal over, on the calling thread
+     */
+    public void snapshot()
+    {
+        snapshotLock.lock();
+        try {
+            // A segment rotated out earlier is folded first, the other segment is not free until it is
+            if (!writePendingSnapshot())
+                return;
+
+            lock.lock();
+            try {
+                if (failed || pendingSnapshot != null)
+                    return;
+                rotate();
+            } finally {
+                lock.unlock();
+            }
+
+            writePendingSnapshot();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * @return The amount of sessions the journal currently holds
+     */
+    public int size()
+    {
+        lock.lock();
+        try {
+            return images.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Stop the snapshot thread, snapshot and close the files, further changes are not recorded **/
+    @Override
+    public void close() throws IOException
+    {
+        lock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            snapshotWanted.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            snapshotThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        snapshot();
+
+        lock.lock();
+        try {
+            failed = true;
+            segmentFolded.signalAll();
+            journalChannel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void recordClient(byte type, int sessionId, int clientId)
+    {
+        lock.lock();
+        try {
+            ByteBuffer out = beginRecord(type, sessionId);
+            if (out == null)
+                return;
+
+            out.put((byte) clientId);
+            endRecord();
+
+            if (type == LEAVE)
+                applyLeave(sessionId, clientId);
+            else
+                applyHostChange(sessionId, clientId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Position the journal for a new record, moving on to the other segment first if it might not fit. Called with
+     * the lock held. Only waits if the other segment has not been folded into a snapshot yet
+     * @return The journal to write the record body to, or null if the journal has failed
+     */
+    private ByteBuffer beginRecord(byte type, int sessionId)
+    {
+        while (!failed && writePosition + LENGTH_BYTES + MAX_RECORD_BYTES + LENGTH_BYTES > segmentEnd())
+        {
+            if (pendingSnapshot == null)
+                rotate();
+            else
+                segmentFolded.awaitUninterruptibly();
+        }
+
+        if (failed)
+            return null;
+
+        journal.position(writePosition + LENGTH_BYTES);
+        journal.put(type);
+        journal.putInt(sessionId);
+        return journal;
+    }
+
+    /** End the segment after the record that was just written, then publish the record by writing its length **/
+    private void endRecord()
+    {
+        int end = journal.position();
+        journal.putShort(end, (short) 0);
+        journal.putShort(writePosition, (short) (end - writePosition - LENGTH_BYTES));
+        writePosition = end;
+    }
+
+    private int segmentEnd()
+    {
+        return (activeSegment + 1) * segmentBytes;
+    }
+
+    /**
+     * Encode the images as a snapshot of everything recorded so far and move recording on to the other segment,
+     * then wake the snapshot thread to write them. Called with the lock held, once the other segment is free
+     */
+    private void rotate()
+    {
+        pendingSnapshot = encodeSnapshot(generation);
+        startSegment((activeSegment + 1) % SEGMENTS, generation + 1);
+        snapshotWanted.signalAll();
+    }
+
+    /**
+     * Start an empty segment. The end of the segment is written before its header, so records left over from the
+     * last time it was written are never read as part of the new generation. Called with the lock held
+     */
+    private void startSegment(int segment, long segmentGeneration)
+    {
+        int base = segment * segmentBytes;
+        journal.putShort(base + HEADER_BYTES, (short) 0);
+        journal.putInt(base, JOURNAL_MAGIC);
+        journal.putInt(base + 4, FORMAT_VERSION);
+        journal.putLong(base + 8, segmentGeneration);
+
+        activeSegment = segment;
+        generation    = segmentGeneration;
+        writePosition = base + HEADER_BYTES;
+    }
+
+    /** The snapshot threads loop. Writes each segment rotated out, and rotates on the interval **/
+    private void takeSnapshots()
+    {
+        while (awaitSnapshotDue())
+            writePendingSnapshot();
+    }
+
+    /**
+     * Wait for a segment to be rotated out. When the interval passes first, the active segment is rotated out if
+     * it has any records
+     * @return false once the journal is closing or has failed
+     */
+    private boolean awaitSnapshotDue()
+    {
+        long intervalNanos = snapshotIntervalMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(snapshotIntervalMillis)
+                                                        : Long.MAX_VALUE;
+        lock.lock();
+        try {
+            long waitNanos = intervalNanos;
+            while (pendingSnapshot == null && !closed && !failed)
+            {
+                if (waitNanos <= 0)
+                {
+                    if (writePosition > activeSegment * segmentBytes + HEADER_BYTES)
+                        rotate();
+                    waitNanos = intervalNanos;
+                    continue;
+                }
+                waitNanos = snapshotWanted.awaitNanos(waitNanos);
+            }
+            return !closed && !failed;
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the images encoded when the last segment was rotated out, then free that segment. Takes the lock only
+     * to pick the images up and to hand the segment back, never while writing
+     * @return false if the journal has failed
+     */
+    private boolean writePendingSnapshot()
+    {
+        snapshotLock.lock();
+        try {
+            byte[] snapshot;
+            lock.lock();
+            try {
+                if (failed)
+                    return false;
+                snapshot = pendingSnapshot;
+            } finally {
+                lock.unlock();
+            }
+
+            if (snapshot == null)
+                return true;
+
+            boolean written;
+            try {
+                writeSnapshotFile(snapshot);
+                journal.force();
+                written = true;
+            } catch (IOException | UncheckedIOException e) {
+                Logger.error(e, "Could not snapshot the session journal, sessions will not survive a restart");
+                written = false;
+            }
+
+            lock.lock();
+            try {
+                if (written)
+                    pendingSnapshot = null;
+                else
+                    failed = true;
+                segmentFolded.signalAll();
+                return written;
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Encode the images as a snapshot. Called with the lock held
+     * @param coveredGeneration The generation of the newest segment whose records the images include
+     * @return The snapshot file contents
+     */
+    private byte[] encodeSnapshot(long coveredGeneration)
+    {
+        int size = HEADER_BYTES + 4;
+        for (SessionImage image : images.values())
+            size += image.size();
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.putInt(SNAPSHOT_MAGIC);
+        out.putInt(FORMAT_VERSION);
+        out.putLong(coveredGeneration);
+        out.putInt(images.size());
+        for (SessionImage image : images.values())
+            image.write(out);
+        return out.array();
+    }
+
+    /**
+     * Write a snapshot to a temporary file, force it to disk and move it over the previous snapshot
+     * @param snapshot The encoded snapshot
+     */
+    private void writeSnapshotFile(byte[] snapshot) throws IOException
+    {
+        Path temporary = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, snapshot.length);
+            out.put(snapshot);
+            out.force();
+        }
+
+        Files.move(temporary, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void loadSnapshot() throws IOException
+    {
+        if (!Files.exists(snapshotPath))
+            return;
+
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ))
+        {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.remaining() < HEADER_BYTES + 4 || in.getInt() != SNAPSHOT_MAGIC || in.getInt() != FORMAT_VERSION)
+            {
+                Logger.warn("Ignoring session snapshot {}, it is not a snapshot this server can read", snapshotPath);
+                return;
+            }
+
+            generation = in.getLong();
+            for (int sessions = in.getInt(); sessions > 0; sessions--)
+            {
+                SessionImage image = SessionImage.Read(in);
+                images.put(image.sessionId, image);
+            }
+        } catch (RuntimeException | UnknownHostException e) {
+            images.clear();
+            Logger.warn("Ignoring session snapshot {}, it is damaged", snapshotPath);
+        }
+    }
+
+    /**
+     * Apply the segments written after the snapshot to the images loaded from it, oldest first. At most both
+     * segments are newer, when the server stopped before the older one was folded into a snapshot
+     */
+    private void replayJournal()
+    {
+        int records = 0;
+        for (int replayed = 0; replayed < SEGMENTS; replayed++)
+        {
+            int segment = findSegment(generation + 1);
+            if (segment < 0)
+                break;
+
+            generation++;
+            int segmentRecords = replaySegment(segment);
+            if (segmentRecords < 0)
+                break;
+            records += segmentRecords;
+        }
+
+        Logger.info("Replayed {} session journal records", records);
+    }
+
+    /**
+     * @return The segment written under a generation, or -1 if neither was
+     */
+    private int findSegment(long segmentGeneration)
+    {
+        for (int segment = 0; segment < SEGMENTS; segment++)
+        {
+            int base = segment * segmentBytes;
+            if (journal.getInt(base) == JOURNAL_MAGIC && journal.getInt(base + 4) == FORMAT_VERSION
+                    && journal.getLong(base + 8) == segmentGeneration)
+                return segment;
+        }
+        return -1;
+    }
+
+    /**
+     * Apply every complete record of a segment to the images
+     * @return The amount of records replayed, or -1 if the segment is damaged and nothing after it should be
+     */
+    private int replaySegment(int segment)
+    {
+        ByteBuffer in = journal.duplicate();
+        int end = (segment + 1) * segmentBytes;
+        in.limit(end);
+
+        int records = 0;
+        int position = segment * segmentBytes + HEADER_BYTES;
+        try {
+            for (int length = in.getShort(position) & 0xFFFF; length != 0; length = in.getShort(position) & 0xFFFF)
+            {
+                in.limit(position + LENGTH_BYTES + length);
+                in.position(position + LENGTH_BYTES);
+                replay(in);
+                position = in.limit();
+                in.limit(end);
+                records++;
+            }
+        } catch (RuntimeException | UnknownHostException e) {
+            Logger.warn("Session journal is damaged after {} records, the rest is ignored", records);
+            return -1;
+        }
+        return records;
+    }
+
+    private void replay(ByteBuffer in) throws UnknownHostException
+    {
+        byte type = in.get();
+        int sessionId = in.getInt();
+
+        switch (type)
+        {
+            case CREATE:      applyCreate(sessionId, in.getShort() & 0xFFFF, in.get() & 0xFF); break;
+            case JOIN:        applyJoin(sessionId, in.get() != 0, ClientImage.Read(in)); break;
+            case LEAVE:       applyLeave(sessionId, in.get() & 0xFF); break;
+            case HOST_CHANGE: applyHostChange(sessionId, in.get() & 0xFF); break;
+            case SHUTDOWN:    images.remove(sessionId); break;
+            case TEAM_CHANGE: applyTeamChange(sessionId, in.get() & 0xFF, in.get() & 0xFF); break;
+            default:          throw new IllegalStateException("Unknown journal record " + type);
+        }
+    }
+
+    private void applyCreate(int sessionId, int maxClients, int teams)
+    {
+        images.put(sessionId, new SessionImage(sessionId, maxClients, teams, -1));
+    }
+
+    private void applyJoin(int sessionId, boolean host, ClientImage client)
+    {
+        SessionImage image = images.get(sessionId);
+        if (image == null)
+            return;
+
+        image.clients.put(client.clientId, client);
+        if (host)
+            image.hostId = client.clientId;
+    }
+
+    private void applyLeave(int sessionId, int clientId)
+    {
+        SessionImage image = images.get(sessionId);
+        if (image != null)
+            image.clients.remove(clientId);
+    }
+
+    private void applyTeamChange(int sessionId, int clientId, int team)
+    {
+        SessionImage image = images.get(sessionId);
+        ClientImage client = image == null ? null : image.clients.get(clientId);
+        if (client != null)
+            image.clients.put(clientId, client.onTeam(team));     // Replacing keeps the clients place in join order
+    }
+
+    private void applyHostChange(int sessionId, int clientId)
+    {
+        SessionImage image = images.get(sessionId);
+        if (image != null)
+            image.hostId = clientId;
+    }
+
+    /**
+     * A session as the journal recorded it
+     */
+    public static final class SessionImage
+    {
+        private final int sessionId;
+        private final int maxClients;
+        private final int teams;
+        private int hostId;
+        /** In join order, which is the order hosting passes on in **/
+        private final Map<Integer, ClientImage> clients = new LinkedHashMap<>();
+
+        private SessionImage(int sessionId, int maxClients, int teams, int hostId)
+        {
+            this.sessionId  = sessionId;
+            this.maxClients = maxClients;
+            this.teams      = teams;
+            this.hostId     = hostId;
+        }
+
+        /** sessionId:i32 maxClients:u16 teams:u8 hostId:i16 clients:u16 then each client **/
+        private int size()
+        {
+            int size = 4 + 2 + 1 + 2 + 2;
+            for (ClientImage client : clients.values())
+                size += client.size();
+            return size;
+        }
+
+        private void write(ByteBuffer out)
+        {
+            out.putInt(sessionId);
+            out.putShort((short) maxClients);
+            out.put((byte) teams);
+            out.putShort((short) hostId);
+            out.putShort((short) clients.size());
+            for (ClientImage client : clients.values())
+                client.write(out);
+        }
+
+        private static SessionImage Read(ByteBuffer in) throws UnknownHostException
+        {
+            SessionImage image = new SessionImage(in.getInt(), in.getShort() & 0xFFFF, in.get() & 0xFF, in.getShort());
+            for (int count = in.getShort() & 0xFFFF; count > 0; count--)
+            {
+                ClientImage client = ClientImage.Read(in);
+                image.clients.put(client.clientId, client);
+            }
+            return image;
+        }
+
+        public int getSessionId() { return sessionId; }
+
+        public int getMaxClients() { return maxClients; }
+
+        public int getTeams() { return teams; }
+
+        /**
+         * @return The client id of the host, or -1 if none was recorded
+         */
+        public int getHostId() { return hostId; }
+
+        /**
+         * @return The clients of the session in the order they joined
+         */
+        public Collection<ClientImage> getClients() { return Collections.unmodifiableCollection(clients.values()); }
+    }
+
+    /**
+     * A client as the journal recorded it. The name is kept encoded, as it is written
+     */
+    public static final class ClientImage
+    {
+        private static final int MAX_NAME_BYTES = 255;
+
+        /** cId:u8 team:u8 format:u8 port:u16 rating:u16 ip:u8+bytes name:u8+bytes **/
+        private static final int MAX_BYTES = 1 + 1 + 1 + 2 + 2 + 1 + 16 + 1 + MAX_NAME_BYTES;
+
+        private static final int MAX_RATING = 0xFFFF;
+
+        private final int clientId;
+        private final int team;
+        private final WireFormat wireFormat;
+        private final int port;
+        private final int rating;
+        private final InetAddress ip;
+        private final byte[] name;
+
+        private ClientImage(int clientId, int team, WireFormat wireFormat, int port, int rating, InetAddress ip,
+                            byte[] name)
+        {
+            this.clientId   = clientId;
+            this.team       = team;
+            this.wireFormat = wireFormat;
+            this.port       = port;
+            this.rating     = rating;
+            this.ip         = ip;
+            this.name       = name;
+        }
+
+        private ClientImage onTeam(int team)
+        {
+            return new ClientImage(clientId, team, wireFormat, port, rating, ip, name);
+        }
+
+        private static ClientImage Of(Client client)
+        {
+            byte[] name = client.getUserName().getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_NAME_BYTES)
+                name = Arrays.copyOf(name, MAX_NAME_BYTES);
+
+            return new ClientImage(client.getClientId(), client.getTeamId(), client.getWireFormat(), client.getPort(),
+                                   Math.max(0, Math.min(client.getRating(), MAX_RATING)), client.getIp(), name);
+        }
+
+        private int size()
+        {
+            return 1 + 1 + 1 + 2 + 2 + 1 + ip.getAddress().length + 1 + name.length;
+        }
+
+        private void write(ByteBuffer out)
+        {
+            byte[] address = ip.getAddress();
+            out.put((byte) clientId);
+            out.put((byte) team);
+            out.put((byte) wireFormat.ordinal());
+            out.putShort((short) port);
+            out.putShort((short) rating);
+            out.put((byte) address.length);
+            out.put(address);
+            out.put((byte) name.length);
+            out.put(name);
+        }
+
+        private static ClientImage Read(ByteBuffer in) throws UnknownHostException
+        {
+            int clientId = in.get() & 0xFF;
+            int team     = in.get() & 0xFF;
+            WireFormat wireFormat = WireFormat.values()[in.get()];
+            int port     = in.getShort() & 0xFFFF;
+            int rating   = in.getShort() & 0xFFFF;
+
+            byte[] address = new byte[in.get() & 0xFF];
+            in.get(address);
+            byte[] name = new byte[in.get() & 0xFF];
+            in.get(name);
+
+            return new ClientImage(clientId, team, wireFormat, port, rating, InetAddress.getByAddress(address), name);
+        }
+
+        public int getClientId() { return clientId; }
+
+        public int getTeam() { return team; }
+
+        public WireFormat getWireFormat() { return wireFormat; }
+
+        public int getPort() { return port; }
+
+        /**
+         * @return The skill rating the client reported when it joined
+         */
+        public int getRating() { return rating; }
+
+        public InetAddress getIp() { return ip; }
+
+        public String getUserName() { return new String(name, StandardCharsets.UTF_8); }
+    }
+}
@@ -0,0 +1,17 @@
+package com.gloomy.server;
+
+/**
+ * How a workflow shard waits for packets when its queues are empty, and how the listener waits when a shards queue
+ * is full. Trades idle cpu use for the time it takes a shard to notice a new packet.
+ */
+public enum WaitStrategy
+{
+    /** Spin briefly, then park until the listener or another shard wakes the shard up. Idle shards use no cpu */
+    BLOCKING,
+
+    /** Spin briefly, then keep yielding the cpu between checks. Lower latency, idle shards still show as busy */
+    YIELDING,
+
+    /** Never give the cpu up. Lowest latency, every shard keeps a core busy. Runs as YIELDING on virtual threads */
+    BUSY_SPIN
+}
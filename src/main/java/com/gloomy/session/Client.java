@@ -1,19 +1,41 @@
 package com.gloomy.session;
 
 import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import com.gloomy.protocol.BinaryCodec;
+import com.gloomy.protocol.EncodedRosterEntry;
+import com.gloomy.protocol.WireFormat;
 import com.gloomy.session.TeamManager.Team;
+import com.gloomy.utils.GloomyNetMessageBuilder;
 
 public class Client
 {
     private String userName;
     private InetAddress ip;
     private int port;
-    private byte clientId;
+    private int clientId;
     private boolean hosting;
     private Team team;
-    private Map<String, Object> infoMap;
+    /** Where this client is in the member list of its team, kept by TeamManager **/
+    int teamSlot;
+    private int rating;
+    private WireFormat wireFormat = WireFormat.JSON;
+    /**
+     * The roster entry fields that do not change while the client is in a session, encoded once. The binary entry
+     * holds every field, its team and host bytes are patched into a copy whenever the entry is rebuilt. Only touched
+     * by the owner of the clients session
+     */
+    private String rosterJsonTail;
+    private int rosterJsonTailSize;
+    private byte[] rosterBinary;
+    /** The whole roster entry, dropped when the team or host flag changes **/
+    private EncodedRosterEntry rosterEntry;
+    private final ReliableChannel reliableChannel = new ReliableChannel();
+    /** Monotonic millis of the last packet heard from this client, only touched on its sessions shard **/
+    private long lastSeenMillis = nowMillis();
 
     private Client() {}
 
@@ -24,23 +46,45 @@ public class Client
         this.port = port;
     }
 
-    public void setClientId(byte clientId)
+    /**
+     * Create a client that should be sent messages in a specific format
+     * @param userName The name the client requested
+     * @param ip The address the client sends from
+     * @param port The port the client sends from
+     * @param wireFormat The format this client speaks
+     */
+    public Client(String userName, InetAddress ip, int port, WireFormat wireFormat)
+    {
+        this(userName, ip, port);
+        this.wireFormat = wireFormat;
+    }
+
+    public void setClientId(int clientId)
     {
         this.clientId = clientId;
+        rosterBinary  = null;
+        rosterEntry   = null;
     }
 
     public void setTeam(Team team)
     {
         this.team = team;
-        if (infoMap != null)
-            infoMap.replace("team", team.id);
+        rosterEntry = null;
+    }
+
+    /**
+     * @param rating The skill rating the client reported, teams are balanced on it once they are equal in size. Set
+     *               before the client joins a session
+     */
+    public void setRating(int rating)
+    {
+        this.rating = rating;
     }
 
     public void setHosting(boolean hosting)
     {
         this.hosting = hosting;
-        if (infoMap != null)
-            infoMap.replace("h", hosting);
+        rosterEntry = null;
     }
 
     public boolean isHost() { return hosting; }
@@ -60,7 +104,34 @@ public class Client
 
     public Team getTeam() { return team; }
 
-    public byte getClientId() {
+    public int getTeamId() { return team.id; }
+
+    public int getRating() { return rating; }
+
+    public WireFormat getWireFormat() { return wireFormat; }
+
+    ReliableChannel getReliableChannel() { return reliableChannel; }
+
+    /**
+     * Record that a packet was just heard from this client
+     * @param nowMillis The current time from Client.nowMillis
+     */
+    public void touch(long nowMillis)
+    {
+        this.lastSeenMillis = nowMillis;
+    }
+
+    public long getLastSeenMillis() { return lastSeenMillis; }
+
+    /**
+     * @return The monotonic clock client liveness is measured with, in milliseconds
+     */
+    public static long nowMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public int getClientId() {
         return clientId;
     }
 
@@ -78,17 +149,43 @@ public class Client
      */
     public Map<String, Object> getInfoMap()
     {
-        if (infoMap == null)
+        Map<String, Object> infoMap = new HashMap<>();
+        infoMap.put("name", userName);
+        infoMap.put("ip", ip.getHostAddress());
+        infoMap.put("port", port);
+        infoMap.put("team", team.id);
+        infoMap.put("h", hosting);
+        infoMap.put("cId", clientId);
+        return infoMap;
+    }
+
+    /**
+     * Get the roster entry of this client encoded in every wire format. The fields that never change are encoded the
+     * first time, after that a team or host change only writes those two fields around the cached bytes. Roster
+     * messages list these instead of the info map so a client is not encoded again for every message
+     * @return The encoded roster entry
+     */
+    public EncodedRosterEntry getRosterEntry()
+    {
+        if (rosterEntry != null)
+            return rosterEntry;
+
+        if (rosterBinary == null)
         {
-            infoMap = new HashMap<>();
-            infoMap.put("name", userName);
-            infoMap.put("ip", ip.getHostAddress());
-            infoMap.put("port", port);
-            infoMap.put("team", team.id);
-            infoMap.put("h", hosting);
-            infoMap.put("cId", clientId);
+            Map<String, Object> info = getInfoMap();
+            rosterBinary       = BinaryCodec.encodeRosterEntry(info);
+            rosterJsonTail     = "\"cId\":" + clientId + ",\"port\":" + port
+                               + ",\"ip\":" + GloomyNetMessageBuilder.toJson(info.get("ip"))
+                               + ",\"name\":" + GloomyNetMessageBuilder.toJson(userName) + "}";
+            rosterJsonTailSize = rosterJsonTail.getBytes(StandardCharsets.UTF_8).length;
         }
 
-        return infoMap;
+        byte[] binary = rosterBinary.clone();
+        binary[BinaryCodec.ROSTER_ENTRY_TEAM_OFFSET] = (byte) team.id;
+        binary[BinaryCodec.ROSTER_ENTRY_HOST_OFFSET] = (byte) (hosting ? 1 : 0);
+
+        String head = "{\"team\":" + team.id + ",\"h\":" + hosting + ",";
+        rosterEntry = new EncodedRosterEntry(head + rosterJsonTail, head.length() + rosterJsonTailSize, binary);
+        return rosterEntry;
     }
 }
@@ -0,0 +1,251 @@
+package com.gloomy.session;
+
+import com.gloomy.utils.ServerThreads;
+import org.pmw.tinylog.Logger;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends the outgoing messages of every session on the server using a small, fixed number of sender threads.
+ *
+ * Each SessionCommunicator keeps its own outbound queue. When a message is added to an idle communicator the
+ * communicator is put on a shared ready queue. A sender thread takes it, sends at most MESSAGES_PER_TURN of its
+ * messages and then puts it at the back of the ready queue if it still has work, so a busy session can not starve
+ * the rest. A communicator is only ever held by one sender thread at a time which keeps each sessions messages in
+ * the order they were added.
+ *
+ * With coalescing on, a communicator that goes from idle to having messages waits out a short window before it
+ * is handed to a sender thread. Everything the session queues within that window is then sent in the same turn, and
+ * the communicator packs everything going to the same client into as few datagrams as the MTU allows.
+ *
+ * With reliable delivery on, control messages are sent through each clients ReliableChannel. A communicator with
+ * datagrams waiting on acks arms a retransmit timer, and when the timer fires the communicator is given a turn so it
+ * can send again whatever is still unacknowledged.
+ */
+public class EgressScheduler
+{
+    /** How many messages a communicator may send before giving other sessions a turn **/
+    static final int MESSAGES_PER_TURN = 16;
+
+    /** Ordered by when each communicator becomes ready, and by the order they were scheduled in after that **/
+    private final BlockingQueue<SessionCommunicator> readyCommunicators = new DelayQueue<>();
+
+    private final AtomicLong scheduleSequence = new AtomicLong();
+
+    private final Thread[] senderThreads;
+
+    private final boolean virtualThreads;
+
+    /** Negative when coalescing is off **/
+    private final long coalesceWindowNanos;
+
+    private final boolean reliableDelivery;
+
+    private final BlockingQueue<RetransmitTimer> retransmitTimers = new DelayQueue<>();
+
+    private volatile boolean working;
+
+    /**
+     * Create an egress scheduler that sends every message as its own datagram as soon as it can
+     * @param senderThreads The amount of threads that should send messages for all sessions
+     * @param virtualThreads true to run the sender threads as virtual threads
+     */
+    public EgressScheduler(int senderThreads, boolean virtualThreads)
+    {
+        this(senderThreads, virtualThreads, -1, false);
+    }
+
+    /**
+     * Create an egress scheduler
+     * @param senderThreads The amount of threads that should send messages for all sessions
+     * @param virtualThreads true to run the sender threads as virtual threads
+     * @param coalesceWindowMillis How long an idle session waits before sending so that its messages can be
+     *                             bundled. 0 only bundles messages already queued together, negative turns it off
+     * @param reliableDelivery true to send control messages reliably
+     */
+    public EgressScheduler(int senderThreads, boolean virtualThreads, int coalesceWindowMillis, boolean reliableDelivery)
+    {
+        this.senderThreads       = new Thread[senderThreads];
+        this.virtualThreads      = virtualThreads;
+        this.coalesceWindowNanos = coalesceWindowMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(coalesceWindowMillis);
+        this.reliableDelivery    = reliableDelivery;
+    }
+
+    /**
+     * Start the sender threads
+     */
+    public void start()
+    {
+        working = true;
+
+        for (int i = 0; i < senderThreads.length; i++)
+        {
+            senderThreads[i] = ServerThreads.start("egress-sender-" + i, this::processReadyCommunicators, virtualThreads);
+        }
+
+        if (reliableDelivery)
+            ServerThreads.start("egress-retransmit", this::processRetransmitTimers, virtualThreads);
+
+        Logger.info("Egress scheduler has started {} sender threads", senderThreads.length);
+    }
+
+    /**
+     * Queue a communicator that has messages to send. Called by the communicator itself once it has marked
+     * itself as scheduled, so a communicator is never in the ready queue twice.
+     * @param communicator The communicator with pending messages
+     * @param delayNanos How long to wait before the communicator gets its turn
+     */
+    void schedule(SessionCommunicator communicator, long delayNanos)
+    {
+        communicator.setReadyAt(System.nanoTime() + delayNanos, scheduleSequence.getAndIncrement());
+        readyCommunicators.add(communicator);
+    }
+
+    /**
+     * Give a communicator a turn once the given time has passed, so it can retransmit unacknowledged datagrams
+     * @param communicator The communicator waiting on acks. It arms at most one timer at a time
+     * @param at The System.nanoTime the next retransmit is due at
+     */
+    void armRetransmitTimer(SessionCommunicator communicator, long at)
+    {
+        retransmitTimers.add(new RetransmitTimer(communicator, at));
+    }
+
+    /**
+     * @return true if control messages should be sent through the clients ReliableChannel
+     */
+    boolean isReliableDelivery()
+    {
+        return reliableDelivery;
+    }
+
+    /**
+     * @return true if communicators should bundle their messages per client
+     */
+    boolean isCoalescing()
+    {
+        return coalesceWindowNanos >= 0;
+    }
+
+    /**
+     * @return How long a communicator that just got its first message waits before sending, 0 when not coalescing
+     */
+    long getCoalesceWindowNanos()
+    {
+        return Math.max(0, coalesceWindowNanos);
+    }
+
+    /** The sender threads loop. Waits for a communicator to have work and then gives it a turn **/
+    private void processReadyCommunicators()
+    {
+        while (working)
+        {
+            SessionCommunicator communicator;
+            try {
+                communicator = readyCommunicators.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (communicator.isWakeUp())
+                continue;
+
+            try {
+                communicator.sendPendingMessages(MESSAGES_PER_TURN);
+            } catch (RuntimeException e) {
+                Logger.error(e, "Sending messages for a session failed");
+            }
+
+            communicator.finishTurn();
+        }
+    }
+
+    /** The retransmit threads loop. Hands communicators whose retransmit timer fired back to the sender threads **/
+    private void processRetransmitTimers()
+    {
+        while (working)
+        {
+            RetransmitTimer timer;
+            try {
+                timer = retransmitTimers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (timer.communicator != null)
+                timer.communicator.retransmitTimerFired();
+        }
+    }
+
+    /**
+     * Stop the sender threads once they finish the turn they are on. Threads waiting for work are woken up, each by
+     * its own wake up communicator, and the retransmit thread by a timer with no communicator
+     */
+    public void shutdown()
+    {
+        working = false;
+        retransmitTimers.add(new RetransmitTimer(null, System.nanoTime()));
+
+        for (int i = 0; i < senderThreads.length; i++)
+            schedule(SessionCommunicator.WakeUp(), 0);
+    }
+
+    /**
+     * Wait for the sender threads to stop after a shutdown
+     * @param timeoutMillis The longest to wait for each thread
+     * @return true if every sender thread has stopped
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException
+    {
+        for (Thread thread : senderThreads)
+        {
+            if (thread == null)
+                continue;
+            thread.join(timeoutMillis);
+            if (thread.isAlive())
+                return false;
+        }
+        return true;
+    }
+
+    public int getSenderThreads()
+    {
+        return senderThreads.length;
+    }
+
+    /**
+     * A communicators pending retransmit
+     */
+    private static final class RetransmitTimer implements Delayed
+    {
+        /** null for the timer that wakes the retransmit thread up at shutdown **/
+        final SessionCommunicator communicator;
+        final long at;
+
+        RetransmitTimer(SessionCommunicator communicator, long at)
+        {
+            this.communicator = communicator;
+            this.at           = at;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other)
+        {
+            long difference = at - ((RetransmitTimer) other).at;
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.gloomy.session;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every session that still has room for clients, bucketed by how many free slots it has. Sessions move between
+ * buckets as clients join and leave, so matchmaking never has to look at a full session.
+ *
+ * Each bucket is a doubly linked list with its own lock, and a bit mask records which buckets are non empty.
+ * Picking a session finds the lowest set bit and takes the head of that bucket, which prefers the sessions closest
+ * to full so lobbies fill up and start instead of spreading players thin. Adding, moving, removing and picking are
+ * all O(1) and only ever hold one buckets lock.
+ */
+public class OpenSessionIndex
+{
+    /** Sessions with this many free slots or more share the last bucket **/
+    private static final int BUCKETS = 64;
+
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+
+    /** Bit n is set while bucket n has sessions in it. Only changed while holding bucket n's lock **/
+    private final AtomicLong nonEmptyBuckets = new AtomicLong();
+
+    /** Free slots summed over every open session **/
+    private final AtomicInteger openSlots = new AtomicInteger();
+
+    public OpenSessionIndex()
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            buckets[i] = new Bucket(i);
+    }
+
+    /**
+     * Find a session with room for another client
+     * @return The open session closest to full, or null if there are no open sessions
+     */
+    public Session pickOpenSession()
+    {
+        while (true)
+        {
+            long mask = nonEmptyBuckets.get();
+            if (mask == 0)
+                return null;
+
+            Bucket bucket = buckets[Long.numberOfTrailingZeros(mask)];
+            bucket.lock.lock();
+            try {
+                if (bucket.head != null)
+                    return bucket.head.session;
+            } finally {
+                bucket.lock.unlock();
+            }
+            // Emptied between reading the mask and locking, look again
+        }
+    }
+
+    /**
+     * Put a session in the bucket matching its current free slots, or take it out if it is full. Called by the
+     * session whenever its client count changes, always from the thread currently working that session.
+     * @param session The session whose occupancy changed
+     * @param freeSlots How many more clients the session can take
+     */
+    void update(Session session, int freeSlots)
+    {
+        Entry entry = session.getOpenSessionEntry();
+        int target = freeSlots <= 0 ? -1 : Math.min(freeSlots, BUCKETS - 1);
+
+        int slots = Math.max(freeSlots, 0);
+        if (slots != entry.freeSlots)
+        {
+            openSlots.addAndGet(slots - entry.freeSlots);
+            entry.freeSlots = slots;
+        }
+
+        if (entry.bucket == target)
+            return;
+
+        if (entry.bucket >= 0)
+            buckets[entry.bucket].unlink(entry);
+        if (target >= 0)
+            buckets[target].link(entry);
+    }
+
+    /**
+     * @return How many more clients the open sessions can take between them
+     */
+    public int getOpenSlots()
+    {
+        return openSlots.get();
+    }
+
+    /**
+     * Take a session out of the index for good, used when it shuts down
+     * @param session The session to remove
+     */
+    void remove(Session session)
+    {
+        update(session, 0);
+    }
+
+    /**
+     * A sessions place in the index. Owned by the session, only touched by the index
+     */
+    static final class Entry
+    {
+        private final Session session;
+        private Entry previous;
+        private Entry next;
+        private volatile int bucket = -1;
+        /** Only touched by the thread working the session **/
+        private int freeSlots;
+
+        Entry(Session session)
+        {
+            this.session = session;
+        }
+    }
+
+    private final class Bucket
+    {
+        private final int index;
+        private final ReentrantLock lock = new ReentrantLock();
+        private Entry head;
+
+        Bucket(int index)
+        {
+            this.index = index;
+        }
+
+        void link(Entry entry)
+        {
+            lock.lock();
+            try {
+                entry.previous = null;
+                entry.next = head;
+                if (head != null)
+                    head.previous = entry;
+                else
+                    setNonEmpty(true);
+                head = entry;
+                entry.bucket = index;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void unlink(Entry entry)
+        {
+            lock.lock();
+            try {
+                if (entry.previous != null)
+                    entry.previous.next = entry.next;
+                else
+                    head = entry.next;
+                if (entry.next != null)
+                    entry.next.previous = entry.previous;
+
+                entry.previous = null;
+                entry.next = null;
+                entry.bucket = -1;
+
+                if (head == null)
+                    setNonEmpty(false);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void setNonEmpty(boolean nonEmpty)
+        {
+            long bit = 1L << index;
+            long mask;
+            do {
+                mask = nonEmptyBuckets.get();
+            } while (!nonEmptyBuckets.compareAndSet(mask, nonEmpty ? mask | bit : mask & ~bit));
+        }
+    }
+}
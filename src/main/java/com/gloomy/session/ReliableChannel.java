@@ -0,0 +1,231 @@
+package com.gloomy.session;
+
+import org.pmw.tinylog.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reliable delivery of control messages to one client. Every reliable datagram is given the next sequence number of
+ * the channel and sent in a frame:
+ *
+ *   marker:u8 seq:u16 datagram
+ *
+ * The client answers with the newest sequence number it has seen plus a bit field of the 32 before it, either in an
+ * ACK packet or piggybacked on a packet it was sending anyway. Only the datagrams that were not acknowledged are sent
+ * again, once the retransmit timeout has passed. The timeout follows the measured round trip time (RFC 6298, with
+ * Karns rule so retransmitted datagrams are never sampled) and doubles with every retransmit of the same datagram.
+ *
+ * Datagrams are framed and retransmitted by the egress sender thread holding the clients communicator, while acks
+ * arrive on the sessions workflow shard, so the channel guards its state with a lock.
+ */
+class ReliableChannel
+{
+    /** First byte of a reliable frame **/
+    static final byte RELIABLE_MARKER = (byte) 0xE1;
+
+    static final int HEADER_SIZE = 3;
+
+    /** Times a datagram is sent before the client is assumed gone **/
+    static final int MAX_TRANSMISSIONS = 8;
+
+    private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MIN_RTO_NANOS     = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MAX_RTO_NANOS     = TimeUnit.SECONDS.toNanos(2);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Unacknowledged datagrams by sequence number, oldest first **/
+    private final Map<Integer, InFlight> inFlight = new LinkedHashMap<>();
+
+    private int nextSequence;
+
+    /** Set once the client has left its session. It is still retransmitted to, but its session no longer waits on it **/
+    private volatile boolean departed;
+
+    /** Smoothed round trip time and its variation, -1 until the first sample **/
+    private long smoothedRttNanos = -1;
+    private long rttVariationNanos;
+    private long retransmitTimeoutNanos = INITIAL_RTO_NANOS;
+
+    /**
+     * Give a datagram the next sequence number and remember it until the client acknowledges it
+     * @param datagram The datagram to send reliably
+     * @param now The current System.nanoTime
+     * @return The framed datagram to send
+     */
+    byte[] frame(byte[] datagram, long now)
+    {
+        lock.lock();
+        try {
+            int sequence = nextSequence;
+            nextSequence = (nextSequence + 1) & 0xFFFF;
+
+            byte[] frame = ByteBuffer.allocate(HEADER_SIZE + datagram.length)
+                    .put(RELIABLE_MARKER)
+                    .putShort((short) sequence)
+                    .put(datagram)
+                    .array();
+
+            inFlight.remove(sequence);  // Only still here if the client stopped acknowledging 65536 datagrams ago
+            inFlight.put(sequence, new InFlight(frame, now));
+            return frame;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply an acknowledgement from the client
+     * @param ack The newest sequence number the client has received
+     * @param ackBits Bit n set means sequence number ack - 1 - n was received too
+     * @param now The current System.nanoTime
+     */
+    void acknowledge(int ack, long ackBits, long now)
+    {
+        lock.lock();
+        try {
+            Iterator<Map.Entry<Integer, InFlight>> datagrams = inFlight.entrySet().iterator();
+            while (datagrams.hasNext())
+            {
+                Map.Entry<Integer, InFlight> datagram = datagrams.next();
+                int behind = (ack - datagram.getKey()) & 0xFFFF;
+
+                if (behind != 0 && (behind > 32 || (ackBits & (1L << (behind - 1))) == 0))
+                    continue;
+
+                InFlight acknowledged = datagram.getValue();
+                if (acknowledged.transmissions == 1)
+                    sampleRoundTrip(now - acknowledged.lastSent);
+                datagrams.remove();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Collect the datagrams whose retransmit timeout has passed. Datagrams that have been sent MAX_TRANSMISSIONS
+     * times are given up on.
+     * @param now The current System.nanoTime
+     * @return The framed datagrams to send again, oldest first
+     */
+    List<byte[]> collectRetransmits(long now)
+    {
+        lock.lock();
+        try {
+            List<byte[]> due = null;
+            Iterator<InFlight> datagrams = inFlight.values().iterator();
+
+            while (datagrams.hasNext())
+            {
+                InFlight datagram = datagrams.next();
+                if (now - datagram.deadline(retransmitTimeoutNanos) < 0)
+                    continue;
+
+                if (datagram.transmissions >= MAX_TRANSMISSIONS)
+                {
+                    Logger.warn("Reliable datagram was never acknowledged after {} sends, giving up on it", MAX_TRANSMISSIONS);
+                    datagrams.remove();
+                    continue;
+                }
+
+                datagram.transmissions++;
+                datagram.lastSent = now;
+                if (due == null)
+                    due = new ArrayList<>();
+                due.add(datagram.frame);
+            }
+
+            return due;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The System.nanoTime the next retransmit is due at, or Long.MAX_VALUE if nothing is waiting on an ack
+     */
+    long nextRetransmitAt()
+    {
+        lock.lock();
+        try {
+            long next = Long.MAX_VALUE;
+            for (InFlight datagram : inFlight.values())
+                next = Math.min(next, datagram.deadline(retransmitTimeoutNanos));
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Note that the client has left its session. Its datagrams are still retransmitted until acknowledged or given up
+     * on, but a client that left may never acknowledge them, so its session does not wait on them to be recycled
+     */
+    void markDeparted()
+    {
+        departed = true;
+    }
+
+    /**
+     * @return true once the client has left its session
+     */
+    boolean isDeparted()
+    {
+        return departed;
+    }
+
+    /**
+     * @return The current retransmit timeout in nanoseconds
+     */
+    long getRetransmitTimeoutNanos()
+    {
+        return retransmitTimeoutNanos;
+    }
+
+    /** RFC 6298 section 2, called with the lock held **/
+    private void sampleRoundTrip(long rttNanos)
+    {
+        if (smoothedRttNanos < 0)
+        {
+            smoothedRttNanos  = rttNanos;
+            rttVariationNanos = rttNanos / 2;
+        }
+        else
+        {
+            rttVariationNanos = (3 * rttVariationNanos + Math.abs(smoothedRttNanos - rttNanos)) / 4;
+            smoothedRttNanos  = (7 * smoothedRttNanos + rttNanos) / 8;
+        }
+
+        retransmitTimeoutNanos = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, smoothedRttNanos + 4 * rttVariationNanos));
+    }
+
+    /**
+     * A datagram waiting on an acknowledgement
+     */
+    private static final class InFlight
+    {
+        final byte[] frame;
+        long lastSent;
+        int transmissions = 1;
+
+        InFlight(byte[] frame, long lastSent)
+        {
+            this.frame    = frame;
+            this.lastSent = lastSent;
+        }
+
+        /** Backs off exponentially with every retransmit **/
+        long deadline(long retransmitTimeoutNanos)
+        {
+            return lastSent + Math.min(MAX_RTO_NANOS, retransmitTimeoutNanos << (transmissions - 1));
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package com.gloomy.session;
 
+import com.gloomy.server.Relay;
 import com.gloomy.server.Server;
+import com.gloomy.server.SessionJournal;
+import com.gloomy.utils.IdAllocator;
 import com.gloomy.utils.GloomyNetMessageBuilder;
 import com.gloomy.server.PacketType;
 import org.pmw.tinylog.Logger;
@@ -11,20 +14,46 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
-
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A lobby of clients waiting for a game. A session is an actor: every change to its state runs as a task through
+ * execute, and only the one thread that currently owns the session runs its tasks, one at a time and in the order
+ * each thread submitted them. Session state therefore needs no locks. A thread that finds the session idle becomes
+ * its owner and runs its task straight away, which is the normal case as every session is driven by the workflow
+ * shard it belongs to, while a task submitted to a busy session waits in the mailbox for the current owner.
+ *
+ * The client list is never changed in place. Each change publishes a new immutable snapshot, which readers on other
+ * threads and queued outgoing messages keep using as their recipient list without copying it.
+ *
+ * A session that holds more clients than fit on one roster page is a large lobby. Its clients are not sent the whole
+ * roster when they join or resync, only the first page, and ask for the other pages as they need them. Roster deltas
+ * are broadcast the same way in both kinds of session.
+ */
 public class Session
 {
     private static final int DEFAULT_TEAMS       = 2;
     private static final int DEFAULT_MAX_CLIENTS = 6;
+    /** Client ids are a single byte on the wire **/
+    public static final int MAX_CLIENT_IDS       = 256;
 
     private Server owningServer;
-    private final List<Client> clients = Collections.synchronizedList(new ArrayList<>());
-    private final ConcurrentLinkedQueue<Byte> clientIds = new ConcurrentLinkedQueue<>();
-    private Client host;
+    /** Immutable, replaced by the owner on every change **/
+    private volatile List<Client> clients = Collections.unmodifiableList(new ArrayList<>());
+    private final IdAllocator clientIds = new IdAllocator(MAX_CLIENT_IDS);
+    private volatile Client host;
     private TeamManager teamManager;
-    private int maxClients = 6;
+    private volatile int maxClients = 6;
     private int sessionId;
+    /** Bumped on every roster change, clients apply deltas in version order and resync when they see a gap **/
+    private volatile int rosterVersion;
+    /** Tasks waiting for the owner of this session **/
+    private final ConcurrentLinkedQueue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    /** Set while a thread owns this session and runs its tasks **/
+    private final AtomicBoolean owned = new AtomicBoolean();
     private SessionCommunicator communicator;
+    private final OpenSessionIndex.Entry openSessionEntry = new OpenSessionIndex.Entry(this);
+    private volatile boolean shutdown;
 
     /** Use Session.Create instead **/
     private Session() {}
@@ -57,19 +86,46 @@ public class Session
 
     private Session(Client host, Server owningServer, int sessionId, int maxClients, int maxTeams)
     {
-        // Initialize Client Id Stack
-        for (byte i = 0; i < maxClients; i++)
-            clientIds.add(i);
+        this(owningServer);
+        this.sessionId = sessionId;
+        begin(host, maxClients, maxTeams);
+    }
 
-        this.maxClients   = maxClients;
-        this.host         = host;
+    /**
+     * A session that has not been opened yet, kept by a SessionPool until a lobby is created with it
+     * @param owningServer The server that this session belongs to
+     */
+    Session(Server owningServer)
+    {
         this.owningServer = owningServer;
-        DatagramSocket socket = owningServer.getSocket();
-        this.sessionId    = sessionId;
-        this.communicator = new SessionCommunicator(this, socket);
-        this.teamManager  = new TeamManager(clients, maxClients, maxTeams);
+        this.communicator = new SessionCommunicator(this, owningServer.getSocket(), owningServer.getEgressScheduler(),
+                                                    owningServer.getFragmenter());
+    }
+
+    /**
+     * Open a pooled session as a new lobby. The id is set straight away so the session can be published, the rest
+     * runs as a task in case a thread holding this session from its last use is still finishing with it
+     */
+    void open(Client host, int sessionId, int maxClients, int maxTeams)
+    {
+        this.sessionId = sessionId;
+        execute(() -> begin(host, maxClients, maxTeams));
+    }
+
+    private void begin(Client host, int maxClients, int maxTeams)
+    {
+        this.maxClients = Math.min(maxClients, MAX_CLIENT_IDS);
+        this.host       = host;
+        if (teamManager == null || teamManager.getNumberOfTeams() != maxTeams)
+            teamManager = new TeamManager(clients, maxClients, maxTeams);
+        shutdown = false;
+        communicator.reopen();
         host.setHosting(true);
 
+        SessionJournal journal = owningServer.getJournal();
+        if (journal != null)
+            journal.sessionCreated(sessionId, this.maxClients, maxTeams);
+
         Logger.info("New Session Has Been Created.. \n  Host Name: {}\n  Host Ip: {}\n  Host Port: {}",
                 host.getUserName(), host.getIp().getHostName(), host.getPort());
 
@@ -78,23 +134,102 @@ public class Session
     }
 
     /**
-     * Add a new client to this exception if that client is not already added. Add a task to the task list
-     * so that we can send all other clients the client data. (Possibly?)
+     * Bring back a session that was running before the server restarted, with the clients, ids, teams and host the
+     * journal recorded for it. Every client is sent the whole roster, as the roster version starts over
+     * @param image The session as the journal recorded it
+     * @param owningServer The server that this session belongs to
+     * @return The restored Session instance, with no clients if none of their endpoints could be claimed
+     */
+    public static Session Restore(SessionJournal.SessionImage image, Server owningServer)
+    {
+        return new Session(image, owningServer);
+    }
+
+    private Session(SessionJournal.SessionImage image, Server owningServer)
+    {
+        this.maxClients   = Math.min(image.getMaxClients(), MAX_CLIENT_IDS);
+        this.owningServer = owningServer;
+        this.sessionId    = image.getSessionId();
+        this.communicator = new SessionCommunicator(this, owningServer.getSocket(), owningServer.getEgressScheduler(),
+                                                    owningServer.getFragmenter());
+        this.teamManager  = new TeamManager(clients, maxClients, image.getTeams());
+
+        List<Client> restored = new ArrayList<>();
+        for (SessionJournal.ClientImage entry : image.getClients())
+        {
+            Client client = new Client(entry.getUserName(), entry.getIp(), entry.getPort(), entry.getWireFormat());
+            if (!clientIds.claim(entry.getClientId()))
+                continue;
+
+            if (!owningServer.getEndpoints().claim(client.getIp(), client.getPort(), sessionId, entry.getClientId()))
+            {
+                clientIds.free(entry.getClientId());
+                Logger.warn("Client {} could not be restored to session {}, its endpoint is taken", client.getUserName(), sessionId);
+                continue;
+            }
+
+            client.setClientId(entry.getClientId());
+            client.setRating(entry.getRating());
+            teamManager.addClientToTeam(client, entry.getTeam());
+            if (entry.getClientId() == image.getHostId())
+                host = client;
+            restored.add(client);
+        }
+        clients = Collections.unmodifiableList(restored);
+
+        if (clients.isEmpty())
+            return;
+
+        if (host == null)
+        {
+            host = clients.get(0);
+            SessionJournal journal = owningServer.getJournal();
+            if (journal != null)
+                journal.hostChanged(sessionId, host.getClientId());
+        }
+        host.setHosting(true);
+
+        updateOpenSessionIndex();
+        sendRoster(clients);
+        Logger.info("Session {} has been restored with {} clients.", sessionId, clients.size());
+    }
+
+    /**
+     * Add a new client to this exception if that clients endpoint is not already a client anywhere on the server.
+     * Add a task to the task list so that we can send all other clients the client data. (Possibly?)
      * @param newClient Client instance to be added
      */
     private void addClient(Client newClient, boolean hosting)
     {
-        if (!clients.contains(newClient))
+        int clientId = clientIds.allocate();
+        if (clientId < 0)
         {
-            newClient.setClientId(clientIds.poll()); // Get client Id
-            clients.add(newClient);
+            Logger.warn("Session {} has no client ids left, {} was not added", sessionId, newClient.getUserName());
+            return;
+        }
+
+        if (owningServer.getEndpoints().claim(newClient.getIp(), newClient.getPort(), sessionId, clientId))
+        {
+            newClient.setClientId(clientId);
+            List<Client> others = clients;
+            clients = with(others, newClient);
+            updateOpenSessionIndex();
 
             teamManager.addClientGetTeam(newClient);
+            rosterVersion++;
+
+            SessionJournal journal = owningServer.getJournal();
+            if (journal != null)
+                journal.clientJoined(sessionId, newClient);
 
             SessionMessage joinMessage = SessionMessage.JoinSuccessMessage(newClient, hosting, sessionId);
 
+            // The new client gets the whole roster, everyone else only hears about the new client
             communicator.addMessage(joinMessage, newClient);
-            communicator.addBroadcastAllClientsInfoMessage();
+            sendRoster(Collections.singletonList(newClient));
+
+            if (!others.isEmpty())
+                communicator.addMessage(SessionMessage.ClientAddedMessage(newClient, rosterVersion), others);
 
             if (clients.size() >= maxClients)
                 communicator.addMessage(SessionMessage.GameReadyMessage(), host);
@@ -103,13 +238,14 @@ public class Session
         }
         else
         {
+            clientIds.free(clientId);
             Logger.info("Client {} tryed to join more than once, not added to session {}", newClient.getUserName(), host.getUserName());
         }
     }
 
     // Call addClient but set host to false. Used for backwards compatibility
     public void addClient(Client newClient) {
-        addClient(newClient, false);
+        execute(() -> addClient(newClient, false));
     }
 
     /**
@@ -118,18 +254,38 @@ public class Session
      */
     private void removeClient(Client client)
     {
-        if (clients.contains(client))
+        int index = indexOf(client);
+        if (index >= 0)
         {
-            clientIds.add(client.getClientId());
-            clients.remove(client);
-            client.getTeam().removeMember(client);
+            clientIds.free(client.getClientId());
+            clients = without(clients, index);
+            owningServer.getEndpoints().remove(client.getIp(), client.getPort(), sessionId, client.getClientId());
+            updateOpenSessionIndex();
+            Client moved = teamManager.removeClient(client);
+            rosterVersion++;
+
+            SessionJournal journal = owningServer.getJournal();
+            if (journal != null)
+                journal.clientLeft(sessionId, client.getClientId());
 
             communicator.addMessage(SessionMessage.SendYouDisconnectedMessage(), client);
-            communicator.addMessage(SessionMessage.SendOtherDisconnectMessage(client), clients);
+            communicator.addMessage(SessionMessage.SendOtherDisconnectMessage(client, rosterVersion), clients);
+
+            // Its disconnect notice is still retransmitted, but a client that left may never ack it
+            client.getReliableChannel().markDeparted();
+
+            // Leaving opened the teams too far apart, a player was moved to keep them even
+            if (moved != null)
+            {
+                rosterVersion++;
+                if (journal != null)
+                    journal.teamChanged(sessionId, moved.getClientId(), moved.getTeamId());
+                communicator.addMessage(SessionMessage.ClientUpdatedMessage(moved, rosterVersion), clients);
+            }
 
             if (clients.isEmpty())
                 owningServer.sessionShutdown(this);
-            else if (client.equals(host))
+            else if (client == host)
                 migrateHost(clients.get(0));
 
             Logger.info("Client {} has been removed from {}'s session.", client.getUserName(), host.getUserName());
@@ -143,7 +299,78 @@ public class Session
     }
 
     /**
-     * @return List of Clients in this session
+     * Run a task as the owner of this session. If no other thread owns the session the calling thread becomes its
+     * owner and runs the task before returning, otherwise the task is left in the mailbox for the current owner.
+     * Tasks that a task submits run after it, never inside it.
+     * @param task The task to run against this sessions state
+     */
+    public void execute(Runnable task)
+    {
+        if (mailbox.isEmpty() && owned.compareAndSet(false, true))
+        {
+            try {
+                run(task);
+                drainMailbox();
+            } finally {
+                owned.set(false);
+            }
+        }
+        else
+            mailbox.add(task);
+
+        // Pick up tasks added while the last owner was letting go
+        while (!mailbox.isEmpty() && owned.compareAndSet(false, true))
+        {
+            try {
+                drainMailbox();
+            } finally {
+                owned.set(false);
+            }
+        }
+    }
+
+    /** Called by the owner **/
+    private void drainMailbox()
+    {
+        for (Runnable task = mailbox.poll(); task != null; task = mailbox.poll())
+            run(task);
+    }
+
+    private void run(Runnable task)
+    {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Logger.error(e, "Task failed in session {}", sessionId);
+        }
+    }
+
+    private static List<Client> with(List<Client> clients, Client client)
+    {
+        List<Client> changed = new ArrayList<>(clients.size() + 1);
+        changed.addAll(clients);
+        changed.add(client);
+        return Collections.unmodifiableList(changed);
+    }
+
+    private static List<Client> without(List<Client> clients, int index)
+    {
+        List<Client> changed = new ArrayList<>(clients);
+        changed.remove(index);
+        return Collections.unmodifiableList(changed);
+    }
+
+    private int indexOf(Client client)
+    {
+        List<Client> current = clients;
+        for (int i = 0; i < current.size(); i++)
+            if (current.get(i) == client)
+                return i;
+        return -1;
+    }
+
+    /**
+     * @return Immutable snapshot of the Clients in this session
      */
     public List<Client> getClients()
     {
@@ -166,38 +393,130 @@ public class Session
         return sessionId;
     }
 
+    /**
+     * @return The most clients this session holds
+     */
+    public int getMaxClients()
+    {
+        return maxClients;
+    }
+
+    /**
+     * @return The version of this sessions roster, bumped every time a client is added, removed or changed
+     */
+    public int getRosterVersion()
+    {
+        return rosterVersion;
+    }
+
+    /**
+     * Apply a clients acknowledgement of the reliable messages it has received
+     * @param client The client that sent the acknowledgement
+     * @param ack The newest reliable sequence number the client has received
+     * @param ackBits Bit n set means sequence number ack - 1 - n was received too
+     */
+    public void acknowledge(Client client, int ack, long ackBits)
+    {
+        client.getReliableChannel().acknowledge(ack, ackBits, System.nanoTime());
+    }
+
+    /**
+     * Send a client the full roster again, used when it reports a gap in the roster versions it has received. In a
+     * large lobby only the first page is sent, the client asks for the rest
+     * @param client The client that is out of sync
+     */
+    public void resyncRoster(Client client)
+    {
+        execute(() -> sendRoster(Collections.singletonList(client)));
+    }
+
+    /**
+     * Send a client one page of the roster of this large lobby
+     * @param client The client that asked for the page
+     * @param page The page it asked for
+     */
+    public void sendRosterPage(Client client, int page)
+    {
+        execute(() -> communicator.addRosterPageMessage(Collections.singletonList(client), page, rosterPageSize()));
+    }
+
+    /**
+     * @return true if this session holds more clients than fit on one roster page, so its roster is synced in pages
+     */
+    public boolean isLargeLobby()
+    {
+        return maxClients > rosterPageSize();
+    }
+
+    private int rosterPageSize()
+    {
+        return owningServer.getConfig().getRosterPageSize();
+    }
+
+    /** The whole roster, or its first page in a large lobby **/
+    private void sendRoster(List<Client> recipients)
+    {
+        if (isLargeLobby())
+            communicator.addRosterPageMessage(recipients, 0, rosterPageSize());
+        else
+            communicator.addRosterSnapshotMessage(recipients);
+    }
+
+    OpenSessionIndex.Entry getOpenSessionEntry()
+    {
+        return openSessionEntry;
+    }
+
+    /** Move this session to the open session bucket matching its free slots, called whenever occupancy changes **/
+    private void updateOpenSessionIndex()
+    {
+        owningServer.getOpenSessions().update(this, maxClients - clients.size());
+    }
+
     /** Change the host to the first host found **/
     private void migrateHost(Client client)
     {
         int hostId = host.getClientId();
         host = client;
         host.setHosting(true);
+        rosterVersion++;
+
+        SessionJournal journal = owningServer.getJournal();
+        if (journal != null)
+            journal.hostChanged(sessionId, host.getClientId());
+
         Logger.info("Host disconnected, new host is {}, {}, is host = {}", host.getClientId(), host.getUserName(), host.isHost());
 
         SessionMessage newHostMessage = new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.HOST_CHANGE)
                 .addData("newHost", host.getClientId())
-                .addData("oldHost", hostId)
-                .build());
+                .addData("oldHost", hostId));
 
         communicator.addMessage(newHostMessage, clients);
+        communicator.addMessage(SessionMessage.ClientUpdatedMessage(host, rosterVersion), clients);
     }
 
     public void disconnectClient(Client client)
     {
-        removeClient(client);
+        execute(() -> removeClient(client));
+    }
+
+    /**
+     * @param client A client instance
+     * @return true if this exact instance is still in this session and the session has not shut down
+     */
+    public boolean hasClient(Client client)
+    {
+        return !shutdown && indexOf(client) >= 0;
     }
 
     public Client findClientFromId(int cId)
     {
-        synchronized (clients)
-        {
-            for (Client client : clients)
-                if (client.getClientId() == cId)
-                    return client;
+        for (Client client : clients)
+            if (client.getClientId() == cId)
+                return client;
 
-            Logger.warn("Client with id {} in session {} was not found.", cId, sessionId);
-            return null;
-        }
+        Logger.warn("Client with id {} in session {} was not found.", cId, sessionId);
+        return null;
     }
 
     /**
@@ -208,9 +527,17 @@ public class Session
         return host;
     }
 
+    /**
+     * @param maxClients The most clients this session holds, at most MAX_CLIENT_IDS
+     * @return This Session instance
+     */
     public Session setMaxClients(int maxClients)
     {
-        this.maxClients = maxClients;
+        execute(() ->
+        {
+            this.maxClients = Math.min(maxClients, MAX_CLIENT_IDS);
+            updateOpenSessionIndex();
+        });
         return this;
     }
 
@@ -227,13 +554,67 @@ public class Session
 
     public void shutdown()
     {
-        communicator.shutdown();
-        Logger.info("Session {} is shutting down..", sessionId);
+        execute(() ->
+        {
+            shutdown = true;
+            for (Client client : clients)
+                owningServer.getEndpoints().remove(client.getIp(), client.getPort(), sessionId, client.getClientId());
+            owningServer.getOpenSessions().remove(this);
+            communicator.shutdown();
+            Logger.info("Session {} is shutting down..", sessionId);
+        });
     }
 
+    /**
+     * Called by the communicator once a shut down session has sent everything it queued. Forgets the last lobby and
+     * hands this session back to the servers pool to be opened again
+     */
+    void recycle()
+    {
+        execute(() ->
+        {
+            for (Client client : clients)
+                clientIds.free(client.getClientId());
+            clients = Collections.unmodifiableList(new ArrayList<>());
+            host = null;
+            rosterVersion = 0;
+            teamManager.clear();
+
+            SessionPool pool = owningServer.getSessionPool();
+            if (pool != null)
+                pool.release(this);
+        });
+    }
+
+    /**
+     * Start the game and hand the session over to the clients. If the server runs a relay every client is first sent
+     * the relay port and its own ticket, for when it can not reach the others directly
+     */
     public void startGame()
     {
-        Logger.info("Game Has Been Started. Session can be Shutdown");
-        owningServer.sessionShutdown(this);
+        execute(() ->
+        {
+            Relay relay = owningServer.getRelay();
+            Relay.Group group = relay == null ? null : relay.open(clientIds());
+            if (group != null)
+            {
+                for (Client client : clients)
+                    communicator.addMessage(new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.RELAY_ASSIGNED)
+                            .addData("port", group.getPort())
+                            .addData("ticket", group.getTicket(client.getClientId()))), client);
+            }
+
+            Logger.info("Game Has Been Started. Session can be Shutdown");
+            owningServer.sessionShutdown(this);
+        });
+    }
+
+    private int[] clientIds()
+    {
+        List<Client> roster = clients;
+        int[] ids = new int[roster.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = roster.get(i).getClientId();
+        return ids;
     }
 }
\ No newline at end of file
@@ -1,5 +1,10 @@
 package com.gloomy.session;
 
+import com.gloomy.protocol.BinaryCodec;
+import com.gloomy.protocol.EncodedRosterEntry;
+import com.gloomy.protocol.PacketBundler;
+import com.gloomy.protocol.PacketFragmenter;
+import com.gloomy.protocol.WireFormat;
 import com.gloomy.server.PacketType;
 import com.gloomy.utils.GloomyNetMessageBuilder;
 import org.pmw.tinylog.Logger;
@@ -8,75 +13,334 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class uses a thread for sending outgoing messages to  the specified recipients using a BlockingQueue
- * A SessionCommunicator is owned by a Session, and messages to be send are added to the communicator. The
- * Communicators thread will then pick these messages out of the queue and send them.
+ * A SessionCommunicator is owned by a Session and holds the sessions queue of outgoing messages. Messages to be
+ * sent are added to the communicator, which hands itself to the servers EgressScheduler whenever it has messages
+ * waiting. One of the schedulers sender threads then sends them in the order they were added.
  */
-public class SessionCommunicator
+public class SessionCommunicator implements Delayed
 {
 
-    private final List<Client> sessionClients;
+    private final Session owningSession;
+
+    /** Set only on the communicators made by WakeUp **/
+    private final boolean wakeUp;
 
     private final DatagramSocket socket;
 
-    private final BlockingQueue<SessionMessage> messageSendList = new LinkedBlockingQueue<>();
+    private final EgressScheduler scheduler;
+
+    private final PacketFragmenter fragmenter;
+
+    private final Queue<SessionMessage> messageSendList = new ConcurrentLinkedQueue<>();
+
+    /** True while this communicator is in the schedulers ready queue or being worked by a sender thread **/
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /** Clients with reliable datagrams that have not been acknowledged. Only touched by the sender holding this **/
+    private final Set<Client> awaitingAcks = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private final AtomicBoolean retransmitArmed = new AtomicBoolean();
+
+    /** Whether a client still in the session was waiting on an ack at the end of the last turn. Clients that left
+     *  are still retransmitted to, but a shut down session is not held back for them **/
+    private volatile boolean awaitingMemberAcks;
+
+    private volatile boolean working;
+
+    /** Set once the session has been handed back after a shutdown, so it is only handed back once **/
+    private final AtomicBoolean recycled = new AtomicBoolean();
+
+    /** When this communicator may be given a turn, set by the scheduler each time it is queued **/
+    private long readyAt;
 
-    private boolean working;
+    private long scheduleSequence;
+
+    private SessionCommunicator()
+    {
+        this.owningSession  = null;
+        this.wakeUp         = true;
+        this.socket         = null;
+        this.scheduler      = null;
+        this.fragmenter     = null;
+    }
+
+    /**
+     * A communicator with no session, placed in the schedulers ready queue to wake a sender thread up when the
+     * scheduler shuts down. Each thread gets its own, as a communicator can only be in the queue once
+     * @return A new wake up communicator
+     */
+    static SessionCommunicator WakeUp()
+    {
+        return new SessionCommunicator();
+    }
+
+    /**
+     * @return true if this communicator was made by WakeUp and has nothing to send
+     */
+    boolean isWakeUp()
+    {
+        return wakeUp;
+    }
 
     /**
      * Create a session communicator
      * @param owningSession The session that this communicator belongs to
      * @param sessionSocket The socket that should be used to send data through
+     * @param scheduler The servers egress scheduler that will send this sessions messages
+     * @param fragmenter Packs and splits messages to the servers MTU
      */
-    public SessionCommunicator(Session owningSession, DatagramSocket sessionSocket)
+    public SessionCommunicator(Session owningSession, DatagramSocket sessionSocket, EgressScheduler scheduler,
+                               PacketFragmenter fragmenter)
     {
-        Session owningSession1 = owningSession;
-        this.sessionClients = owningSession.getClients();
+        this.owningSession  = owningSession;
+        this.wakeUp         = false;
         this.socket         = sessionSocket;
-
-        // Start processing this sessions commands
-        working = true;
-        Thread sessionThread = new Thread(this::processOutgoingMessages);
-        sessionThread.start();
+        this.scheduler      = scheduler;
+        this.fragmenter     = fragmenter;
+        this.working        = true;
     }
 
-    /** Process tasks on own thread that have to do with this session **/
-    private void processOutgoingMessages()
+    /**
+     * Send up to maxMessages queued messages. Only called by the sender thread that currently holds this communicator
+     * @param maxMessages The most messages to send before giving other sessions a turn
+     */
+    void sendPendingMessages(int maxMessages)
     {
-        SessionMessage message = null;
-
         if (socket == null) {
-            Logger.warn("Socket is null for the Session, not processing commands..");
+            Logger.warn("Socket is null for the Session, dropping its outgoing messages..");
+            messageSendList.clear();
             return;
         }
-        working = true;
 
-        while (working)
-        {
-            try { message = messageSendList.take(); } catch (InterruptedException e) { e.printStackTrace();  }
+        long now = System.nanoTime();
+        if (scheduler.isReliableDelivery())
+            sendRetransmits(now);
 
-            byte[] messageData = message.message.getBytes();
-            DatagramPacket sendPacket = new DatagramPacket(messageData, messageData.length);
+        if (scheduler.isCoalescing())
+        {
+            sendPendingMessagesCoalesced(maxMessages, now);
+            return;
+        }
 
+        SessionMessage message;
+        for (int sent = 0; sent < maxMessages && (message = messageSendList.poll()) != null; sent++)
+        {
             // Send recipients the message
-            synchronized (sessionClients)
+            for (Client client : message.recipients)
             {
-                for (Client client : message.recipients)
+                for (byte[] datagram : message.getDatagrams(client.getWireFormat()))
                 {
-                    sendPacket.setAddress(client.getIp());
-                    sendPacket.setPort(client.getPort());
-                    sendDatagramPacket(sendPacket);
+                    datagram = prepareDatagram(message, client, datagram, now);
+                    sendDatagramPacket(new DatagramPacket(datagram, datagram.length, client.getIp(), client.getPort()));
                 }
             }
         }
     }
 
+    /**
+     * Frame a datagram for its client, control messages go through the clients ReliableChannel when reliable
+     * delivery is on
+     * @return The datagram to send
+     */
+    private byte[] prepareDatagram(SessionMessage message, Client client, byte[] datagram, long now)
+    {
+        if (!scheduler.isReliableDelivery() || !message.isControlMessage())
+            return datagram;
+
+        awaitingAcks.add(client);
+        return client.getReliableChannel().frame(datagram, now);
+    }
+
+    /**
+     * Send again every reliable datagram whose retransmit timeout has passed
+     * @param now The current System.nanoTime
+     */
+    private void sendRetransmits(long now)
+    {
+        for (Client client : awaitingAcks)
+        {
+            List<byte[]> retransmits = client.getReliableChannel().collectRetransmits(now);
+            if (retransmits == null)
+                continue;
+
+            for (byte[] datagram : retransmits)
+                sendDatagramPacket(new DatagramPacket(datagram, datagram.length, client.getIp(), client.getPort()));
+        }
+    }
+
+    /**
+     * Arm a retransmit timer for the earliest unacknowledged datagram, unless one is armed already. Forgets clients
+     * that have nothing left waiting on an ack.
+     * @return true if a client that is still in the session is waiting on an ack
+     */
+    private boolean armRetransmitTimer()
+    {
+        long next = Long.MAX_VALUE;
+        boolean memberWaiting = false;
+        Iterator<Client> clients = awaitingAcks.iterator();
+        while (clients.hasNext())
+        {
+            ReliableChannel channel = clients.next().getReliableChannel();
+            long clientNext = channel.nextRetransmitAt();
+            if (clientNext == Long.MAX_VALUE)
+            {
+                clients.remove();
+                continue;
+            }
+
+            memberWaiting |= !channel.isDeparted();
+            if (next == Long.MAX_VALUE || clientNext - next < 0)
+                next = clientNext;
+        }
+
+        if (next != Long.MAX_VALUE && retransmitArmed.compareAndSet(false, true))
+            scheduler.armRetransmitTimer(this, next);
+        return memberWaiting;
+    }
+
+    /**
+     * Called by the scheduler when this communicators retransmit timer is due
+     */
+    void retransmitTimerFired()
+    {
+        retransmitArmed.set(false);
+        scheduleIfIdle();
+    }
+
+    /**
+     * Gather the datagrams of up to maxMessages queued messages by recipient, then send each recipient its
+     * datagrams packed into as few bundles as the MTU allows
+     * @param maxMessages The most messages to send before giving other sessions a turn
+     * @param now The current System.nanoTime
+     */
+    private void sendPendingMessagesCoalesced(int maxMessages, long now)
+    {
+        Map<Client, List<byte[]>> outbound = new IdentityHashMap<>();
+
+        SessionMessage message;
+        for (int sent = 0; sent < maxMessages && (message = messageSendList.poll()) != null; sent++)
+        {
+            for (Client client : message.recipients)
+            {
+                List<byte[]> datagrams = outbound.get(client);
+                if (datagrams == null)
+                    outbound.put(client, datagrams = new ArrayList<>());
+
+                for (byte[] datagram : message.getDatagrams(client.getWireFormat()))
+                    datagrams.add(prepareDatagram(message, client, datagram, now));
+            }
+        }
+
+        for (Map.Entry<Client, List<byte[]>> recipient : outbound.entrySet())
+        {
+            Client client = recipient.getKey();
+            for (byte[] datagram : PacketBundler.bundle(recipient.getValue(), client.getWireFormat(), fragmenter.getMtu()))
+                sendDatagramPacket(new DatagramPacket(datagram, datagram.length, client.getIp(), client.getPort()));
+        }
+    }
+
+    /**
+     * Called by the sender thread when its turn with this communicator is over. Puts the communicator back in the
+     * ready queue if it still has messages, otherwise marks it as idle.
+     */
+    void finishTurn()
+    {
+        awaitingMemberAcks = !awaitingAcks.isEmpty() && armRetransmitTimer();
+
+        if (!messageSendList.isEmpty())
+        {
+            scheduler.schedule(this, 0);
+            return;
+        }
+
+        scheduled.set(false);
+
+        // A message may have been added between the empty check and clearing the flag
+        if (!messageSendList.isEmpty())
+            scheduleIfIdle();
+        else
+            recycleIfDrained();
+    }
+
+    /**
+     * Hand the session back to be recycled once it is shut down and this communicator has nothing left to send, and
+     * no client still in the session waits on an ack. Datagrams to clients that left keep being retransmitted from
+     * the recycled communicator until they are acknowledged or given up on. Nothing can be queued after the
+     * shutdown, so once this is true it stays true.
+     */
+    private void recycleIfDrained()
+    {
+        if (working || owningSession == null || awaitingMemberAcks || scheduled.get())
+            return;
+
+        if (messageSendList.isEmpty() && recycled.compareAndSet(false, true))
+            owningSession.recycle();
+    }
+
+    /** Hand this communicator to the scheduler unless it is already scheduled **/
+    private void scheduleIfIdle()
+    {
+        if (scheduler != null && scheduled.compareAndSet(false, true))
+            scheduler.schedule(this, scheduler.getCoalesceWindowNanos());
+    }
+
+    /**
+     * Called by the scheduler just before this communicator is put in its ready queue
+     * @param readyAt The System.nanoTime at which this communicator should get its turn
+     * @param scheduleSequence Orders communicators that become ready at the same time
+     */
+    void setReadyAt(long readyAt, long scheduleSequence)
+    {
+        this.readyAt          = readyAt;
+        this.scheduleSequence = scheduleSequence;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit)
+    {
+        return unit.convert(readyAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other)
+    {
+        SessionCommunicator communicator = (SessionCommunicator) other;
+        long difference = readyAt - communicator.readyAt;
+        if (difference == 0)
+            difference = scheduleSequence - communicator.scheduleSequence;
+
+        return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+    }
+
+    /**
+     * Queue a message to be sent
+     * @param message The message, with its recipients set
+     */
+    private void enqueue(SessionMessage message)
+    {
+        if (!working)
+        {
+            Logger.warn("Session communicator has been shut down, dropping message..");
+            return;
+        }
+
+        messageSendList.add(message);
+        scheduleIfIdle();
+    }
+
     /***
      * Adds a new SessionMessage to the messageQueue with the specified clients as recipients
      * @param message The SessionMessage to send
@@ -85,8 +349,9 @@ public class SessionCommunicator
     public void addMessage(SessionMessage message, Client... recipients)
     {
         message.setRecipients(recipients);
+        message.encodeForRecipients(fragmenter);
         Logger.info("Recipients amount: {}", recipients.length);
-        messageSendList.add(message);
+        enqueue(message);
     }
 
     /**
@@ -97,86 +362,110 @@ public class SessionCommunicator
     public void addMessage(SessionMessage message, List<Client> recipients)
     {
         message.setRecipients(recipients);
-        messageSendList.add(message);
+        message.encodeForRecipients(fragmenter);
+        enqueue(message);
     }
 
     /** Creates a message with all Client information to be sent to all clients */
-    /** Splits the client info if message size gets too long                    */
     public void addBroadcastAllClientsInfoMessage()
     {
-        final int MAX_USERS_PER_PACKET = 6;
+        addRosterSnapshotMessage(owningSession.getClients());
+    }
 
-        if (sessionClients.size() > MAX_USERS_PER_PACKET)
-            addBroadcastClientInfoMessagesSplit(MAX_USERS_PER_PACKET);
-        else
-            addBroadcastClientInfoMessageAsOnePacket();
+    /**
+     * Send the full roster to a single client, used when it joins or reports that it missed a roster delta
+     * @param recipient The client to send the roster to
+     */
+    public void addRosterSnapshotMessage(Client recipient)
+    {
+        addRosterSnapshotMessage(Collections.singletonList(recipient));
     }
 
-    /** Simply sends all Users Info in a Single Message Packet */
-    private void addBroadcastClientInfoMessageAsOnePacket()
+    /**
+     * Creates messages with all Client information, tagged with the sessions current roster version. Each
+     * recipient gets the roster in its own format, packed into as few datagrams of up to the MTU as it fits in.
+     * @param recipients Clients to send the roster to
+     */
+    public void addRosterSnapshotMessage(List<Client> recipients)
     {
-        GloomyNetMessageBuilder builder = GloomyNetMessageBuilder.Create(PacketType.ALL_CLIENT_INFO);
-        List<Map<String, Object>> clientInfo = new ArrayList<>();
+        List<Client> roster = owningSession.getClients();
 
-        synchronized (sessionClients)
+        for (WireFormat format : WireFormat.values())
         {
-            for (Client client : sessionClients)
-                clientInfo.add(client.getInfoMap());
-        }
-
-        builder.addData("clients", clientInfo);
-        String finalInfo = builder.build();
-        addMessageToBeBroadcasted(finalInfo);
+            List<Client> speakers = new ArrayList<>();
+            for (Client recipient : recipients)
+                if (recipient.getWireFormat() == format)
+                    speakers.add(recipient);
 
-        Logger.info(finalInfo);
-        Logger.info("Packet Size For Broadcast is: {}", finalInfo.getBytes().length);
+            if (!speakers.isEmpty())
+                addRosterSnapshotMessages(roster, format, speakers);
+        }
     }
 
-    /** This is used to break client info into multiple packets if needed. Sending too large of packets
-     * may result in unwanted behaviour
-     * @param maxUsersPerPacket Maximum users info to include in a single packet
+    /**
+     * Pack roster entries into ALL_CLIENT_INFO messages by their encoded size. An entry that does not fit in an
+     * empty message on its own is sent alone and fragmented.
+     * @param roster The clients to describe
+     * @param format The format every recipient speaks
+     * @param recipients Clients to send the roster to
      */
-    private void addBroadcastClientInfoMessagesSplit(int maxUsersPerPacket)
+    private void addRosterSnapshotMessages(List<Client> roster, WireFormat format, List<Client> recipients)
     {
-        GloomyNetMessageBuilder builder = GloomyNetMessageBuilder.Create(PacketType.ALL_CLIENT_INFO);
-        List<Map<String, Object>> clientInfo = new ArrayList<>();
+        byte[] empty  = rosterSnapshotBuilder().addData("clients", new ArrayList<>()).buildBytes(format);
+        int budget    = fragmenter.getMtu() - empty.length;
+        int separator = format == WireFormat.JSON ? 1 : 0;
+        int maxCount  = format == WireFormat.BINARY ? BinaryCodec.MAX_LIST_SIZE : Integer.MAX_VALUE;
 
-        synchronized (sessionClients)
+        List<EncodedRosterEntry> clientInfo = new ArrayList<>();
+        int used = 0;
+
+        for (Client client : roster)
         {
-            for (int i = 0; i < sessionClients.size(); i++)
-            {
-                Client client = sessionClients.get(i);
-                clientInfo.add(client.getInfoMap());
+            EncodedRosterEntry info = client.getRosterEntry();
+            int size = format == WireFormat.BINARY ? info.getBinary().length : info.getJsonSize();
 
-                if (i != 0 && (i / (maxUsersPerPacket - 1)) % 1 == 0)
-                {
-                    builder.addData("clients", clientInfo);
-                    String finalInfo = builder.build();
-                    addMessageToBeBroadcasted(finalInfo);
-                    builder = GloomyNetMessageBuilder.Create(PacketType.ALL_CLIENT_INFO);
-                    clientInfo.clear();
-                    Logger.info("Packet Size For Broadcast is: {}", finalInfo.getBytes().length);
-                }
+            if (!clientInfo.isEmpty() && (used + separator + size > budget || clientInfo.size() == maxCount))
+            {
+                addMessage(new SessionMessage(rosterSnapshotBuilder().addData("clients", clientInfo)), recipients);
+                clientInfo = new ArrayList<>();
+                used = 0;
             }
+
+            used += (clientInfo.isEmpty() ? 0 : separator) + size;
+            clientInfo.add(info);
         }
 
         if (!clientInfo.isEmpty())
-        {
-            builder.addData("clients", clientInfo);
-            String finalInfo = builder.build();
-            addMessageToBeBroadcasted(finalInfo);
-            Logger.info("Packet Size For Broadcast is: {}", finalInfo.getBytes().length);
-        }
+            addMessage(new SessionMessage(rosterSnapshotBuilder().addData("clients", clientInfo)), recipients);
     }
 
     /**
-     * Adds a message to be broadcasted to all clients to the outgoing message queue
-     * @param jsonMessage Message to send to clients
+     * Send one page of the roster of a large lobby, the clients from page * pageSize on in join order. Entries are
+     * copied from each clients cached encoding, so a page costs no encoding work for clients that have not changed
+     * @param recipients Clients to send the page to
+     * @param page The page asked for, a page past the end is sent empty along with the amount of pages
+     * @param pageSize The amount of clients on a page
      */
-    private void addMessageToBeBroadcasted(String jsonMessage)
+    public void addRosterPageMessage(List<Client> recipients, int page, int pageSize)
     {
-        messageSendList.add(new SessionMessage(jsonMessage, sessionClients));
-        Logger.info("Packets Sending.. Broadcasting To All Clients: {}", jsonMessage);
+        List<Client> roster = owningSession.getClients();
+        int pages = Math.max(1, (roster.size() + pageSize - 1) / pageSize);
+
+        List<EncodedRosterEntry> entries = new ArrayList<>(pageSize);
+        for (int i = page * pageSize; i < Math.min(roster.size(), (page + 1) * pageSize); i++)
+            entries.add(roster.get(i).getRosterEntry());
+
+        addMessage(new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.ROSTER_PAGE)
+                .addData("v", owningSession.getRosterVersion())
+                .addData("page", page)
+                .addData("pages", pages)
+                .addData("total", roster.size())
+                .addData("clients", entries)), recipients);
+    }
+
+    private GloomyNetMessageBuilder rosterSnapshotBuilder()
+    {
+        return GloomyNetMessageBuilder.Create(PacketType.ALL_CLIENT_INFO).addData("v", owningSession.getRosterVersion());
     }
 
     /**
@@ -199,10 +488,21 @@ public class SessionCommunicator
     }
 
     /**
-     * Shut down this session and its thread
+     * Shut down this communicator. Messages that were queued before the shutdown, such as the last clients
+     * disconnect notice, are still sent. Anything added afterwards is dropped.
      */
     public void shutdown()
     {
         working = false;
+        recycleIfDrained();
+    }
+
+    /**
+     * Take messages again after the session was recycled and opened as a new lobby
+     */
+    void reopen()
+    {
+        recycled.set(false);
+        working = true;
     }
 }
@@ -1,24 +1,31 @@
 package com.gloomy.session;
 
+import com.gloomy.protocol.PacketFragmenter;
+import com.gloomy.protocol.WireFormat;
 import com.gloomy.server.PacketType;
 import com.gloomy.utils.GloomyNetMessageBuilder;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 class SessionMessage
 {
     public List<Client> recipients;
 
-    public final String message;
+    private final GloomyNetMessageBuilder message;
+
+    /** Datagrams to send per WireFormat, only the formats spoken by a recipient are ever encoded **/
+    private final byte[][][] encoded = new byte[WireFormat.values().length][][];
 
     /**
-     * Creates a new SessionMessage based on the provided string that will be sent to the specified
+     * Creates a new SessionMessage from the provided message builder that will be sent to the specified
      * recipients
-     * @param message The string message to send over the net
+     * @param message The message to send over the net
      * @param recipients Variable amount of clients that should recieve the message
      */
-    public SessionMessage(String message, Client... recipients)
+    public SessionMessage(GloomyNetMessageBuilder message, Client... recipients)
     {
         this.recipients = Arrays.asList(recipients);
         this.message = message;
@@ -26,12 +33,12 @@ class SessionMessage
 
     /**
      * Creates a new message with a previously created message and a list of recipients
-     * @param message A previously created string to send over the net
+     * @param message A previously created message to send over the net
      * @param recipients List of Clients To Send To
      */
-    public SessionMessage(String message, List<Client> recipients)
+    public SessionMessage(GloomyNetMessageBuilder message, List<Client> recipients)
     {
-        this.recipients = recipients;
+        this.recipients = new ArrayList<>(recipients);
         this.message = message;
     }
 
@@ -39,7 +46,7 @@ class SessionMessage
      * Creates a message but does not specify an recipients to send to.
      * @param message The message to send.
      */
-    public SessionMessage(String message)
+    public SessionMessage(GloomyNetMessageBuilder message)
     {
         this.message = message;
     }
@@ -48,19 +55,100 @@ class SessionMessage
         this.recipients = Arrays.asList(recipients);
     }
 
+    /**
+     * Set the recipients. The list is kept as it is, not copied, so it must never change afterwards. Sessions pass
+     * their immutable client snapshots or lists they built for this message alone
+     * @param recipients List of Clients To Send To
+     */
     public void setRecipients(List<Client> recipients) {
         this.recipients = recipients;
     }
 
+    /**
+     * Encode this message for every format spoken by its recipients. Called when the message is queued so that
+     * the sent bytes reflect session state at that moment rather than when the sender gets to it.
+     * @param fragmenter Splits the encoded message into fragments if it does not fit in one datagram
+     */
+    public void encodeForRecipients(PacketFragmenter fragmenter)
+    {
+        for (Client recipient : recipients)
+        {
+            int format = recipient.getWireFormat().ordinal();
+            if (encoded[format] == null)
+                encoded[format] = fragmenter.split(message.buildBytes(recipient.getWireFormat()));
+        }
+    }
+
+    /**
+     * Get the datagrams of this message in the format a recipient speaks. Only valid after encodeForRecipients
+     * @param format The WireFormat of the recipient
+     * @return The datagrams to send, a single one unless the message had to be fragmented
+     */
+    public byte[][] getDatagrams(WireFormat format)
+    {
+        return encoded[format.ordinal()];
+    }
+
+    /**
+     * @return true for the session events a client can not recover from missing, which are sent reliably when
+     *         reliable delivery is on. Roster changes are not, a client that misses one asks for a resync
+     */
+    public boolean isControlMessage()
+    {
+        switch (message.getMessageType())
+        {
+            case PacketType.JOIN_SUCCESS:
+            case PacketType.HOST_CHANGE:
+            case PacketType.GAME_READY:
+            case PacketType.YOURE_DISCONNECTED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
     /**
      * Builds and returns a SessionMessage with a notification of a client being disconnected
      * @param client The client that has disconnected
+     * @param rosterVersion The roster version of the session after the client was removed
      * @return SessionMessage that should be sent to need to know clients
      */
-    public static SessionMessage SendOtherDisconnectMessage(Client client) {
+    public static SessionMessage SendOtherDisconnectMessage(Client client, int rosterVersion) {
         return new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.CLIENT_DISCONNECTED)
-                .addData("cId", client.getClientId())
-                .build());
+                .addData("v", rosterVersion)
+                .addData("cId", client.getClientId()));
+    }
+
+    /**
+     * Builds a roster delta telling clients already in the session about a client that joined
+     * @param client The client that joined
+     * @param rosterVersion The roster version of the session after the client was added
+     * @return SessionMessage carrying the new clients roster entry
+     */
+    public static SessionMessage ClientAddedMessage(Client client, int rosterVersion)
+    {
+        return RosterEntryMessage(PacketType.CLIENT_ADDED, client, rosterVersion);
+    }
+
+    /**
+     * Builds a roster delta replacing the roster entry of a client whose info changed
+     * @param client The client that changed
+     * @param rosterVersion The roster version of the session after the change
+     * @return SessionMessage carrying the clients current roster entry
+     */
+    public static SessionMessage ClientUpdatedMessage(Client client, int rosterVersion)
+    {
+        return RosterEntryMessage(PacketType.CLIENT_UPDATED, client, rosterVersion);
+    }
+
+    private static SessionMessage RosterEntryMessage(int packetType, Client client, int rosterVersion)
+    {
+        GloomyNetMessageBuilder builder = GloomyNetMessageBuilder.Create(packetType).addData("v", rosterVersion);
+
+        for (Map.Entry<String, Object> entry : client.getInfoMap().entrySet())
+            builder.addData(entry.getKey(), entry.getValue());
+
+        return new SessionMessage(builder);
     }
 
     /**
@@ -68,7 +156,7 @@ class SessionMessage
      * @return SessionMessage to be sent to a user notifying them of their disconnect
      */
     public static SessionMessage SendYouDisconnectedMessage() {
-        return new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.YOURE_DISCONNECTED).build());
+        return new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.YOURE_DISCONNECTED));
     }
 
     /**
@@ -84,12 +172,11 @@ class SessionMessage
                 .addData("host", isHost)
                 .addData("cId", client.getClientId())
                 .addData("sId", sessionId)
-                .addData("team", client.getTeam().id)
-                .build());
+                .addData("team", client.getTeam().id));
     }
 
     public static SessionMessage GameReadyMessage()
     {
-        return new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.GAME_READY).build());
+        return new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.GAME_READY));
     }
 }
@@ -0,0 +1,99 @@
+package com.gloomy.session;
+
+import com.gloomy.server.Server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps shut down sessions, with their communicators, mailboxes, id allocators and team managers, to be opened again
+ * as new lobbies instead of building every one from scratch. The pool is filled when the server starts, and a session
+ * comes back once its communicator has sent everything that was queued before it shut down, so a lobby is never
+ * opened on a session that is still sending for the last one. When the pool is empty a new session is created, and
+ * when it is full a recycled session is left to the garbage collector, so the pool never blocks and never grows.
+ */
+public class SessionPool
+{
+    private final Server owningServer;
+
+    private final ArrayBlockingQueue<Session> idleSessions;
+
+    private final AtomicLong created = new AtomicLong();
+
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * @param owningServer The server that the pooled sessions belong to
+     * @param capacity The most sessions kept idle at once
+     */
+    public SessionPool(Server owningServer, int capacity)
+    {
+        this.owningServer = owningServer;
+        this.idleSessions = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * Fill the pool. Sessions send through the servers socket, so this is called once the server has opened it
+     */
+    public void prewarm()
+    {
+        while (idleSessions.remainingCapacity() > 0 && idleSessions.offer(new Session(owningServer)))
+            created.incrementAndGet();
+    }
+
+    /**
+     * Open a lobby on an idle session, or on a new one if none are idle
+     * @param host The Client instance that hosts the lobby
+     * @param sessionId A unique id for the lobby
+     * @param maxClients The maximum amount of clients that can be in the lobby
+     * @param maxTeams The amount of teams for the lobby to use
+     * @return The opened Session instance
+     */
+    public Session open(Client host, int sessionId, int maxClients, int maxTeams)
+    {
+        Session session = idleSessions.poll();
+        if (session == null)
+        {
+            session = new Session(owningServer);
+            created.incrementAndGet();
+        }
+        else
+            reused.incrementAndGet();
+
+        session.open(host, sessionId, maxClients, maxTeams);
+        return session;
+    }
+
+    /**
+     * Take back a session that has been recycled. Use Session.recycle() instead of calling this directly
+     * @param session The recycled session
+     */
+    void release(Session session)
+    {
+        idleSessions.offer(session);
+    }
+
+    /**
+     * @return The amount of sessions waiting in the pool
+     */
+    public int available()
+    {
+        return idleSessions.size();
+    }
+
+    /**
+     * @return The amount of sessions the pool has created, including the ones it was filled with
+     */
+    public long getCreatedCount()
+    {
+        return created.get();
+    }
+
+    /**
+     * @return The amount of lobbies that were opened on a session from the pool rather than a new one
+     */
+    public long getReusedCount()
+    {
+        return reused.get();
+    }
+}
@@ -5,11 +5,28 @@ import org.pmw.tinylog.Logger;
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Spreads the clients of a session over its teams. Teams are kept in two indexed heaps, one with the smallest team on
+ * top and one with the largest, ordered by size and then by the summed rating of their players, so a joining client
+ * goes to the smallest and weakest team without looking at the others. Adding or removing a client only moves its
+ * own team within each heap, so both cost O(log teams).
+ *
+ * Teams stay at most one player apart. A leaving client can only open the gap by one, so rebalancing is a single
+ * move of one player from the largest team to the smallest, which the session then announces as a roster update.
+ */
 public class TeamManager
 {
     private final List<Team> teams = new ArrayList<>();
 
-    private TeamManager() {}
+    private final TeamHeap smallest;
+
+    private final TeamHeap largest;
+
+    private TeamManager()
+    {
+        this.smallest = null;
+        this.largest  = null;
+    }
 
     /**
      * Constructs a new TeamManager with a handle on a specified client list and with max session total of players and
@@ -20,12 +37,16 @@ public class TeamManager
      */
     public TeamManager(List<Client> clientList, int maxPlayers, int amountOfTeams)
     {
-        List<Client> sessionClientList = clientList;
-        int amountOfTeams1 = amountOfTeams;
-        int maxPlayers1 = maxPlayers;
+        this.smallest = new TeamHeap(amountOfTeams, false);
+        this.largest  = new TeamHeap(amountOfTeams, true);
 
         for (int i = 0; i < amountOfTeams; i++)
-            teams.add(new Team(i));
+        {
+            Team team = new Team(i);
+            teams.add(team);
+            smallest.add(team);
+            largest.add(team);
+        }
     }
 
     /**
@@ -35,23 +56,94 @@ public class TeamManager
      */
     public void addClientGetTeam(Client client)
     {
-        Team clientsTeam = findTeamWithLeastPlayers();
-        client.setTeam(clientsTeam);
-        clientsTeam.teamMembers.add(client);
+        addToTeam(client, smallest.peek());
+    }
+
+    /**
+     * Put a client back on the team it had before the server restarted
+     * @param client The client to add
+     * @param teamId The id of its team, clients on a team that no longer exists go to the smallest team
+     */
+    void addClientToTeam(Client client, int teamId)
+    {
+        addToTeam(client, teamId >= 0 && teamId < teams.size() ? teams.get(teamId) : smallest.peek());
     }
 
-    private Team findTeamWithLeastPlayers()
+    /**
+     * Take a client off its team. If that leaves the teams more than one player apart, the last player to join the
+     * largest team is moved to the smallest
+     * @param client The client that left the session
+     * @return The client that was moved to another team, or null if the teams were still balanced
+     */
+    public Client removeClient(Client client)
     {
-        Team minTeam = teams.get(0);
+        Team team = client.getTeam();
+        if (team == null || team.teamMembers.get(client.teamSlot) != client)
+        {
+            Logger.warn("Client {} is not on a team of this session", client.getUserName());
+            return null;
+        }
+
+        removeFromTeam(client, team);
 
+        Team from = largest.peek();
+        Team to   = smallest.peek();
+        if (from.teamMembers.size() - to.teamMembers.size() <= 1)
+            return null;
+
+        Client moved = from.teamMembers.get(from.teamMembers.size() - 1);
+        removeFromTeam(moved, from);
+        addToTeam(moved, to);
+        return moved;
+    }
+
+    /**
+     * Take every client off every team, for when the session is recycled
+     */
+    void clear()
+    {
         for (Team team : teams)
         {
-            Logger.info("Compared Team Size {} vs First Team Size {}", team.teamMembers.size(), minTeam.teamMembers.size());
-            if (team.teamMembers.size() < minTeam.teamMembers.size())
-                minTeam = team;
+            team.teamMembers.clear();
+            team.rating = 0;
+            smallest.changed(team);
+            largest.changed(team);
+        }
+    }
+
+    /**
+     * @param teamId The id of a team
+     * @return The amount of players on that team
+     */
+    public int getTeamSize(int teamId)
+    {
+        return teams.get(teamId).teamMembers.size();
+    }
+
+    private void addToTeam(Client client, Team team)
+    {
+        client.setTeam(team);
+        client.teamSlot = team.teamMembers.size();
+        team.teamMembers.add(client);
+        team.rating += client.getRating();
+        smallest.changed(team);
+        largest.changed(team);
+    }
+
+    /** Swaps the last member into the leaving clients slot so nothing is shifted **/
+    private void removeFromTeam(Client client, Team team)
+    {
+        List<Client> members = team.teamMembers;
+        Client last = members.remove(members.size() - 1);
+        if (last != client)
+        {
+            members.set(client.teamSlot, last);
+            last.teamSlot = client.teamSlot;
         }
 
-        return minTeam; // Just return the first team if all teams have the same amount of players.
+        team.rating -= client.getRating();
+        smallest.changed(team);
+        largest.changed(team);
     }
 
     /**
@@ -61,9 +153,8 @@ public class TeamManager
      */
     private Team getTeamFromId(int id)
     {
-        for (Team team : teams)
-            if (team.id == id)
-                return team;
+        if (id >= 0 && id < teams.size())
+            return teams.get(id);
 
         Logger.warn("No team with id {} was found, returning null.", id);
         return null;
@@ -76,15 +167,103 @@ public class TeamManager
     {
         public int id = 0;
         public final List<Client> teamMembers = new ArrayList<>();
+        /** The summed rating of the members **/
+        private long rating;
+        /** Where this team is in each heap **/
+        private int smallestIndex;
+        private int largestIndex;
 
         public Team(int id)
         {
             this.id = id;
         }
+    }
+
+    /**
+     * A binary heap of teams that knows where each team is in it, so a team whose size changed can be sifted from
+     * where it is instead of searched for
+     */
+    private static final class TeamHeap
+    {
+        private final Team[] heap;
+        private final boolean largestFirst;
+        private int size;
+
+        TeamHeap(int capacity, boolean largestFirst)
+        {
+            this.heap         = new Team[capacity];
+            this.largestFirst = largestFirst;
+        }
+
+        Team peek()
+        {
+            return heap[0];
+        }
+
+        void add(Team team)
+        {
+            place(team, size++);
+            siftUp(size - 1);
+        }
+
+        /** Restore the heap after the size or rating of a team changed **/
+        void changed(Team team)
+        {
+            int index = largestFirst ? team.largestIndex : team.smallestIndex;
+            siftUp(index);
+            siftDown(largestFirst ? team.largestIndex : team.smallestIndex);
+        }
+
+        private void siftUp(int index)
+        {
+            Team team = heap[index];
+            while (index > 0)
+            {
+                int parent = (index - 1) / 2;
+                if (!before(team, heap[parent]))
+                    break;
+                place(heap[parent], index);
+                index = parent;
+            }
+            place(team, index);
+        }
+
+        private void siftDown(int index)
+        {
+            Team team = heap[index];
+            while (true)
+            {
+                int child = index * 2 + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && before(heap[child + 1], heap[child]))
+                    child++;
+                if (!before(heap[child], team))
+                    break;
+                place(heap[child], index);
+                index = child;
+            }
+            place(team, index);
+        }
+
+        private void place(Team team, int index)
+        {
+            heap[index] = team;
+            if (largestFirst)
+                team.largestIndex = index;
+            else
+                team.smallestIndex = index;
+        }
 
-        public void removeMember(Client client)
+        /** Orders by size, then rating, then id, so no two teams are ever equal and the order is stable **/
+        private boolean before(Team a, Team b)
         {
-            teamMembers.remove(client);
+            int order = Integer.compare(a.teamMembers.size(), b.teamMembers.size());
+            if (order == 0)
+                order = Long.compare(a.rating, b.rating);
+            if (order == 0)
+                order = Integer.compare(a.id, b.id);
+            return largestFirst ? order > 0 : order < 0;
         }
     }
 
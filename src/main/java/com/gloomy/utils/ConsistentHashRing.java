@@ -0,0 +1,80 @@
+package com.gloomy.utils;
+
+import java.util.Arrays;
+
+/**
+ * Maps keys to a fixed set of nodes so that adding or removing a node only moves the keys that belong to it. Every
+ * node is hashed onto a ring of longs at several virtual points, and a key belongs to the node owning the first
+ * point at or after the keys own hash, wrapping around at the end.
+ *
+ * The points are kept in sorted parallel arrays and found with a binary search, so a lookup is O(log points) and
+ * never allocates. Immutable and thread safe.
+ */
+public class ConsistentHashRing
+{
+    private final long[] points;
+
+    private final int[] owners;
+
+    private final int nodes;
+
+    /**
+     * @param nodes The amount of nodes, numbered from 0, at most 65535
+     * @param virtualNodes The amount of points each node has on the ring, more spreads keys more evenly
+     */
+    public ConsistentHashRing(int nodes, int virtualNodes)
+    {
+        if (nodes <= 0 || nodes > 0xFFFF || virtualNodes <= 0)
+            throw new IllegalArgumentException("A ring takes 1 to 65535 nodes with at least one point each: "
+                                               + nodes + ", " + virtualNodes);
+
+        this.nodes = nodes;
+
+        long[] hashed = new long[nodes * virtualNodes];
+        for (int node = 0; node < nodes; node++)
+            for (int point = 0; point < virtualNodes; point++)
+                hashed[node * virtualNodes + point] = mix(((long) node << 32) | point) & ~0xFFFFL | node;
+
+        // The node is kept in the low bits of each point so sorting the points sorts their owners with them
+        Arrays.sort(hashed);
+        this.points = new long[hashed.length];
+        this.owners = new int[hashed.length];
+        for (int i = 0; i < hashed.length; i++)
+        {
+            points[i] = hashed[i];
+            owners[i] = (int) (hashed[i] & 0xFFFF);
+        }
+    }
+
+    /**
+     * @param key The key to place
+     * @return The node the key belongs to
+     */
+    public int nodeFor(long key)
+    {
+        int index = Arrays.binarySearch(points, mix(key));
+        if (index < 0)
+            index = -index - 1;
+
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * @return The amount of nodes on the ring
+     */
+    public int nodes()
+    {
+        return nodes;
+    }
+
+    /** The finaliser of MurmurHash3, spreads neighbouring keys across the whole ring **/
+    private static long mix(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xFF51AFD7ED558CCDL;
+        key ^= key >>> 33;
+        key *= 0xC4CEB9FE1A85EC53L;
+        key ^= key >>> 33;
+        return key;
+    }
+}
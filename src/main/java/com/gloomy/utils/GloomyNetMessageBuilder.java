@@ -1,13 +1,40 @@
 package com.gloomy.utils;
 
+import com.gloomy.protocol.BinaryCodec;
+import com.gloomy.protocol.EncodedRosterEntry;
+import com.gloomy.protocol.WireFormat;
 import com.gloomy.server.PacketWorkflowHandler;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 public class GloomyNetMessageBuilder
 {
+    /** Gson instances are thread safe, so every builder shares this one. Encoded roster entries are written as is **/
+    private static final Gson GSON = new GsonBuilder().registerTypeAdapter(EncodedRosterEntry.class, new TypeAdapter<EncodedRosterEntry>()
+    {
+        @Override
+        public void write(JsonWriter out, EncodedRosterEntry entry) throws IOException
+        {
+            out.jsonValue(entry.getJson());
+        }
+
+        /** Roster entries only ever go out to clients, nothing reads them back **/
+        @Override
+        public EncodedRosterEntry read(JsonReader in)
+        {
+            throw new JsonParseException("Roster entries are only ever written");
+        }
+    }).create();
+
     private int messageType = -1;
 
     private Map<String, Object> messageMap;
@@ -55,13 +82,62 @@ public class GloomyNetMessageBuilder
         return this;
     }
 
+    /**
+     * @return The PacketType of this message
+     */
+    public int getMessageType()
+    {
+        return messageType;
+    }
+
     /**
      * Converts the Mappings into a Json string that can be sent over the network.
      * @return The Json String created from this instances mapping.
      */
     public String build()
     {
-        GsonBuilder builder = new GsonBuilder();
-        return builder.create().toJson(messageMap);
+        return GSON.toJson(messageMap);
+    }
+
+    /**
+     * Encode a value as json on its own, used to encode roster entries once and cache them
+     * @param value A value that could be added to a message
+     * @return The value as json
+     */
+    public static String toJson(Object value)
+    {
+        return GSON.toJson(value);
+    }
+
+    /**
+     * Size in bytes of a value once encoded as json, used to pack several values into one datagram
+     * @param value A value that could be added to a message
+     * @return The amount of utf-8 bytes the value takes up in a json message
+     */
+    public static int jsonSize(Object value)
+    {
+        return GSON.toJson(value).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Encodes the mappings in the compact binary format described by BinaryCodec.
+     * @return The encoded packet
+     */
+    public byte[] buildBinary()
+    {
+        return BinaryCodec.encode(messageType, messageMap);
+    }
+
+    /**
+     * Encodes the mappings in the requested wire format
+     * @param format The format to encode in
+     * @return The bytes to send over the network
+     */
+    public byte[] buildBytes(WireFormat format)
+    {
+        if (format == WireFormat.BINARY)
+            return buildBinary();
+
+        return build().getBytes(StandardCharsets.UTF_8);
     }
 }
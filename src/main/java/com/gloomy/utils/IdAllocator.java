@@ -0,0 +1,154 @@
+package com.gloomy.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hands out the lowest free int id from zero up to a maximum, and takes ids back for reuse. Ids are bits in a
+ * bitmap of longs that are set and cleared with compare and set, so threads allocating and freeing ids never lock
+ * and no id is ever boxed.
+ *
+ * The bitmap is split into segments of SEGMENT_BITS ids that are only allocated once allocation reaches them, so a
+ * large maximum costs nothing until it is used. A hint remembers the first word that may have a free bit, keeping
+ * allocation from rescanning the full words below it.
+ */
+public class IdAllocator
+{
+    private static final int WORD_BITS = 64;
+
+    private static final int SEGMENT_WORDS = 64;
+
+    public static final int SEGMENT_BITS = SEGMENT_WORDS * WORD_BITS;
+
+    private final int maxIds;
+
+    private final int words;
+
+    private final AtomicReferenceArray<AtomicLongArray> segments;
+
+    /** Every word below this is full, or was a moment ago **/
+    private final AtomicInteger firstFreeWord = new AtomicInteger();
+
+    /**
+     * @param maxIds The amount of ids available, ids run from 0 to maxIds - 1
+     */
+    public IdAllocator(int maxIds)
+    {
+        if (maxIds <= 0)
+            throw new IllegalArgumentException("An id allocator needs at least one id: " + maxIds);
+
+        this.maxIds   = maxIds;
+        this.words    = (int) (((long) maxIds + WORD_BITS - 1) / WORD_BITS);
+        this.segments = new AtomicReferenceArray<>((words + SEGMENT_WORDS - 1) / SEGMENT_WORDS);
+    }
+
+    /**
+     * Take the lowest free id
+     * @return The id, or -1 if every id is in use
+     */
+    public int allocate()
+    {
+        for (int word = firstFreeWord.get(); word < words; word++)
+        {
+            AtomicLongArray segment = segment(word / SEGMENT_WORDS);
+            int index = word % SEGMENT_WORDS;
+
+            for (long bits = segment.get(index); bits != -1L; bits = segment.get(index))
+            {
+                int bit = Long.numberOfTrailingZeros(~bits);
+                int id  = word * WORD_BITS + bit;
+                if (id >= maxIds)
+                    return -1;
+
+                if (segment.compareAndSet(index, bits, bits | (1L << bit)))
+                    return id;
+            }
+
+            // Full, move the hint past it unless a free moved it somewhere else first
+            if (firstFreeWord.compareAndSet(word, word + 1) && segment.get(index) != -1L)
+                lowerHint(word);    // An id was freed in this word while it was being skipped
+        }
+
+        return -1;
+    }
+
+    /**
+     * Take a specific id, used to bring back ids that were handed out before a restart
+     * @param id The id to take
+     * @return false if the id is out of range or already in use
+     */
+    public boolean claim(int id)
+    {
+        if (id < 0 || id >= maxIds)
+            return false;
+
+        int word = id / WORD_BITS;
+        AtomicLongArray segment = segment(word / SEGMENT_WORDS);
+        long mask = 1L << (id % WORD_BITS);
+
+        return (segment.getAndUpdate(word % SEGMENT_WORDS, bits -> bits | mask) & mask) == 0;
+    }
+
+    /**
+     * Give an id back so it can be handed out again
+     * @param id An id returned by allocate
+     * @throws IllegalArgumentException if the id is not currently allocated
+     */
+    public void free(int id)
+    {
+        if (id < 0 || id >= maxIds)
+            throw new IllegalArgumentException("Id out of range: " + id);
+
+        int word = id / WORD_BITS;
+        AtomicLongArray segment = segments.get(word / SEGMENT_WORDS);
+        long mask = 1L << (id % WORD_BITS);
+
+        if (segment == null || (segment.getAndUpdate(word % SEGMENT_WORDS, bits -> bits & ~mask) & mask) == 0)
+            throw new IllegalArgumentException("Id was not allocated: " + id);
+
+        lowerHint(word);
+    }
+
+    /**
+     * @param id An id
+     * @return true if the id is currently allocated
+     */
+    public boolean isAllocated(int id)
+    {
+        if (id < 0 || id >= maxIds)
+            return false;
+
+        int word = id / WORD_BITS;
+        AtomicLongArray segment = segments.get(word / SEGMENT_WORDS);
+        return segment != null && (segment.get(word % SEGMENT_WORDS) & (1L << (id % WORD_BITS))) != 0;
+    }
+
+    /**
+     * @return The amount of ids this allocator can hand out
+     */
+    public int capacity()
+    {
+        return maxIds;
+    }
+
+    private void lowerHint(int word)
+    {
+        firstFreeWord.accumulateAndGet(word, Math::min);
+    }
+
+    /**
+     * @return The segment, allocating it if this is the first time allocation reached it
+     */
+    private AtomicLongArray segment(int index)
+    {
+        AtomicLongArray segment = segments.get(index);
+        if (segment == null)
+        {
+            segments.compareAndSet(index, null, new AtomicLongArray(SEGMENT_WORDS));
+            segment = segments.get(index);
+        }
+
+        return segment;
+    }
+}
@@ -0,0 +1,77 @@
+package com.gloomy.utils;
+
+import org.pmw.tinylog.Logger;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Starts the long running threads of the server. When virtual threads are requested and the JVM supports them
+ * (Java 21+) the thread is started as a virtual thread, otherwise as a normal platform thread.
+ *
+ * The virtual thread api is looked up reflectively so the module still compiles for Java 8. Build with the java21
+ * profile to target a JVM that has it.
+ */
+public final class ServerThreads
+{
+    private static final MethodHandle OF_VIRTUAL;
+    private static final MethodHandle BUILDER_NAME;
+    private static final MethodHandle BUILDER_START;
+
+    static
+    {
+        MethodHandle ofVirtual = null, builderName = null, builderStart = null;
+
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+
+            ofVirtual    = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+            builderName  = lookup.findVirtual(builderClass, "name", MethodType.methodType(builderClass, String.class));
+            builderStart = lookup.findVirtual(builderClass, "start", MethodType.methodType(Thread.class, Runnable.class));
+        } catch (ReflectiveOperationException e) {
+            ofVirtual = null;  // Running on a JVM without virtual threads
+        }
+
+        OF_VIRTUAL    = ofVirtual;
+        BUILDER_NAME  = builderName;
+        BUILDER_START = builderStart;
+    }
+
+    private ServerThreads() {}
+
+    /**
+     * @return true if this JVM can start virtual threads
+     */
+    public static boolean virtualThreadsSupported()
+    {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Start a thread running the given task
+     * @param name The name of the thread
+     * @param task The work the thread should do
+     * @param virtual true to start a virtual thread if the JVM supports it
+     * @return The started thread
+     */
+    public static Thread start(String name, Runnable task, boolean virtual)
+    {
+        if (virtual && OF_VIRTUAL != null)
+        {
+            try {
+                Object builder = OF_VIRTUAL.invoke();
+                builder = BUILDER_NAME.invoke(builder, name);
+                return (Thread) BUILDER_START.invoke(builder, task);
+            } catch (Throwable e) {
+                Logger.warn("Could not start virtual thread {}, starting a platform thread. {}", name, e);
+            }
+        }
+
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+}
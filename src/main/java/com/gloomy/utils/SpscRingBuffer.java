@@ -0,0 +1,111 @@
+package com.gloomy.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, preallocated queue for exactly one producer thread and one consumer thread. Offering and polling never
+ * lock or allocate, each side only writes its own sequence and reads the other sides sequence when its cached copy
+ * says the buffer is full or empty.
+ *
+ * The head and tail sequences sit far apart in one AtomicLongArray so the producer and consumer never share a cache
+ * line. The tail is published with a volatile write, which lets a consumer that checks isEmpty before parking rely on
+ * the producer seeing that it parked.
+ * @param <E> The element type
+ */
+public class SpscRingBuffer<E>
+{
+    /** Indexes 16 longs, 128 bytes, apart and away from the array header **/
+    private static final int HEAD = 16;
+    private static final int TAIL = 32;
+
+    private final Object[] buffer;
+
+    private final int mask;
+
+    private final AtomicLongArray sequences = new AtomicLongArray(TAIL + 16);
+
+    /** Producer side copies **/
+    private long producerTail;
+    private long cachedHead;
+
+    /** Consumer side copies, padded away from the producer fields **/
+    private long p1, p2, p3, p4, p5, p6, p7;
+    private long consumerHead;
+    private long cachedTail;
+
+    /**
+     * @param capacity The most elements the buffer holds, rounded up to a power of two
+     */
+    public SpscRingBuffer(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.buffer = new Object[size];
+        this.mask   = size - 1;
+    }
+
+    /**
+     * Add an element. Only called by the producer thread
+     * @param element The element to add
+     * @return false if the buffer is full
+     */
+    public boolean offer(E element)
+    {
+        long tail = producerTail;
+        if (tail - cachedHead > mask)
+        {
+            cachedHead = sequences.get(HEAD);
+            if (tail - cachedHead > mask)
+                return false;
+        }
+
+        buffer[(int) tail & mask] = element;
+        producerTail = tail + 1;
+        sequences.set(TAIL, tail + 1);
+        return true;
+    }
+
+    /**
+     * Take the oldest element. Only called by the consumer thread
+     * @return The element, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll()
+    {
+        long head = consumerHead;
+        if (head >= cachedTail)
+        {
+            cachedTail = sequences.get(TAIL);
+            if (head >= cachedTail)
+                return null;
+        }
+
+        int slot = (int) head & mask;
+        E element = (E) buffer[slot];
+        buffer[slot] = null;
+        consumerHead = head + 1;
+        sequences.lazySet(HEAD, head + 1);
+        return element;
+    }
+
+    /**
+     * @return true if the buffer held no elements at the moment of the call. Safe from any thread
+     */
+    public boolean isEmpty()
+    {
+        return sequences.get(HEAD) == sequences.get(TAIL);
+    }
+
+    /**
+     * @return The amount of elements in the buffer at about the moment of the call. Safe from any thread
+     */
+    public int size()
+    {
+        long head = sequences.get(HEAD);
+        return (int) Math.max(0, sequences.get(TAIL) - head);
+    }
+
+    public int capacity()
+    {
+        return buffer.length;
+    }
+}
@@ -0,0 +1,210 @@
+package com.gloomy.utils;
+
+import java.util.function.Consumer;
+
+/**
+ * A hierarchical hashed timing wheel. Timers are kept in doubly linked slot lists, so scheduling and cancelling a
+ * timer are O(1) no matter how many are pending, and advancing the clock only touches the slots that come due.
+ *
+ * Level 0 has one slot per tick. Each level above it has slots covering a whole turn of the level below, and when a
+ * lower level wraps around the matching slot of the level above is cascaded down. Timers further out than the top
+ * level can hold are parked in its last slot and placed again as they cascade.
+ *
+ * Not thread safe, a wheel belongs to the thread that advances it.
+ * @param <T> The item a timer carries
+ */
+public class TimingWheel<T>
+{
+    private final long tickMillis;
+
+    private final int wheelSize;
+
+    /** slots[level][slot] is the head of that slots list, or null **/
+    private final Timer<T>[][] slots;
+
+    private long currentTick;
+
+    private int size;
+
+    /**
+     * @param tickMillis The resolution of the wheel, timers fire up to one tick late
+     * @param wheelSize The amount of slots on each level, a power of two
+     * @param levels The amount of levels. Level n spans tickMillis * wheelSize^(n+1)
+     * @param startMillis The current time
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, int wheelSize, int levels, long startMillis)
+    {
+        if (Integer.bitCount(wheelSize) != 1)
+            throw new IllegalArgumentException("The wheel size must be a power of two: " + wheelSize);
+
+        this.tickMillis  = tickMillis;
+        this.wheelSize   = wheelSize;
+        this.slots       = new Timer[levels][wheelSize];
+        this.currentTick = Math.floorDiv(startMillis, tickMillis);
+    }
+
+    /**
+     * Schedule an item to be handed back once a deadline has passed
+     * @param item The item to hand back
+     * @param deadlineMillis The time at which the item expires
+     * @return The timer, which can be cancelled
+     */
+    public Timer<T> schedule(T item, long deadlineMillis)
+    {
+        Timer<T> timer = new Timer<>(item, Math.max(currentTick + 1, ceilDiv(deadlineMillis, tickMillis)));
+        place(timer);
+        size++;
+        return timer;
+    }
+
+    /**
+     * Cancel a timer that has not fired yet
+     * @param timer The timer returned by schedule
+     * @return false if the timer already fired or was cancelled
+     */
+    public boolean cancel(Timer<T> timer)
+    {
+        if (timer.level < 0)
+            return false;
+
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Move the clock forward, handing every item whose deadline has passed to the consumer. The consumer may
+     * schedule new timers.
+     * @param nowMillis The current time
+     * @param expired Called with each expired item, in deadline order to within a tick
+     */
+    public void advance(long nowMillis, Consumer<T> expired)
+    {
+        long targetTick = Math.floorDiv(nowMillis, tickMillis);
+
+        while (currentTick < targetTick)
+        {
+            currentTick++;
+            cascade();
+
+            int slot = (int) (currentTick & (wheelSize - 1));
+            Timer<T> timer = slots[0][slot];
+            slots[0][slot] = null;
+
+            while (timer != null)
+            {
+                Timer<T> next = timer.next;
+                timer.level = -1;
+                timer.previous = timer.next = null;
+                size--;
+                expired.accept(timer.item);
+                timer = next;
+            }
+        }
+    }
+
+    /**
+     * @return The amount of timers waiting to fire
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /** Pull the timers of every level that just wrapped down into the levels below **/
+    private void cascade()
+    {
+        long ticks = currentTick;
+        for (int level = 1; level < slots.length; level++)
+        {
+            if ((ticks & (wheelSize - 1)) != 0)
+                return;
+
+            ticks /= wheelSize;
+            int slot = (int) (ticks & (wheelSize - 1));
+            Timer<T> timer = slots[level][slot];
+            slots[level][slot] = null;
+
+            while (timer != null)
+            {
+                Timer<T> next = timer.next;
+                timer.previous = timer.next = null;
+                place(timer);
+                timer = next;
+            }
+        }
+    }
+
+    /** Put a timer in the lowest level whose span reaches its deadline **/
+    private void place(Timer<T> timer)
+    {
+        long delta = timer.deadlineTick - currentTick;
+        long span  = wheelSize;
+        int level  = 0;
+        long tick  = timer.deadlineTick;
+
+        while (delta >= span && level < slots.length - 1)
+        {
+            level++;
+            span *= wheelSize;
+            tick /= wheelSize;
+        }
+
+        int slot;
+        if (delta >= span)
+            slot = (int) ((currentTick / (span / wheelSize) - 1) & (wheelSize - 1));    // Too far out, park it at the end
+        else
+            slot = (int) (tick & (wheelSize - 1));
+
+        timer.level = level;
+        timer.slot  = slot;
+        timer.next  = slots[level][slot];
+        if (timer.next != null)
+            timer.next.previous = timer;
+        slots[level][slot] = timer;
+    }
+
+    private void unlink(Timer<T> timer)
+    {
+        if (timer.previous != null)
+            timer.previous.next = timer.next;
+        else
+            slots[timer.level][timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.previous = timer.previous;
+
+        timer.level = -1;
+        timer.previous = timer.next = null;
+    }
+
+    private static long ceilDiv(long value, long divisor)
+    {
+        return -Math.floorDiv(-value, divisor);
+    }
+
+    /**
+     * A pending timer
+     * @param <T> The item the timer carries
+     */
+    public static final class Timer<T>
+    {
+        private final T item;
+        private final long deadlineTick;
+        private Timer<T> previous;
+        private Timer<T> next;
+        private int level = -1;
+        private int slot;
+
+        private Timer(T item, long deadlineTick)
+        {
+            this.item         = item;
+            this.deadlineTick = deadlineTick;
+        }
+
+        public T getItem()
+        {
+            return item;
+        }
+    }
+}
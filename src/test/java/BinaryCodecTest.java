@@ -0,0 +1,199 @@
+import com.gloomy.protocol.BinaryCodec;
+import com.gloomy.protocol.EncodedRosterEntry;
+import com.gloomy.protocol.WireFormat;
+import com.gloomy.server.PacketType;
+import com.gloomy.session.Client;
+import com.gloomy.session.TeamManager;
+import com.gloomy.utils.GloomyNetMessageBuilder;
+import com.google.gson.Gson;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+class BinaryCodecTest
+{
+    @Test
+    void testJoinSuccessIsSmallerThanJson()
+    {
+        GloomyNetMessageBuilder builder = GloomyNetMessageBuilder.Create(PacketType.JOIN_SUCCESS)
+                .addData("host", true)
+                .addData("cId", (byte) 3)
+                .addData("sId", 42)
+                .addData("team", 1);
+
+        byte[] json   = builder.buildBytes(WireFormat.JSON);
+        byte[] binary = builder.buildBytes(WireFormat.BINARY);
+
+        assertEquals(9, binary.length);
+        assertTrue(binary.length * 4 < json.length);
+        assertEquals(BinaryCodec.VERSION, binary[0]);
+        assertEquals(PacketType.JOIN_SUCCESS, binary[1]);
+        assertEquals(42, ByteBuffer.wrap(binary).getInt(4));
+    }
+
+    @Test
+    void testInboundPacketsDecode()
+    {
+        ByteBuffer disconnect = ByteBuffer.wrap(GloomyNetMessageBuilder.Create(PacketType.CLIENT_DISCONNECT)
+                .addData("sId", 70000)
+                .addData("cId", 5)
+                .buildBinary());
+
+        assertTrue(BinaryCodec.isBinary(disconnect));
+        assertTrue(BinaryCodec.isComplete(disconnect));
+        assertEquals(PacketType.CLIENT_DISCONNECT, BinaryCodec.getPacketType(disconnect));
+        assertEquals(70000, BinaryCodec.readInt(disconnect, BinaryCodec.SESSION_ID_OFFSET));
+        assertEquals(5, BinaryCodec.readUnsignedByte(disconnect, BinaryCodec.CLIENT_ID_OFFSET));
+
+        ByteBuffer match = ByteBuffer.wrap(GloomyNetMessageBuilder.Create(PacketType.MATCH_REQUEST)
+                .addData("name", "Player One")
+                .buildBinary());
+
+        assertTrue(BinaryCodec.isComplete(match));
+        assertEquals("Player One", BinaryCodec.readString(match, BinaryCodec.NAME_OFFSET));
+    }
+
+    @Test
+    void testTruncatedAndJsonPacketsAreRejected()
+    {
+        byte[] roster = GloomyNetMessageBuilder.Create(PacketType.ALL_CLIENT_INFO)
+                .addData("clients", clients(3))
+                .buildBinary();
+
+        assertTrue(BinaryCodec.isComplete(ByteBuffer.wrap(roster)));
+        assertFalse(BinaryCodec.isComplete(ByteBuffer.wrap(roster, 0, roster.length - 1)));
+        assertFalse(BinaryCodec.isBinary(ByteBuffer.wrap("{\"T:P\":3}".getBytes())));
+    }
+
+    @Test
+    void testRosterDeltaIsSmallerThanSnapshot()
+    {
+        List<Map<String, Object>> clients = clients(6);
+
+        byte[] snapshot = GloomyNetMessageBuilder.Create(PacketType.ALL_CLIENT_INFO)
+                .addData("v", 6)
+                .addData("clients", clients)
+                .buildBinary();
+
+        int packedSize = BinaryCodec.HEADER_SIZE + 4 + 1;
+        for (Map<String, Object> client : clients)
+            packedSize += BinaryCodec.rosterEntrySize(client);
+        assertEquals(snapshot.length, packedSize);
+
+        GloomyNetMessageBuilder added = GloomyNetMessageBuilder.Create(PacketType.CLIENT_ADDED).addData("v", 6);
+        for (Map.Entry<String, Object> entry : clients.get(5).entrySet())
+            added.addData(entry.getKey(), entry.getValue());
+        ByteBuffer delta = ByteBuffer.wrap(added.buildBinary());
+
+        assertTrue(BinaryCodec.isComplete(delta));
+        assertEquals(6, BinaryCodec.readInt(delta, BinaryCodec.HEADER_SIZE));
+        assertTrue(delta.remaining() * 4 < snapshot.length);
+
+        ByteBuffer resync = ByteBuffer.wrap(GloomyNetMessageBuilder.Create(PacketType.ROSTER_RESYNC)
+                .addData("sId", 12)
+                .addData("cId", 3)
+                .buildBinary());
+
+        assertTrue(BinaryCodec.isComplete(resync));
+        assertEquals(12, BinaryCodec.peekSessionId(resync));
+    }
+
+    @Test
+    void testCachedRosterEntriesEncodeLikeTheirInfoMaps()
+    {
+        List<Map<String, Object>> clients = clients(40);
+        List<EncodedRosterEntry> cached = new ArrayList<>();
+        for (Map<String, Object> client : clients)
+            cached.add(new EncodedRosterEntry(GloomyNetMessageBuilder.toJson(client), BinaryCodec.encodeRosterEntry(client)));
+
+        GloomyNetMessageBuilder fromMaps   = rosterPage(clients.subList(32, 40));
+        GloomyNetMessageBuilder fromCached = rosterPage(cached.subList(32, 40));
+
+        assertArrayEquals(fromMaps.buildBinary(), fromCached.buildBinary());
+        assertEquals(fromMaps.build(), fromCached.build());
+        assertTrue(BinaryCodec.isComplete(ByteBuffer.wrap(fromCached.buildBinary())));
+
+        ByteBuffer request = ByteBuffer.wrap(GloomyNetMessageBuilder.Create(PacketType.GET_ROSTER_PAGE)
+                .addData("sId", 9)
+                .addData("cId", 4)
+                .addData("page", 1)
+                .buildBinary());
+
+        assertTrue(BinaryCodec.isComplete(request));
+        assertEquals(9, BinaryCodec.peekSessionId(request));
+        assertEquals(1, BinaryCodec.readUnsignedByte(request, BinaryCodec.ROSTER_PAGE_OFFSET));
+    }
+
+    @Test
+    void testPatchedRosterEntriesEncodeLikeTheirInfoMaps() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        TeamManager teams = new TeamManager(new ArrayList<>(), 6, 3);
+        Client first  = new Client("first", loopback, 3301);
+        Client client = new Client("Zo\u00eb \"the\" host", loopback, 3302);
+        client.setClientId(7);
+
+        teams.addClientGetTeam(first);
+        teams.addClientGetTeam(new Client("second", loopback, 3303));
+        teams.addClientGetTeam(client);
+        assertRosterEntryMatches(client);
+
+        client.setHosting(true);
+        assertRosterEntryMatches(client);
+
+        teams.removeClient(first);
+        teams.removeClient(client);
+        teams.addClientGetTeam(client);
+        assertEquals(0, client.getTeamId());
+        assertRosterEntryMatches(client);
+    }
+
+    private static void assertRosterEntryMatches(Client client)
+    {
+        EncodedRosterEntry entry = client.getRosterEntry();
+        Gson gson = new Gson();
+
+        assertArrayEquals(BinaryCodec.encodeRosterEntry(client.getInfoMap()), entry.getBinary());
+        assertEquals(gson.fromJson(GloomyNetMessageBuilder.toJson(client.getInfoMap()), Map.class),
+                     gson.fromJson(entry.getJson(), Map.class));
+        assertEquals(entry.getJson().getBytes(StandardCharsets.UTF_8).length, entry.getJsonSize());
+    }
+
+    private static GloomyNetMessageBuilder rosterPage(List<?> entries)
+    {
+        return GloomyNetMessageBuilder.Create(PacketType.ROSTER_PAGE)
+                .addData("v", 41)
+                .addData("page", 1)
+                .addData("pages", 2)
+                .addData("total", 40)
+                .addData("clients", entries);
+    }
+
+    private static List<Map<String, Object>> clients(int amount)
+    {
+        List<Map<String, Object>> clients = new ArrayList<>();
+        for (int i = 0; i < amount; i++)
+        {
+            Map<String, Object> info = new HashMap<>();
+            info.put("name", "Client " + i);
+            info.put("ip", "127.0.0.1");
+            info.put("port", 3224 + i);
+            info.put("team", i % 2);
+            info.put("h", i == 0);
+            info.put("cId", (byte) i);
+            clients.add(info);
+        }
+        return clients;
+    }
+}
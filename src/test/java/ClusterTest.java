@@ -0,0 +1,165 @@
+import com.gloomy.server.PacketType;
+import com.gloomy.server.Server;
+import com.gloomy.server.ServerConfig;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+class ClusterTest
+{
+    /** How long a node gets to hear about its peer before the test fails **/
+    private static final long RING_TIMEOUT_MILLIS = 5000;
+
+    @Test
+    void testNodesShareLobbiesAndRedirectStrayPackets() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        int[] ports = freePorts(2);
+        List<InetSocketAddress> nodes = Arrays.asList(new InetSocketAddress(loopback, ports[0]),
+                                                      new InetSocketAddress(loopback, ports[1]));
+
+        Server[] servers = new Server[nodes.size()];
+        try {
+            for (int i = 0; i < servers.length; i++)
+            {
+                servers[i] = Server.Create(ports[i], new ServerConfig()
+                        .setCluster(nodes, i)
+                        .setClusterStatusIntervalMillis(20));
+                servers[i].start();
+            }
+
+            // Every session id belongs to exactly one node
+            for (int sessionId = 0; sessionId < 100000; sessionId += 97)
+                assertTrue(servers[0].getCluster().isLocal(sessionId) != servers[1].getCluster().isLocal(sessionId));
+
+            // Both nodes know about each other before any client shows up
+            awaitRing(() -> servers[0].getCluster().getReportedFreeIds(1) > 0
+                            && servers[1].getCluster().getReportedFreeIds(0) > 0);
+
+            try (DatagramSocket host = client(); DatagramSocket joiner = client())
+            {
+                // Node 0 has no lobbies anywhere, so it hosts one itself
+                send(host, ports[0], new byte[] { 2, PacketType.MATCH_REQUEST, 4, 'h', 'o', 's', 't' });
+                DatagramPacket joined = receive(host, PacketType.JOIN_SUCCESS);
+                assertEquals(ports[0], joined.getPort());
+                int sessionId = ByteBuffer.wrap(joined.getData()).getInt(4);
+                assertTrue(servers[0].getCluster().isLocal(sessionId));
+
+                // Once node 1 has heard about the open lobby it sends its own match requests there
+                awaitRing(() -> servers[1].getCluster().getReportedOpenSlots(0) > 0);
+                send(joiner, ports[1], new byte[] { 2, PacketType.MATCH_REQUEST, 1, 'j' });
+                joined = receive(joiner, PacketType.JOIN_SUCCESS);
+                assertEquals(ports[0], joined.getPort());
+                assertEquals(sessionId, ByteBuffer.wrap(joined.getData()).getInt(4));
+                assertEquals(2, servers[0].getSession(sessionId).getClients().size());
+                assertEquals(0, servers[1].getSessionCount());
+                receive(joiner, PacketType.ALL_CLIENT_INFO);   // The roster sent on joining
+
+                // A resync sent to the wrong node is redirected, and still answered by the owner. The owner may
+                // answer before the redirect arrives, node 1 forwards the resync first
+                int clientId = joined.getData()[3];
+                ByteBuffer resync = ByteBuffer.allocate(7).put((byte) 2).put(PacketType.ROSTER_RESYNC).putInt(sessionId).put((byte) clientId);
+                send(joiner, ports[1], resync.array());
+
+                Map<Byte, DatagramPacket> answers = receiveEach(joiner, PacketType.REDIRECT, PacketType.ALL_CLIENT_INFO);
+                DatagramPacket redirect = answers.get(PacketType.REDIRECT);
+                assertEquals(ports[1], redirect.getPort());
+                ByteBuffer data = ByteBuffer.wrap(redirect.getData());
+                assertEquals(sessionId, data.getInt(2));
+                assertEquals(4, data.get(6));
+                assertEquals(ports[0], data.getShort(11) & 0xFFFF);
+
+                assertEquals(ports[0], answers.get(PacketType.ALL_CLIENT_INFO).getPort());
+                assertFalse(servers[1].getCluster().isLocal(sessionId));
+            }
+        } finally {
+            for (Server server : servers)
+                if (server != null)
+                    server.stop();
+        }
+    }
+
+    /** Poll until the nodes status reports satisfy the condition, failing once RING_TIMEOUT_MILLIS has passed **/
+    private static void awaitRing(BooleanSupplier condition) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + RING_TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean())
+        {
+            if (System.currentTimeMillis() > deadline)
+                fail("The cluster nodes did not hear from each other within " + RING_TIMEOUT_MILLIS + "ms");
+            Thread.sleep(10);
+        }
+    }
+
+    /** Ports that were free a moment ago, the sockets are closed so the servers can bind them **/
+    private static int[] freePorts(int amount) throws Exception
+    {
+        DatagramSocket[] sockets = new DatagramSocket[amount];
+        int[] ports = new int[amount];
+        try {
+            for (int i = 0; i < amount; i++)
+            {
+                sockets[i] = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (DatagramSocket socket : sockets)
+                if (socket != null)
+                    socket.close();
+        }
+        return ports;
+    }
+
+    private static DatagramSocket client() throws Exception
+    {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(2000);
+        return socket;
+    }
+
+    private static void send(DatagramSocket socket, int port, byte[] data) throws Exception
+    {
+        socket.send(new DatagramPacket(data, data.length, InetAddress.getByName("127.0.0.1"), port));
+    }
+
+    /** Skip anything else the servers send until a packet of each of the given types has arrived, in any order **/
+    private static Map<Byte, DatagramPacket> receiveEach(DatagramSocket socket, byte... types) throws Exception
+    {
+        Map<Byte, DatagramPacket> received = new HashMap<>();
+        while (received.size() < types.length)
+        {
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            socket.receive(packet);
+            for (byte type : types)
+                if (packet.getData()[0] == 2 && packet.getData()[1] == type && !received.containsKey(type))
+                    received.put(type, packet);
+        }
+        return received;
+    }
+
+    /** Skip anything else the server sends until a packet of the given type arrives **/
+    private static DatagramPacket receive(DatagramSocket socket, byte type) throws Exception
+    {
+        while (true)
+        {
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            socket.receive(packet);
+            if (packet.getData()[0] == 2 && packet.getData()[1] == type)
+                return packet;
+        }
+    }
+}
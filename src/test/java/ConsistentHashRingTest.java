@@ -0,0 +1,41 @@
+import com.gloomy.utils.ConsistentHashRing;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+class ConsistentHashRingTest
+{
+    @Test
+    void testKeysSpreadEvenly()
+    {
+        ConsistentHashRing ring = new ConsistentHashRing(4, 128);
+        int[] counts = new int[4];
+        for (int key = 0; key < 100000; key++)
+            counts[ring.nodeFor(key)]++;
+
+        for (int count : counts)
+            assertTrue("Node got " + count + " of 100000 keys", count > 20000 && count < 30000);
+    }
+
+    @Test
+    void testAddingANodeOnlyMovesKeysToIt()
+    {
+        ConsistentHashRing three = new ConsistentHashRing(3, 128);
+        ConsistentHashRing four  = new ConsistentHashRing(4, 128);
+
+        int moved = 0;
+        for (int key = 0; key < 100000; key++)
+        {
+            int before = three.nodeFor(key);
+            int after  = four.nodeFor(key);
+            if (before != after)
+            {
+                assertEquals(3, after);
+                moved++;
+            }
+        }
+
+        assertTrue("Moved " + moved + " keys", moved > 20000 && moved < 30000);
+    }
+}
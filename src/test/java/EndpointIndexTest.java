@@ -0,0 +1,74 @@
+import com.gloomy.server.EndpointIndex;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+class EndpointIndexTest
+{
+    @Test
+    void testEndpointsSurviveGrowthAndRemoval() throws UnknownHostException
+    {
+        EndpointIndex index = new EndpointIndex(4);
+        InetAddress[] addresses = new InetAddress[64];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i / 8), (byte) i });
+
+        for (int i = 0; i < addresses.length; i++)
+            for (int port = 0; port < 16; port++)
+                assertTrue(index.claim(addresses[i], 5000 + port, i, port));
+        assertEquals(64 * 16, index.size());
+
+        // Every other endpoint leaves, which shifts the ones probing past it back
+        for (int i = 0; i < addresses.length; i++)
+            for (int port = 0; port < 16; port += 2)
+                assertTrue(index.remove(addresses[i], 5000 + port, i, port));
+
+        for (int i = 0; i < addresses.length; i++)
+            for (int port = 0; port < 16; port++)
+            {
+                long entry = index.lookup(addresses[i], 5000 + port);
+                if (port % 2 == 0)
+                    assertEquals(EndpointIndex.NONE, entry);
+                else
+                {
+                    assertEquals(i, EndpointIndex.sessionIdOf(entry));
+                    assertEquals(port, EndpointIndex.clientIdOf(entry));
+                }
+            }
+        assertEquals(64 * 8, index.size());
+    }
+
+    @Test
+    void testReservationsBlockDuplicateJoins() throws UnknownHostException
+    {
+        EndpointIndex index = new EndpointIndex(16);
+        InetAddress ipv4 = InetAddress.getByName("127.0.0.1");
+        InetAddress ipv6 = InetAddress.getByName("::1");
+
+        for (InetAddress address : new InetAddress[] { ipv4, ipv6 })
+        {
+            assertTrue(index.reserve(address, 4000));
+            assertFalse(index.reserve(address, 4000));
+            assertEquals(EndpointIndex.NONE, index.lookup(address, 4000));
+
+            assertTrue(index.claim(address, 4000, 3, 1));
+            assertFalse(index.claim(address, 4000, 7, 0));
+            assertFalse(index.reserve(address, 4000));
+            assertTrue(index.matches(address, 4000, 3, 1));
+            assertFalse(index.matches(address, 4001, 3, 1));
+
+            index.release(address, 4000);       // Claimed, so not released
+            assertFalse(index.remove(address, 4000, 3, 2));
+            assertTrue(index.remove(address, 4000, 3, 1));
+            assertTrue(index.reserve(address, 4000));
+            index.release(address, 4000);
+            assertEquals(EndpointIndex.NONE, index.lookup(address, 4000));
+        }
+        assertEquals(0, index.size());
+    }
+}
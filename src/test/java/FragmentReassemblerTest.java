@@ -0,0 +1,87 @@
+import com.gloomy.protocol.PacketFragmenter;
+import com.gloomy.server.FragmentReassembler;
+import com.gloomy.server.ReceivedDatagram;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+class FragmentReassemblerTest
+{
+    private static ReceivedDatagram received(byte[] datagram, int port) throws UnknownHostException
+    {
+        return ReceivedDatagram.Wrap(ByteBuffer.wrap(datagram), InetAddress.getByName("127.0.0.1"), port);
+    }
+
+    private static byte[] packet(int length)
+    {
+        byte[] packet = new byte[length];
+        for (int i = 0; i < length; i++)
+            packet[i] = (byte) i;
+        return packet;
+    }
+
+    @Test
+    void testOutOfOrderFragmentsReassemble() throws UnknownHostException
+    {
+        PacketFragmenter fragmenter = new PacketFragmenter(508);
+        FragmentReassembler reassembler = new FragmentReassembler(2000, 64 * 1024);
+
+        byte[] small = packet(100);
+        assertEquals(1, fragmenter.split(small).length);
+        assertTrue(fragmenter.split(small)[0] == small);
+
+        byte[] large = packet(3000);
+        byte[][] fragments = fragmenter.split(large);
+        assertEquals(6, fragments.length);
+
+        for (byte[] fragment : fragments)
+        {
+            assertTrue(fragment.length <= 508);
+            assertTrue(PacketFragmenter.isFragment(ByteBuffer.wrap(fragment)));
+        }
+
+        ReceivedDatagram complete = null;
+        for (int i = fragments.length - 1; i >= 0; i--)
+        {
+            assertNull(complete);
+            complete = reassembler.accept(received(fragments[i], 5000));
+        }
+
+        assertNotNull(complete);
+        ByteBuffer data = complete.getData();
+        byte[] reassembled = new byte[data.remaining()];
+        data.get(reassembled);
+        assertArrayEquals(large, reassembled);
+        assertEquals(0, reassembler.pendingPackets());
+        assertEquals(0, reassembler.bufferedBytes());
+    }
+
+    @Test
+    void testPartialPacketsAreBounded() throws UnknownHostException
+    {
+        PacketFragmenter fragmenter = new PacketFragmenter(508);
+        FragmentReassembler reassembler = new FragmentReassembler(2000, 4 * 1024);
+
+        // Only the first fragment of each packet ever arrives
+        for (int port = 5000; port < 5100; port++)
+            assertNull(reassembler.accept(received(fragmenter.split(packet(3000))[0], port)));
+
+        assertTrue(reassembler.bufferedBytes() <= 4 * 1024);
+        assertTrue(reassembler.pendingPackets() < 100);
+
+        FragmentReassembler expiring = new FragmentReassembler(0, 64 * 1024);
+        byte[][] fragments = fragmenter.split(packet(1000));
+        expiring.accept(received(fragments[0], 5000));
+        assertNull(expiring.accept(received(Arrays.copyOf(fragments[1], fragments[1].length), 5001)));
+        assertEquals(1, expiring.pendingPackets());
+    }
+}
@@ -0,0 +1,73 @@
+import com.gloomy.utils.IdAllocator;
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+class IdAllocatorTest
+{
+    @Test
+    void testLowestFreeIdIsReused()
+    {
+        IdAllocator ids = new IdAllocator(IdAllocator.SEGMENT_BITS + 10);
+
+        for (int i = 0; i < ids.capacity(); i++)
+            assertEquals(i, ids.allocate());
+        assertEquals(-1, ids.allocate());
+
+        ids.free(IdAllocator.SEGMENT_BITS + 3);
+        ids.free(70);
+        ids.free(5);
+        assertFalse(ids.isAllocated(70));
+
+        assertEquals(5, ids.allocate());
+        assertEquals(70, ids.allocate());
+        assertEquals(IdAllocator.SEGMENT_BITS + 3, ids.allocate());
+        assertEquals(-1, ids.allocate());
+        assertTrue(ids.isAllocated(70));
+    }
+
+    @Test
+    void testConcurrentAllocationsAreUnique() throws InterruptedException
+    {
+        int threads = 8;
+        int perThread = 5000;
+        IdAllocator ids = new IdAllocator(threads * perThread);
+        int[][] taken = new int[threads][perThread];
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            int thread = t;
+            new Thread(() -> {
+                // Churn a little so frees race allocations, then keep perThread ids
+                for (int i = 0; i < perThread; i++)
+                {
+                    int id = ids.allocate();
+                    if (i % 3 == 0)
+                    {
+                        ids.free(id);
+                        id = ids.allocate();
+                    }
+                    taken[thread][i] = id;
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        BitSet seen = new BitSet();
+        for (int[] thread : taken)
+            for (int id : thread)
+            {
+                assertTrue(id >= 0);
+                assertFalse("Id handed out twice: " + id, seen.get(id));
+                seen.set(id);
+            }
+        assertEquals(-1, ids.allocate());
+    }
+}
@@ -0,0 +1,73 @@
+import com.gloomy.protocol.ClientDisconnect;
+import com.gloomy.protocol.ClientPacket;
+import com.gloomy.protocol.GameStart;
+import com.gloomy.protocol.JsonPacketDecoder;
+import com.gloomy.protocol.MatchRequest;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+class JsonPacketDecoderTest
+{
+    private final JsonPacketDecoder decoder = new JsonPacketDecoder();
+
+    @Test
+    void testTypedPacketsDecode()
+    {
+        ClientPacket match = decode("{\"T:P\":3,\"name\":\"Gl\u00f6omy \uD83D\uDE00\"}");
+        assertTrue(match instanceof MatchRequest);
+        assertEquals("Gl\u00f6omy \uD83D\uDE00", ((MatchRequest) match).getName());
+
+        // Keys may come in any order, and single quotes from older clients are still accepted
+        ClientPacket disconnect = decode("{'cId':4,'sId':12,'T:P':4}");
+        assertTrue(disconnect instanceof ClientDisconnect);
+        assertEquals(12, ((ClientDisconnect) disconnect).getSessionId());
+        assertEquals(4, ((ClientDisconnect) disconnect).getClientId());
+
+        ClientPacket start = decode("{\"T:P\":10.0,\"sId\":7,\"extra\":[1,{\"a\":2}]}\u0000\u0000\u0000");
+        assertTrue(start instanceof GameStart);
+        assertEquals(7, ((GameStart) start).getSessionId());
+    }
+
+    @Test
+    void testMalformedPacketsAreRejected()
+    {
+        assertNull(decode(""));
+        assertNull(decode("{\"T:P\":4,\"sId\":12"));           // Truncated
+        assertNull(decode("{\"T:P\":4,\"sId\":12}"));          // Missing cId
+        assertNull(decode("{\"sId\":12,\"cId\":1}"));           // Missing type
+        assertNull(decode("{\"T:P\":\"four\",\"sId\":12}"));    // Wrong field type
+        assertNull(decode("{\"T:P\":99}"));                     // Not a client packet
+        assertNull(decode("[\"T:P\",3]"));
+    }
+
+    @Test
+    void testSessionIdPeek()
+    {
+        assertEquals(12, decoder.peekSessionId(buffer("{\"T:P\":4,\"cId\":1,\"sId\" : 12}")));
+        assertEquals(7, decoder.peekSessionId(buffer("{'sId':7,'T:P':10}")));
+        assertEquals(-1, decoder.peekSessionId(buffer("{\"T:P\":3,\"name\":\"sId\"}")));
+        assertEquals(-1, decoder.peekSessionId(buffer("{\"T:P\":3,\"name\":\"Player\"}")));
+    }
+
+    private static ByteBuffer buffer(String json)
+    {
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private ClientPacket decode(String json)
+    {
+        ByteBuffer data = ByteBuffer.allocateDirect(512);
+        data.put(json.getBytes(StandardCharsets.UTF_8));
+        data.flip();
+
+        ClientPacket packet = decoder.decode(data);
+        assertEquals(0, data.position());
+        return packet;
+    }
+}
@@ -0,0 +1,43 @@
+import com.gloomy.server.Server;
+import com.gloomy.session.Client;
+import com.gloomy.session.Session;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+class OpenSessionIndexTest
+{
+    private static Client client(String name, int port) throws UnknownHostException
+    {
+        return new Client(name, InetAddress.getByName("127.0.0.1"), port);
+    }
+
+    @Test
+    void testPicksFullestOpenSession() throws UnknownHostException
+    {
+        Server testServer = Server.Create(3223);
+        testServer.createNewSession(client("Host A", 4000));
+        testServer.createNewSession(client("Host B", 4001));
+
+        Session first  = testServer.getSession(0);
+        Session second = testServer.getSession(1);
+
+        second.addClient(client("Joiner", 4002));
+        assertEquals(second, testServer.findOpenSession());
+
+        for (int port = 4003; port < 4007; port++)
+            second.addClient(client("Filler " + port, port));
+        assertEquals(first, testServer.findOpenSession());
+
+        second.disconnectClient(second.findClientFromId(2));
+        assertEquals(second, testServer.findOpenSession());
+
+        first.startGame();
+        second.startGame();
+        assertNull(testServer.findOpenSession());
+    }
+}
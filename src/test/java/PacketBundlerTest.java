@@ -0,0 +1,85 @@
+import com.gloomy.protocol.PacketBundler;
+import com.gloomy.protocol.PacketFragmenter;
+import com.gloomy.protocol.WireFormat;
+import com.gloomy.server.PacketType;
+import com.gloomy.utils.GloomyNetMessageBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+class PacketBundlerTest
+{
+    private static byte[] joinSuccess(WireFormat format, int clientId)
+    {
+        return GloomyNetMessageBuilder.Create(PacketType.JOIN_SUCCESS)
+                .addData("host", false)
+                .addData("cId", clientId)
+                .addData("sId", 7)
+                .addData("team", 0)
+                .buildBytes(format);
+    }
+
+    @Test
+    void testJsonPacketsBundleIntoArrays()
+    {
+        List<byte[]> packets = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            packets.add(joinSuccess(WireFormat.JSON, i));
+
+        List<byte[]> datagrams = PacketBundler.bundle(packets, WireFormat.JSON, 508);
+
+        assertTrue(datagrams.size() < packets.size());
+        int bundled = 0;
+        for (byte[] datagram : datagrams)
+        {
+            assertTrue(datagram.length <= 508);
+            String json = new String(datagram, StandardCharsets.UTF_8);
+            assertTrue(json.startsWith("[{") && json.endsWith("}]"));
+            bundled += json.split("\\},\\{").length;
+        }
+        assertEquals(packets.size(), bundled);
+
+        List<byte[]> single = PacketBundler.bundle(packets.subList(0, 1), WireFormat.JSON, 508);
+        assertEquals(1, single.size());
+        assertArrayEquals(packets.get(0), single.get(0));
+    }
+
+    @Test
+    void testBinaryFramesKeepOrderAroundFragments()
+    {
+        byte[] first  = joinSuccess(WireFormat.BINARY, 1);
+        byte[] second = joinSuccess(WireFormat.BINARY, 2);
+        byte[][] fragments = new PacketFragmenter(508).split(new byte[1200]);
+        byte[] third  = joinSuccess(WireFormat.BINARY, 3);
+
+        List<byte[]> packets = new ArrayList<>(Arrays.asList(first, second));
+        packets.addAll(Arrays.asList(fragments));
+        packets.add(third);
+
+        List<byte[]> datagrams = PacketBundler.bundle(packets, WireFormat.BINARY, 508);
+
+        assertEquals(2 + fragments.length, datagrams.size());
+
+        ByteBuffer bundle = ByteBuffer.wrap(datagrams.get(0));
+        assertEquals(PacketBundler.BUNDLE_MARKER, bundle.get());
+        for (byte[] packet : new byte[][] { first, second })
+        {
+            byte[] framed = new byte[bundle.getShort()];
+            bundle.get(framed);
+            assertArrayEquals(packet, framed);
+        }
+        assertEquals(0, bundle.remaining());
+
+        for (int i = 0; i < fragments.length; i++)
+            assertArrayEquals(fragments[i], datagrams.get(1 + i));
+        assertArrayEquals(third, datagrams.get(datagrams.size() - 1));
+    }
+}
@@ -0,0 +1,201 @@
+import com.gloomy.protocol.JsonPacketDecoder;
+import com.gloomy.server.PacketType;
+import com.gloomy.server.PacketWorkflowHandler;
+import com.gloomy.server.ReceiveMode;
+import com.gloomy.server.Server;
+import com.gloomy.server.ServerConfig;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+
+class PacketRoutingTest
+{
+    private static final int PORT = 47360;
+
+    private static final int SHARDS = 4;
+
+    private static final int REQUESTS = 100;
+
+    private static final int WINDOW = 10;
+
+    @Test
+    void testSessionsMapToOneShardEach()
+    {
+        for (int sessionId = 0; sessionId < 1000; sessionId++)
+        {
+            int shard = PacketWorkflowHandler.shardForSession(sessionId, SHARDS);
+            assertEquals(1 + sessionId % SHARDS, shard);
+        }
+        assertEquals(1 + Math.floorMod(-7, SHARDS), PacketWorkflowHandler.shardForSession(-7, SHARDS));
+    }
+
+    @Test
+    void testSessionPacketsAreHandledInOrderOnTheirShard() throws Exception
+    {
+        Server server = Server.Create(PORT, new ServerConfig().setReceiveMode(ReceiveMode.CHANNEL)
+                .setWorkflowShards(SHARDS).setLobbySize(2, 2).setRosterPageSize(1));
+        server.start();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        DatagramSocket[] clients = new DatagramSocket[SHARDS * 2];
+
+        try {
+            int[][] joined = new int[clients.length][];
+            for (int i = 0; i < clients.length; i++)
+            {
+                clients[i] = new DatagramSocket(0, loopback);
+                clients[i].setReceiveBufferSize(1 << 20);
+                clients[i].setSoTimeout(5000);
+                send(clients[i], loopback, "{\"T:P\":3,\"name\":\"client" + i + "\"}");
+                joined[i] = receiveJoin(clients[i]);
+            }
+
+            // Drop the roster each client was sent on joining
+            for (DatagramSocket client : clients)
+                drain(client);
+
+            PacketWorkflowHandler handler = server.getPacketHandler();
+            long[] before = new long[handler.getShardCount()];
+            for (int shard = 0; shard < before.length; shard++)
+                before[shard] = handler.getProcessedPackets(shard);
+
+            // Requests go out a window at a time so a burst does not overflow the socket buffers, pages come back
+            // in the order they were asked for
+            for (int first = 0; first < REQUESTS; first += WINDOW)
+            {
+                for (int page = first; page < first + WINDOW; page++)
+                    for (int i = 0; i < clients.length; i++)
+                        send(clients[i], loopback, "{\"T:P\":18,\"sId\":" + joined[i][0] + ",\"cId\":" + joined[i][1]
+                                                   + ",\"page\":" + page + "}");
+
+                for (int i = 0; i < clients.length; i++)
+                    for (int page = first; page < first + WINDOW; page++)
+                        assertEquals(page, receiveNumber(clients[i], "page"));
+            }
+
+            long[] expected = new long[before.length];
+            for (int[] client : joined)
+                expected[PacketWorkflowHandler.shardForSession(client[0], SHARDS)] += REQUESTS;
+
+            // Each request was handled by its sessions shard, none went through another shard first
+            for (int shard = 0; shard < before.length; shard++)
+                assertEquals(expected[shard], handler.getProcessedPackets(shard) - before[shard]);
+        } finally {
+            for (DatagramSocket client : clients)
+                if (client != null)
+                    client.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    void testOnlySessionPacketsAreRoutedBySessionId()
+    {
+        JsonPacketDecoder decoder = new JsonPacketDecoder();
+        assertEquals(5, decoder.peekSessionId(json("{\"T:P\":10,\"sId\":5}")));
+        assertEquals(5, decoder.peekSessionId(json("{'T:P':10,'sId':5}")));
+
+        // Match requests and session list queries go to matchmaking whatever sId they carry
+        assertEquals(-1, decoder.peekSessionId(json("{\"T:P\":3,\"sId\":7,\"name\":\"player\"}")));
+        assertEquals(-1, decoder.peekSessionId(json("{\"T:P\":" + PacketType.LIST_SESSIONS + ",\"sId\":7}")));
+
+        // A key quoted inside a string is part of the string
+        assertEquals(-1, decoder.peekSessionId(json("{\"T:P\":10,\"name\":\"'sId':7\"}")));
+        assertEquals(-1, decoder.peekSessionId(json("{\"T:P\":10,\"name\":\"\\\"sId\\\":7\"}")));
+        assertEquals(4, decoder.peekSessionId(json("{\"T:P\":10,\"name\":\"'sId':7\",\"sId\":4}")));
+        assertEquals(-1, decoder.peekSessionId(json("{\"T:P\":10,\"x\":{\"sId\":7}}")));
+    }
+
+    @Test
+    void testMatchRequestWithASessionIdIsMatched() throws Exception
+    {
+        Server server = Server.Create(PORT + 1, new ServerConfig().setReceiveMode(ReceiveMode.CHANNEL)
+                .setWorkflowShards(SHARDS).setLobbySize(2, 2));
+        server.start();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        try (DatagramSocket client = new DatagramSocket(0, loopback))
+        {
+            client.setSoTimeout(5000);
+            PacketWorkflowHandler handler = server.getPacketHandler();
+            long matchmaking = handler.getProcessedPackets(0);
+
+            byte[] data = "{\"T:P\":3,\"sId\":1,\"name\":\"stray\"}".getBytes(StandardCharsets.UTF_8);
+            client.send(new DatagramPacket(data, data.length, loopback, PORT + 1));
+
+            receiveJoin(client);
+            for (int i = 0; i < 100 && handler.getProcessedPackets(0) == matchmaking; i++)
+                Thread.sleep(10);   // Counted once the shard is done with the packet, which may be after the reply
+            assertEquals(matchmaking + 1, handler.getProcessedPackets(0));
+            for (int shard = 1; shard < handler.getShardCount(); shard++)
+                assertEquals(0, handler.getProcessedPackets(shard));
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static ByteBuffer json(String json)
+    {
+        return ByteBuffer.wrap(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(DatagramSocket client, InetAddress address, String json) throws Exception
+    {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        client.send(new DatagramPacket(data, data.length, address, PORT));
+    }
+
+    /** @return The sId and cId from the clients JOIN_SUCCESS **/
+    private static int[] receiveJoin(DatagramSocket client) throws Exception
+    {
+        String join = receive(client, "\"T:P\":0");
+        return new int[] { number(join, "sId"), number(join, "cId") };
+    }
+
+    private static int receiveNumber(DatagramSocket client, String key) throws Exception
+    {
+        return number(receive(client, "\"T:P\":" + PacketType.ROSTER_PAGE), key);
+    }
+
+    /** Receive until a datagram containing marker arrives, skipping the rest **/
+    private static String receive(DatagramSocket client, String marker) throws Exception
+    {
+        byte[] buffer = new byte[2048];
+        while (true)
+        {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            client.receive(packet);
+            String json = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            if (json.contains(marker))
+                return json;
+        }
+    }
+
+    private static void drain(DatagramSocket client) throws Exception
+    {
+        client.setSoTimeout(200);
+        byte[] buffer = new byte[2048];
+        try {
+            while (true)
+                client.receive(new DatagramPacket(buffer, buffer.length));
+        } catch (SocketTimeoutException e) {
+            client.setSoTimeout(5000);
+        }
+    }
+
+    private static int number(String json, String key)
+    {
+        Matcher matcher = Pattern.compile("\"" + key + "\":(-?\\d+)").matcher(json);
+        if (!matcher.find())
+            throw new AssertionError(key + " missing from " + json);
+        return Integer.parseInt(matcher.group(1));
+    }
+}
@@ -0,0 +1,110 @@
+import com.gloomy.server.Relay;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+class RelayTest
+{
+    private static final int PORT = 47330;
+
+    @Test
+    void testDatagramsAreForwardedWithTheSender() throws IOException
+    {
+        Relay relay = new Relay(PORT, 1, 64, 30000);
+        relay.start(InetAddress.getByName("127.0.0.1"));
+
+        try (DatagramSocket first = socket(); DatagramSocket second = socket(); DatagramSocket third = socket())
+        {
+            Relay.Group group = relay.open(0, 3, 7);
+            assertEquals(PORT, group.getPort());
+
+            // Every member tells the relay where it is before anything can reach it
+            send(first, group, 0, Relay.BROADCAST, new byte[0]);
+            send(second, group, 3, Relay.BROADCAST, new byte[0]);
+            send(third, group, 7, Relay.BROADCAST, new byte[0]);
+
+            send(first, group, 0, 7, new byte[] { 1, 2, 3 });
+            assertArrayEquals(new byte[] { 0, 1, 2, 3 }, receive(third));
+
+            send(second, group, 3, Relay.BROADCAST, new byte[] { 9 });
+            assertArrayEquals(new byte[] { 3, 9 }, receive(first));
+            assertArrayEquals(new byte[] { 3, 9 }, receive(third));
+            assertNull(receive(second));
+
+            assertEquals(1, group.getPackets(0, 7));
+            assertEquals(3, group.getBytes(0, 7));
+            assertEquals(1, group.getPackets(3, 0));
+            assertEquals(0, group.getPackets(7, 0));
+        } finally {
+            relay.stop();
+        }
+    }
+
+    @Test
+    void testUnknownAndClosedTicketsAreDropped() throws IOException
+    {
+        Relay relay = new Relay(PORT + 1, 1, 64, 30000);
+        relay.start(InetAddress.getByName("127.0.0.1"));
+
+        try (DatagramSocket first = socket(); DatagramSocket second = socket())
+        {
+            Relay.Group group = relay.open(0, 1);
+            send(second, group, 1, Relay.BROADCAST, new byte[0]);
+
+            long forged = group.getTicket(0) ^ (1L << 40);
+            sendRaw(first, group.getPort(), forged, 1, new byte[] { 5 });
+            assertNull(receive(second));
+
+            group.close();
+            assertEquals(0, relay.getGroupCount());
+            sendRaw(first, group.getPort(), group.getTicket(0), 1, new byte[] { 5 });
+            assertNull(receive(second));
+        } finally {
+            relay.stop();
+        }
+    }
+
+    private static DatagramSocket socket() throws IOException
+    {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(300);
+        return socket;
+    }
+
+    private static void send(DatagramSocket socket, Relay.Group group, int from, int to, byte[] payload) throws IOException
+    {
+        sendRaw(socket, group.getPort(), group.getTicket(from), to, payload);
+    }
+
+    private static void sendRaw(DatagramSocket socket, int port, long ticket, int to, byte[] payload) throws IOException
+    {
+        ByteBuffer datagram = ByteBuffer.allocate(Relay.HEADER_SIZE + payload.length);
+        datagram.putLong(ticket).putShort((short) to).put(payload);
+        socket.send(new DatagramPacket(datagram.array(), datagram.capacity(),
+                                       new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port)));
+    }
+
+    private static byte[] receive(DatagramSocket socket) throws IOException
+    {
+        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+        try {
+            socket.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+
+        byte[] data = new byte[packet.getLength()];
+        System.arraycopy(packet.getData(), 0, data, 0, data.length);
+        return data;
+    }
+}
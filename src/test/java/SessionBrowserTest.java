@@ -0,0 +1,86 @@
+import com.gloomy.protocol.WireFormat;
+import com.gloomy.server.PacketType;
+import com.gloomy.server.Server;
+import com.gloomy.server.SessionBrowser;
+import com.gloomy.session.Client;
+import com.gloomy.session.Session;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+class SessionBrowserTest
+{
+    @Test
+    void testPagesCoverEveryMatchingSessionOnce() throws Exception
+    {
+        Server server = Server.Create(3241);
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        // Sessions 0 to 39 are left with room for one more client, the rest keep five free slots
+        int port = 20000;
+        for (int i = 0; i < 120; i++)
+        {
+            Session session = server.createNewSession(new Client("a rather long host name " + i, loopback, port++));
+            if (i < 40)
+                for (int c = 0; c < 4; c++)
+                    session.addClient(new Client("player", loopback, port++));
+        }
+
+        SessionBrowser browser = server.getSessionBrowser();
+        browser.rebuild();
+
+        assertEquals(120, collect(browser, 0).size());
+        Set<Integer> roomForTwo = collect(browser, 2);
+        assertEquals(80, roomForTwo.size());
+        for (int sessionId : roomForTwo)
+            assertTrue(sessionId >= 40);
+
+        // Closest to full first
+        ByteBuffer first = ByteBuffer.wrap(browser.getPage(0, 0, WireFormat.BINARY));
+        assertEquals(5, first.get(11));
+
+        // Pages are cached until the next rebuild
+        byte[] page = browser.getPage(1, 1, WireFormat.BINARY);
+        assertSame(page, browser.getPage(1, 1, WireFormat.BINARY));
+        browser.rebuild();
+        assertNotSame(page, browser.getPage(1, 1, WireFormat.BINARY));
+
+        String json = new String(browser.getPage(0, 99, WireFormat.JSON), "UTF-8");
+        assertTrue(json.contains("\"T:P\":" + PacketType.SESSION_LIST));
+        assertTrue(json.length() <= server.getConfig().getMtu());
+    }
+
+    /** Read every page of a filter, checking each fits a datagram and that no session shows up twice **/
+    private static Set<Integer> collect(SessionBrowser browser, int minFreeSlots)
+    {
+        Set<Integer> sessions = new HashSet<>();
+        int pages = 1;
+        for (int page = 0; page < pages; page++)
+        {
+            ByteBuffer data = ByteBuffer.wrap(browser.getPage(minFreeSlots, page, WireFormat.BINARY));
+            assertTrue(data.remaining() <= 508);
+            assertEquals(PacketType.SESSION_LIST, data.get(1));
+            assertEquals(page, data.getShort(2));
+            pages = data.getShort(4);
+
+            data.position(7);
+            for (int count = data.get(6) & 0xFF; count > 0; count--)
+            {
+                assertTrue(sessions.add(data.getInt()));
+                assertTrue((data.get() & 0xFF) + minFreeSlots <= (data.get() & 0xFF));
+                data.position(data.position() + 1 + (data.get(data.position()) & 0xFF));
+            }
+        }
+
+        assertTrue(pages > 1);
+        return sessions;
+    }
+}
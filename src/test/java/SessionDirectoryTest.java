@@ -0,0 +1,103 @@
+import com.gloomy.server.Server;
+import com.gloomy.server.SessionDirectory;
+import com.gloomy.session.Client;
+import com.gloomy.session.Session;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+class SessionDirectoryTest
+{
+    @Test
+    void testAddGetAndRemove() throws Exception
+    {
+        Server server = Server.Create(3250);
+        SessionDirectory directory = new SessionDirectory(2);
+        Session first  = session(server, 0);
+        Session second = session(server, 5);   // Past the initial capacity
+
+        assertTrue(directory.add(first));
+        assertTrue(directory.add(second));
+        assertTrue(directory.add(second));     // Adding the same session again changes nothing
+        assertFalse(directory.add(session(server, 5)));
+        assertEquals(2, directory.size());
+        assertTrue(directory.capacity() > 5);
+
+        assertSame(first, directory.get(0));
+        assertSame(second, directory.get(5));
+        assertNull(directory.get(3));
+        assertNull(directory.get(-1));
+        assertNull(directory.get(1 << 20));
+
+        assertTrue(directory.remove(second));
+        assertFalse(directory.remove(second));
+        assertNull(directory.get(5));
+        assertEquals(1, directory.size());
+        assertEquals(1, directory.snapshot().size());
+    }
+
+    @Test
+    void testConcurrentAddsWhileGrowing() throws Exception
+    {
+        int threads = 4;
+        int perThread = 500;
+        Server server = Server.Create(3251);
+        Session[] sessions = new Session[threads * perThread];
+        for (int i = 0; i < sessions.length; i++)
+            sessions[i] = session(server, i);
+
+        SessionDirectory directory = new SessionDirectory(1);
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            final int first = t;
+            new Thread(() -> {
+                try {
+                    start.await();
+                    // Ids interleave between threads so every thread keeps running into growth
+                    for (int id = first; id < sessions.length; id += threads)
+                    {
+                        if (!directory.add(sessions[id]))
+                            failures.incrementAndGet();
+                        if (id % 2 == 0 && !directory.remove(sessions[id]))
+                            failures.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        start.countDown();
+        done.await();
+
+        assertEquals(0, failures.get());
+        assertEquals(sessions.length / 2, directory.size());
+        assertEquals(sessions.length / 2, directory.snapshot().size());
+        for (int id = 0; id < sessions.length; id++)
+        {
+            if (id % 2 == 0)
+                assertNull(directory.get(id));
+            else
+                assertSame(sessions[id], directory.get(id));
+        }
+    }
+
+    private static Session session(Server server, int sessionId) throws Exception
+    {
+        return Session.Create(new Client("host" + sessionId, InetAddress.getByName("127.0.0.1"), 10000 + sessionId),
+                              server, sessionId);
+    }
+}
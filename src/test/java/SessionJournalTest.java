@@ -0,0 +1,93 @@
+import com.gloomy.server.SessionJournal;
+import com.gloomy.session.Client;
+import com.gloomy.session.TeamManager;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+class SessionJournalTest
+{
+    @Test
+    void testSessionsAreRecoveredWithoutAClose() throws IOException
+    {
+        Path directory = Files.createTempDirectory("journal");
+        TeamManager teams = new TeamManager(new ArrayList<>(), 6, 2);
+
+        SessionJournal journal = SessionJournal.Open(directory, 64 * 1024);
+        assertTrue(journal.getRecoveredSessions().isEmpty());
+
+        journal.sessionCreated(7, 6, 2);
+        Client host = client("host", 4000, 0, teams);
+        host.setHosting(true);
+        journal.clientJoined(7, host);
+        Client second = client("second", 4001, 1, teams);
+        second.setRating(1850);
+        journal.clientJoined(7, second);
+        journal.clientJoined(7, client("third", 4002, 2, teams));
+        journal.clientLeft(7, 0);
+        journal.hostChanged(7, 1);
+
+        journal.sessionCreated(8, 4, 2);
+        journal.clientJoined(8, client("gone", 4003, 0, teams));
+        journal.sessionShutdown(8);
+
+        // The first journal is never closed, as if the server was killed
+        List<SessionJournal.SessionImage> recovered = SessionJournal.Open(directory, 64 * 1024).getRecoveredSessions();
+        assertEquals(1, recovered.size());
+
+        SessionJournal.SessionImage session = recovered.get(0);
+        assertEquals(7, session.getSessionId());
+        assertEquals(6, session.getMaxClients());
+        assertEquals(1, session.getHostId());
+
+        List<SessionJournal.ClientImage> clients = new ArrayList<>(session.getClients());
+        assertEquals(2, clients.size());
+        assertEquals("second", clients.get(0).getUserName());
+        assertEquals(4001, clients.get(0).getPort());
+        assertEquals(1850, clients.get(0).getRating());
+        assertEquals(2, clients.get(1).getClientId());
+        assertEquals(InetAddress.getByName("127.0.0.1"), clients.get(1).getIp());
+    }
+
+    @Test
+    void testFullJournalRollsOverIntoSnapshots() throws IOException
+    {
+        Path directory = Files.createTempDirectory("journal");
+        TeamManager teams = new TeamManager(new ArrayList<>(), 6, 2);
+
+        // Room for only a few records, so the journal is snapshotted and started over many times
+        SessionJournal journal = SessionJournal.Open(directory, 1024);
+        for (int session = 0; session < 200; session++)
+        {
+            journal.sessionCreated(session, 6, 2);
+            journal.clientJoined(session, client("player " + session, 5000 + session, 0, teams));
+            if (session % 2 == 1)
+                journal.sessionShutdown(session);
+        }
+        journal.close();
+
+        SessionJournal reopened = SessionJournal.Open(directory, 1024);
+        assertEquals(100, reopened.getRecoveredSessions().size());
+        for (SessionJournal.SessionImage session : reopened.getRecoveredSessions())
+        {
+            assertEquals(0, session.getSessionId() % 2);
+            assertEquals("player " + session.getSessionId(), session.getClients().iterator().next().getUserName());
+        }
+    }
+
+    private static Client client(String name, int port, int clientId, TeamManager teams) throws IOException
+    {
+        Client client = new Client(name, InetAddress.getByName("127.0.0.1"), port);
+        client.setClientId(clientId);
+        teams.addClientGetTeam(client);
+        return client;
+    }
+}
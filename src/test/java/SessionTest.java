@@ -1,15 +1,29 @@
+import com.gloomy.server.PacketType;
 import com.gloomy.server.Server;
+import com.gloomy.server.ServerConfig;
 import com.gloomy.session.Client;
 import com.gloomy.session.Session;
+import com.gloomy.session.SessionPool;
 import org.junit.jupiter.api.Test;
 
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 class SessionTest
 {
+    /** First byte of a reliable frame **/
+    private static final byte RELIABLE_MARKER = (byte) 0xE1;
 
     SessionTest()
     {
@@ -87,4 +101,154 @@ class SessionTest
         System.out.println(clientSize);
         assertTrue(clientSize == 5);
     }
+
+    @Test
+    void testSessionTasksRunOneAtATime() throws Exception
+    {
+        Server testServer = Server.Create(3223);
+        Session testSession = testServer.createNewSession(new Client("Session Test", InetAddress.getByName("127.0.0.1"), 3224));
+
+        int threads = 4;
+        int tasksPerThread = 20000;
+        int[] counter = new int[1];
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread(() -> {
+                for (int i = 0; i < tasksPerThread; i++)
+                    testSession.execute(() -> {
+                        if (running.incrementAndGet() != 1)
+                            overlaps.incrementAndGet();
+                        counter[0]++;   // Not atomic, only correct if tasks never overlap
+                        running.decrementAndGet();
+                    });
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        testSession.execute(() -> {});  // Every task is run by the time an uncontended execute returns
+        assertEquals(0, overlaps.get());
+        assertEquals(threads * tasksPerThread, counter[0]);
+    }
+
+    @Test
+    void testShutDownSessionsAreReused() throws Exception
+    {
+        Server testServer = Server.Create(3240, new ServerConfig().setSessionPoolSize(1));
+        testServer.start();
+        SessionPool pool = testServer.getSessionPool();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        Session first = testServer.createNewSession(new Client("Pool Host 1", loopback, 3241));
+        first.addClient(new Client("Pool Client", loopback, 3242));
+        assertEquals(0, pool.available());
+
+        first.startGame();
+        for (int i = 0; i < 200 && pool.available() == 0; i++)
+            Thread.sleep(10);   // Comes back once its last messages are sent
+
+        Session second = testServer.createNewSession(new Client("Pool Host 2", loopback, 3243));
+        assertSame(first, second);
+        assertEquals(2, pool.getReusedCount());   // The first came from prewarming
+        assertEquals(1, second.getClients().size());
+        assertEquals(0, second.getHost().getClientId());
+        assertEquals(1, second.getRosterVersion());
+    }
+
+    @Test
+    void testFullRelayedGameStarts() throws Exception
+    {
+        int lobbySize = Session.MAX_CLIENT_IDS;
+        Server testServer = Server.Create(3244, new ServerConfig().setRelayPort(3245).setLobbySize(lobbySize, 2));
+        testServer.start();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        try {
+            Session session = testServer.createNewSession(new Client("Relay Host", loopback, 5000));
+            for (int i = 1; i < lobbySize; i++)
+                session.addClient(new Client("Relay Client " + i, loopback, 5000 + i));
+            assertEquals(lobbySize, session.getClients().size());
+            assertEquals(lobbySize - 1, session.findClientFromId(lobbySize - 1).getClientId());
+
+            // The last cId is a client like any other, the game starts and the session hands itself over
+            session.startGame();
+            for (int i = 0; i < 200 && testServer.getSessionCount() > 0; i++)
+                Thread.sleep(10);
+
+            assertEquals(0, testServer.getSessionCount());
+            assertEquals(1, testServer.getRelay().getGroupCount());
+        } finally {
+            testServer.stop();
+        }
+    }
+
+    @Test
+    void testSessionIsRecycledWithoutAcksFromDepartedClients() throws Exception
+    {
+        Server testServer = Server.Create(3246, new ServerConfig().setSessionPoolSize(1).setReliableDelivery(true));
+        testServer.start();
+        SessionPool pool = testServer.getSessionPool();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        try {
+            // Nobody listens on these ports, so no reliable message is ever acknowledged
+            Session session = testServer.createNewSession(new Client("Reliable Host", loopback, 3247));
+            session.addClient(new Client("Reliable Leaver", loopback, 3248));
+            session.addClient(new Client("Reliable Client", loopback, 3249));
+
+            // The last one out shuts the session down
+            for (Client client : session.getClients())
+                session.disconnectClient(client);
+
+            for (int i = 0; i < 100 && pool.available() == 0; i++)
+                Thread.sleep(10);   // Far sooner than the retransmits would give up
+
+            assertEquals(1, pool.available());
+        } finally {
+            testServer.stop();
+        }
+    }
+
+    @Test
+    void testDisconnectNoticeIsRetransmittedUntilAcknowledged() throws Exception
+    {
+        Server testServer = Server.Create(3252, new ServerConfig().setReliableDelivery(true));
+        testServer.start();
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        try (DatagramSocket leaver = new DatagramSocket(0, loopback))
+        {
+            leaver.setSoTimeout(2000);
+            Session session = testServer.createNewSession(new Client("Reliable Host", loopback, 3253));
+            Client leaving = new Client("Reliable Leaver", loopback, leaver.getLocalPort());
+            session.addClient(leaving);
+            session.disconnectClient(leaving);
+
+            // The first notice is dropped by never acknowledging it, the same frame comes again
+            byte[] first  = receiveDisconnectNotice(leaver);
+            byte[] second = receiveDisconnectNotice(leaver);
+            assertArrayEquals(first, second);
+        } finally {
+            testServer.stop();
+        }
+    }
+
+    /** Skip everything else sent to the socket until a reliable YOURE_DISCONNECTED frame arrives **/
+    private static byte[] receiveDisconnectNotice(DatagramSocket socket) throws Exception
+    {
+        String notice = "\"T:P\":" + PacketType.YOURE_DISCONNECTED + "}";
+        while (true)
+        {
+            DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+            socket.receive(packet);
+            byte[] frame = Arrays.copyOf(packet.getData(), packet.getLength());
+            String json = new String(frame, 3, Math.max(0, frame.length - 3), StandardCharsets.UTF_8);
+            if (frame[0] == RELIABLE_MARKER && json.endsWith(notice))
+                return frame;
+        }
+    }
 }
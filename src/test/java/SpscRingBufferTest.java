@@ -0,0 +1,59 @@
+import com.gloomy.utils.SpscRingBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+class SpscRingBufferTest
+{
+    @Test
+    void testFillsToCapacityAndWrapsAround()
+    {
+        SpscRingBuffer<Integer> ring = new SpscRingBuffer<>(3);
+        assertEquals(4, ring.capacity());
+        assertTrue(ring.isEmpty());
+
+        for (int round = 0; round < 3; round++)
+        {
+            for (int i = 0; i < 4; i++)
+                assertTrue(ring.offer(round * 10 + i));
+            assertFalse(ring.offer(-1));
+            assertEquals(4, ring.size());
+
+            for (int i = 0; i < 4; i++)
+                assertEquals(Integer.valueOf(round * 10 + i), ring.poll());
+            assertNull(ring.poll());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test
+    void testConsumerSeesEveryElementInOrder() throws InterruptedException
+    {
+        SpscRingBuffer<Integer> ring = new SpscRingBuffer<>(64);
+        int count = 1000000;
+
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++)
+                while (!ring.offer(i))
+                    Thread.yield();
+        });
+        producer.start();
+
+        for (int expected = 0; expected < count; )
+        {
+            Integer element = ring.poll();
+            if (element == null)
+            {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, element.intValue());
+        }
+
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
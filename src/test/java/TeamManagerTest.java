@@ -0,0 +1,83 @@
+import com.gloomy.session.Client;
+import com.gloomy.session.TeamManager;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+class TeamManagerTest
+{
+    private static final int TEAMS = 16;
+
+    @Test
+    void testLargeLobbyStaysBalancedAsPlayersComeAndGo() throws IOException
+    {
+        TeamManager teams = new TeamManager(new ArrayList<>(), 128, TEAMS);
+        List<Client> clients = new ArrayList<>();
+        Random random = new Random(7);
+
+        for (int i = 0; i < 128; i++)
+            clients.add(join(teams, i, random.nextInt(3000)));
+        assertBalanced(teams, 128);
+
+        for (int i = 0; i < 100; i++)
+        {
+            Client leaving = clients.remove(random.nextInt(clients.size()));
+            int team = leaving.getTeamId();
+            Client moved = teams.removeClient(leaving);
+            if (moved != null)
+                assertEquals(team, moved.getTeamId());     // Someone was moved onto the team that lost a player
+            assertBalanced(teams, clients.size());
+
+            if (i % 3 == 0)
+            {
+                clients.add(join(teams, 200 + i, random.nextInt(3000)));
+                assertBalanced(teams, clients.size());
+            }
+        }
+    }
+
+    @Test
+    void testEvenTeamsAreFilledWeakestFirst() throws IOException
+    {
+        TeamManager teams = new TeamManager(new ArrayList<>(), 4, 2);
+
+        Client strong = join(teams, 0, 2500);
+        Client weak   = join(teams, 1, 1000);
+        assertNotEquals(strong.getTeamId(), weak.getTeamId());
+
+        // Both teams have one player, the next goes with the weaker one
+        assertEquals(weak.getTeamId(), join(teams, 2, 1800).getTeamId());
+    }
+
+    private static Client join(TeamManager teams, int port, int rating) throws IOException
+    {
+        Client client = new Client("player " + port, InetAddress.getByName("127.0.0.1"), port);
+        client.setRating(rating);
+        teams.addClientGetTeam(client);
+        return client;
+    }
+
+    private static void assertBalanced(TeamManager teams, int players)
+    {
+        int smallest = Integer.MAX_VALUE;
+        int largest  = 0;
+        int total    = 0;
+        for (int team = 0; team < TEAMS; team++)
+        {
+            smallest = Math.min(smallest, teams.getTeamSize(team));
+            largest  = Math.max(largest, teams.getTeamSize(team));
+            total   += teams.getTeamSize(team);
+        }
+
+        assertEquals(players, total);
+        assertTrue(largest - smallest <= 1);
+    }
+}
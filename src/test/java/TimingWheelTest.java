@@ -0,0 +1,65 @@
+import com.gloomy.utils.TimingWheel;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+class TimingWheelTest
+{
+    @Test
+    void testTimersFireWithinATickAcrossLevels()
+    {
+        // 8 slots of 10ms per level, so 80ms, 640ms and 5120ms per turn of each level
+        TimingWheel<Long> wheel = new TimingWheel<>(10, 8, 3, 0);
+        long[] deadlines = { 5, 10, 79, 80, 81, 650, 3333, 5119, 20000 };
+        for (long deadline : deadlines)
+            wheel.schedule(deadline, deadline);
+        assertEquals(deadlines.length, wheel.size());
+
+        List<long[]> fired = new ArrayList<>();
+        for (long now = 0; now <= 25000; now += 7)
+        {
+            long at = now;
+            wheel.advance(now, deadline -> fired.add(new long[] { deadline, at }));
+        }
+
+        assertEquals(deadlines.length, fired.size());
+        assertEquals(0, wheel.size());
+        fired.sort((a, b) -> Long.compare(a[0], b[0]));     // Timers sharing a tick fire in any order
+        for (int i = 0; i < fired.size(); i++)
+        {
+            long deadline = fired.get(i)[0];
+            long firedAt  = fired.get(i)[1];
+            assertEquals(deadlines[i], deadline);
+            assertTrue(deadline + " fired at " + firedAt, firedAt >= deadline && firedAt < deadline + 10 + 7);
+        }
+    }
+
+    @Test
+    void testCancelledTimersNeverFire()
+    {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 8, 2, 1000);
+        TimingWheel.Timer<String> kept      = wheel.schedule("kept", 1500);
+        TimingWheel.Timer<String> cancelled = wheel.schedule("cancelled", 1500);
+        wheel.schedule("rescheduled", 1020);
+
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+
+        List<String> fired = new ArrayList<>();
+        wheel.advance(1030, item ->
+        {
+            fired.add(item);
+            wheel.schedule("again", 1100);
+        });
+        wheel.advance(2000, fired::add);
+
+        assertEquals(Arrays.asList("rescheduled", "again", "kept"), fired);
+        assertFalse(wheel.cancel(kept));
+    }
+}
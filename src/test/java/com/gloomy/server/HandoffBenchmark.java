@@ -0,0 +1,161 @@
+package com.gloomy.server;
+
+import com.gloomy.utils.SpscRingBuffer;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how long a packet waits between the listener handing it off and a workflow shard picking it up. A
+ * producer thread hands off timestamped events at a steady rate, the way Server.listen does, and a consumer thread
+ * mirrors the shard loop of PacketWorkflowHandler, recording the delay of every event. Compares the blocking queues
+ * the handoff used to go through against the SpscRingBuffer under each WaitStrategy.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.gloomy.server.HandoffBenchmark
+ * Optional arguments are the events to send and the nanoseconds between them, 500000 and 2000 by default.
+ */
+public class HandoffBenchmark
+{
+    private static final int CAPACITY = 1024;
+
+    private static final int SPIN_ROUNDS = 100;
+
+    public static void main(String[] args) throws Exception
+    {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        long intervalNanos = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        for (boolean measure : new boolean[] { false, true })
+        {
+            int count = measure ? events : events / 5;
+            report(measure, "LinkedBlockingQueue", runQueue(new LinkedBlockingQueue<>(CAPACITY), count, intervalNanos));
+            report(measure, "ArrayBlockingQueue", runQueue(new ArrayBlockingQueue<>(CAPACITY), count, intervalNanos));
+            for (WaitStrategy strategy : WaitStrategy.values())
+                report(measure, "ring " + strategy, runRing(strategy, count, intervalNanos));
+        }
+    }
+
+    private static long[] runQueue(BlockingQueue<Event> queue, int count, long intervalNanos) throws InterruptedException
+    {
+        Event[] events = events();
+        long[] latencies = new long[count];
+
+        Thread consumer = new Thread(() -> {
+            try {
+                for (int i = 0; i < count; i++)
+                    latencies[i] = System.nanoTime() - queue.take().sentAt;
+            } catch (InterruptedException ignored) {}
+        });
+        consumer.start();
+
+        long next = System.nanoTime();
+        for (int i = 0; i < count; i++)
+        {
+            next = pace(next, intervalNanos);
+            Event event = events[i % events.length];
+            event.sentAt = System.nanoTime();
+            queue.put(event);
+        }
+
+        consumer.join();
+        return latencies;
+    }
+
+    private static long[] runRing(WaitStrategy strategy, int count, long intervalNanos) throws InterruptedException
+    {
+        Event[] events = events();
+        long[] latencies = new long[count];
+        SpscRingBuffer<Event> ring = new SpscRingBuffer<>(CAPACITY);
+        Waiter waiter = new Waiter();
+
+        Thread consumer = new Thread(() -> {
+            waiter.thread = Thread.currentThread();
+            int idleRounds = 0;
+            for (int i = 0; i < count; )
+            {
+                Event event = ring.poll();
+                if (event != null)
+                {
+                    latencies[i++] = System.nanoTime() - event.sentAt;
+                    idleRounds = 0;
+                    continue;
+                }
+
+                if (strategy == WaitStrategy.BUSY_SPIN || idleRounds++ < SPIN_ROUNDS)
+                    continue;
+
+                if (strategy == WaitStrategy.YIELDING)
+                    Thread.yield();
+                else
+                {
+                    waiter.parked = true;
+                    if (ring.isEmpty())
+                        LockSupport.park();
+                    waiter.parked = false;
+                }
+            }
+        });
+        consumer.start();
+
+        long next = System.nanoTime();
+        for (int i = 0; i < count; i++)
+        {
+            next = pace(next, intervalNanos);
+            Event event = events[i % events.length];
+            event.sentAt = System.nanoTime();
+            while (!ring.offer(event))
+                Thread.yield();
+            if (waiter.parked)
+                LockSupport.unpark(waiter.thread);
+        }
+
+        consumer.join();
+        return latencies;
+    }
+
+    /** Busy wait until the next send time so the offered rate is steady **/
+    private static long pace(long next, long intervalNanos)
+    {
+        while (System.nanoTime() < next) {}
+        return next + intervalNanos;
+    }
+
+    /** More events than any queue can hold, so an event is never reused while it is still queued **/
+    private static Event[] events()
+    {
+        Event[] events = new Event[CAPACITY * 2];
+        for (int i = 0; i < events.length; i++)
+            events[i] = new Event();
+        return events;
+    }
+
+    private static void report(boolean measure, String name, long[] latencies)
+    {
+        if (!measure)
+            return;
+
+        Arrays.sort(latencies);
+        System.out.printf("%-22s p50 %7.2fus  p99 %8.2fus  p99.9 %8.2fus  max %9.2fus%n", name,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies[latencies.length - 1] / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, double percentile)
+    {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)] / 1000.0;
+    }
+
+    private static final class Event
+    {
+        volatile long sentAt;
+    }
+
+    private static final class Waiter
+    {
+        volatile Thread thread;
+        volatile boolean parked;
+    }
+}
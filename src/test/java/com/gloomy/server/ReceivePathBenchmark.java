@@ -0,0 +1,176 @@
+package com.gloomy.server;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the receive throughput and per packet allocation of the DatagramSocket receive path against the pooled
+ * DatagramChannel receive path. Each run has a sender thread blast MATCH_REQUEST sized datagrams over loopback while
+ * a receiver and a consumer thread mirror Server.listen and PacketWorkflowHandler.handleWork.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.gloomy.server.ReceivePathBenchmark
+ */
+public class ReceivePathBenchmark
+{
+    private static final int BUFFER_SIZE   = 512;
+    private static final int POOL_SIZE     = 1024;
+    private static final long RUN_MILLIS   = 5000;
+    private static final byte[] PAYLOAD    = "{\"T:P\":3,\"name\":\"BenchmarkPlayer\"}".getBytes();
+
+    public static void main(String[] args) throws Exception
+    {
+        // Warm both paths up before measuring
+        runSocket(49001, 1000);
+        runChannel(49002, 1000);
+
+        runSocket(49003, RUN_MILLIS);
+        runChannel(49004, RUN_MILLIS);
+    }
+
+    private static void runSocket(int port, long millis) throws Exception
+    {
+        DatagramSocket socket = new DatagramSocket(port, InetAddress.getByName("127.0.0.1"));
+        BlockingQueue<DatagramPacket> queue = new LinkedBlockingQueue<>();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong processed = new AtomicLong();
+        AtomicLong receiverAllocated = new AtomicLong();
+
+        Thread receiver = new Thread(() -> {
+            long startBytes = allocatedBytes();
+            while (running.get())
+            {
+                byte[] data = new byte[BUFFER_SIZE];
+                DatagramPacket packet = new DatagramPacket(data, BUFFER_SIZE);
+                try {
+                    socket.receive(packet);
+                } catch (Exception e) {
+                    break;
+                }
+                queue.add(packet);
+            }
+            receiverAllocated.set(allocatedBytes() - startBytes);
+        });
+        Thread consumer = new Thread(() -> {
+            while (running.get() || !queue.isEmpty())
+            {
+                try {
+                    DatagramPacket packet = queue.poll(10, java.util.concurrent.TimeUnit.MILLISECONDS);
+                    if (packet != null && packet.getLength() > 0)
+                        processed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        measure("DatagramSocket", port, millis, receiver, consumer, running, processed, receiverAllocated, socket::close);
+    }
+
+    private static void runChannel(int port, long millis) throws Exception
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        ReceiveBufferPool pool = new ReceiveBufferPool(POOL_SIZE, BUFFER_SIZE);
+        BlockingQueue<ReceivedDatagram> queue = new ArrayBlockingQueue<>(POOL_SIZE);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong processed = new AtomicLong();
+        AtomicLong receiverAllocated = new AtomicLong();
+
+        Thread receiver = new Thread(() -> {
+            long startBytes = allocatedBytes();
+            while (running.get())
+            {
+                try {
+                    ReceivedDatagram datagram = pool.acquire();
+                    InetSocketAddress sender = (InetSocketAddress) channel.receive(datagram.prepareForReceive());
+                    datagram.completeReceive(sender);
+                    queue.put(datagram);
+                } catch (Exception e) {
+                    break;
+                }
+            }
+            receiverAllocated.set(allocatedBytes() - startBytes);
+        });
+        Thread consumer = new Thread(() -> {
+            while (running.get() || !queue.isEmpty())
+            {
+                try {
+                    ReceivedDatagram datagram = queue.poll(10, java.util.concurrent.TimeUnit.MILLISECONDS);
+                    if (datagram != null)
+                    {
+                        if (datagram.getData().remaining() > 0)
+                            processed.incrementAndGet();
+                        datagram.release();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+
+        measure("DatagramChannel", port, millis, receiver, consumer, running, processed, receiverAllocated, () -> {
+            try { channel.close(); } catch (Exception ignored) {}
+        });
+    }
+
+    private static void measure(String name, int port, long millis, Thread receiver, Thread consumer,
+                                AtomicBoolean running, AtomicLong processed, AtomicLong receiverAllocated,
+                                Runnable close) throws Exception
+    {
+        receiver.start();
+        consumer.start();
+
+        AtomicBoolean sending = new AtomicBoolean(true);
+        Thread sender = new Thread(() -> {
+            try (DatagramSocket out = new DatagramSocket()) {
+                DatagramPacket packet = new DatagramPacket(PAYLOAD, PAYLOAD.length, InetAddress.getByName("127.0.0.1"), port);
+                while (sending.get())
+                    out.send(packet);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+
+        long gcBefore = gcCount();
+        long start = System.nanoTime();
+        sender.start();
+        Thread.sleep(millis);
+        sending.set(false);
+        sender.join();
+        running.set(false);
+        close.run();
+        receiver.join();
+        consumer.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long count = Math.max(1, processed.get());
+        System.out.printf("%-16s %,12d packets  %,12.0f packets/s  %,8.1f receiver bytes/packet  %4d GCs%n",
+                name, processed.get(), processed.get() / seconds, receiverAllocated.get() / (double) count,
+                gcCount() - gcBefore);
+    }
+
+    private static long allocatedBytes()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return 0;
+    }
+
+    private static long gcCount()
+    {
+        long count = 0;
+        for (java.lang.management.GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += gc.getCollectionCount();
+        return count;
+    }
+}
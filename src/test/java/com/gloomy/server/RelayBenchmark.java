@@ -0,0 +1,197 @@
+package com.gloomy.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the Relay over loopback. Throughput has one client stream datagrams to another through the relay, keeping
+ * a window of datagrams in flight so a lost one can not stall the sender, and reports forwarded datagrams per second.
+ * Latency bounces a datagram between two clients through the relay and straight from one to the other, the
+ * difference in round trip being what the relay adds for two hops.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.gloomy.server.RelayBenchmark
+ * Optional arguments are the seconds to stream for, the payload size and the round trips to time, 3, 64 and 50000
+ * by default.
+ */
+public class RelayBenchmark
+{
+    private static final int PORT = 47340;
+
+    private static final int WINDOW = 256;
+
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int payload = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int roundTrips = args.length > 2 ? Integer.parseInt(args[2]) : 50000;
+
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        Relay relay = new Relay(PORT, 1, 1024, 60000);
+        relay.start(loopback);
+
+        try {
+            throughput(relay, loopback, 1, payload);
+            throughput(relay, loopback, seconds, payload);
+
+            long[] direct = roundTrips(null, loopback, roundTrips, payload);
+            long[] relayed = roundTrips(relay, loopback, roundTrips, payload);
+            report("direct ", direct);
+            report("relayed", relayed);
+            System.out.printf("relay adds %.1f us per hop at p50%n",
+                              (percentile(relayed, 0.5) - percentile(direct, 0.5)) / 2000.0);
+        } finally {
+            relay.stop();
+        }
+    }
+
+    private static void throughput(Relay relay, InetAddress loopback, int seconds, int payload) throws Exception
+    {
+        Relay.Group group = relay.open(0, 1);
+        InetSocketAddress relayAddress = new InetSocketAddress(loopback, group.getPort());
+
+        try (DatagramChannel sender = open(loopback); DatagramChannel receiver = open(loopback))
+        {
+            receiver.send(datagram(group.getTicket(1), Relay.BROADCAST, 0), relayAddress);
+            Thread.sleep(50);
+
+            Semaphore window = new Semaphore(WINDOW);
+            AtomicLong received = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+
+            // Interrupting a receive closes the channel, which ends the thread
+            Thread receiving = new Thread(() -> {
+                ByteBuffer in = ByteBuffer.allocateDirect(2048);
+                try {
+                    while (true)
+                    {
+                        in.clear();
+                        receiver.receive(in);
+                        received.incrementAndGet();
+                        window.release();
+                    }
+                } catch (IOException ignored) {}
+            });
+            receiving.start();
+
+            ByteBuffer out = datagram(group.getTicket(0), 1, payload);
+            long sent = 0;
+            long started = System.nanoTime();
+            while (System.nanoTime() < deadline)
+            {
+                // A datagram that never arrives gives its slot back after a while instead of shrinking the window
+                if (!window.tryAcquire(10, TimeUnit.MILLISECONDS))
+                    window.release(WINDOW - window.availablePermits());
+                out.rewind();
+                sender.send(out, relayAddress);
+                sent++;
+            }
+            long elapsed = System.nanoTime() - started;
+            Thread.sleep(50);
+            receiving.interrupt();
+            receiving.join();
+
+            System.out.printf("%ds throughput: %,d sent, %,d relayed, %,.0f datagrams/s, %.1f MB/s of payload%n",
+                              seconds, sent, received.get(), received.get() * 1e9 / elapsed,
+                              received.get() * (double) payload * 1e3 / elapsed);
+        } finally {
+            group.close();
+        }
+    }
+
+    private static long[] roundTrips(Relay relay, InetAddress loopback, int count, int payload) throws Exception
+    {
+        Relay.Group group = relay == null ? null : relay.open(0, 1);
+
+        try (DatagramChannel first = open(loopback); DatagramChannel second = open(loopback))
+        {
+            InetSocketAddress toSecond = relay == null ? (InetSocketAddress) second.getLocalAddress()
+                                                       : new InetSocketAddress(loopback, group.getPort());
+            InetSocketAddress toFirst  = relay == null ? (InetSocketAddress) first.getLocalAddress() : toSecond;
+            ByteBuffer ping = datagram(group == null ? 0 : group.getTicket(0), 1, payload);
+            ByteBuffer pong = datagram(group == null ? 0 : group.getTicket(1), 0, payload);
+            if (relay != null)
+            {
+                first.send(datagram(group.getTicket(0), Relay.BROADCAST, 0), toSecond);
+                second.send(datagram(group.getTicket(1), Relay.BROADCAST, 0), toSecond);
+                Thread.sleep(50);
+            }
+
+            second.socket().setSoTimeout(1000);
+            first.socket().setSoTimeout(1000);
+            Thread echo = new Thread(() -> {
+                byte[] in = new byte[2048];
+                DatagramPacket packet = new DatagramPacket(in, in.length);
+                try {
+                    for (int i = 0; i < count; i++)
+                    {
+                        second.socket().receive(packet);
+                        pong.rewind();
+                        second.send(pong, toFirst);
+                    }
+                } catch (IOException ignored) {}
+            });
+            echo.start();
+
+            long[] latencies = new long[count];
+            byte[] in = new byte[2048];
+            DatagramPacket packet = new DatagramPacket(in, in.length);
+            int measured = 0;
+            for (int i = 0; i < count; i++)
+            {
+                long sentAt = System.nanoTime();
+                ping.rewind();
+                first.send(ping, toSecond);
+                try {
+                    first.socket().receive(packet);
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+                latencies[measured++] = System.nanoTime() - sentAt;
+            }
+            echo.join();
+            return Arrays.copyOf(latencies, measured);
+        } finally {
+            if (group != null)
+                group.close();
+        }
+    }
+
+    private static DatagramChannel open(InetAddress loopback) throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(loopback, 0));
+        return channel;
+    }
+
+    private static ByteBuffer datagram(long ticket, int to, int payload)
+    {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(Relay.HEADER_SIZE + payload);
+        datagram.putLong(ticket).putShort((short) to);
+        while (datagram.hasRemaining())
+            datagram.put((byte) datagram.position());
+        datagram.flip();
+        return datagram;
+    }
+
+    private static void report(String name, long[] latencies)
+    {
+        Arrays.sort(latencies);
+        System.out.printf("%s round trip over %,d: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n", name,
+                          latencies.length, percentile(latencies, 0.5) / 1000.0, percentile(latencies, 0.99) / 1000.0,
+                          percentile(latencies, 0.999) / 1000.0, latencies[latencies.length - 1] / 1000.0);
+    }
+
+    private static long percentile(long[] sorted, double percentile)
+    {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * percentile))];
+    }
+}
@@ -0,0 +1,100 @@
+package com.gloomy.server;
+
+import com.gloomy.session.Client;
+import com.gloomy.session.Session;
+import com.gloomy.session.SessionPool;
+import org.pmw.tinylog.Configurator;
+import org.pmw.tinylog.Level;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lobby churn, creating a session, filling it with clients and starting its game as fast as one thread can,
+ * with sessions taken from a SessionPool and with every session created from scratch. Reports sessions created and
+ * shut down per second, and the bytes allocated per session by every thread of the server, the egress threads
+ * sending the lobby messages included.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.gloomy.server.SessionChurnBenchmark
+ * Optional arguments are the seconds to measure for and the clients per lobby, 3 and 6 by default.
+ */
+public class SessionChurnBenchmark
+{
+    private static final int PORT = 47350;
+
+    private static final int CLIENT_PORTS = 20000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int lobbySize = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+
+        PrintStream out = System.out;
+        Server pooled = start(PORT, 64, lobbySize);
+        Server unpooled = start(PORT + 1, 0, lobbySize);
+        System.setOut(new PrintStream(new OutputStream() { public void write(int b) {} }));
+        Configurator.currentConfig().level(Level.OFF).activate();
+
+        try {
+            churn(unpooled, 1, lobbySize, null);
+            churn(pooled, 1, lobbySize, null);
+            churn(unpooled, seconds, lobbySize, out);
+            churn(pooled, seconds, lobbySize, out);
+        } finally {
+            System.setOut(out);
+        }
+
+        SessionPool pool = pooled.getSessionPool();
+        out.printf("pool created %d sessions and reused them for %d lobbies%n", pool.getCreatedCount(), pool.getReusedCount());
+        System.exit(0);
+    }
+
+    private static Server start(int port, int poolSize, int lobbySize)
+    {
+        Server server = Server.Create(port, new ServerConfig().setSessionPoolSize(poolSize).setLobbySize(lobbySize, 2));
+        server.start();
+        return server;
+    }
+
+    private static void churn(Server server, int seconds, int lobbySize, PrintStream report) throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long allocatedBefore = allocated(threads);
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+        long sessions = 0;
+        int nextPort = 0;
+
+        while (System.nanoTime() < deadline)
+        {
+            Session session = server.createNewSession(new Client("host", loopback, 10000 + nextPort));
+            for (int i = 1; i < lobbySize; i++)
+                session.addClient(new Client("client" + i, loopback, 10000 + nextPort + i));
+            session.startGame();
+
+            nextPort = (nextPort + lobbySize) % CLIENT_PORTS;
+            sessions++;
+        }
+
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long allocated = allocated(threads) - allocatedBefore;
+        if (report != null)
+            report.printf("%-8s %,10.0f sessions/s  %,8d bytes allocated per session%n",
+                          server.getSessionPool() == null ? "unpooled" : "pooled", sessions / elapsed, allocated / sessions);
+    }
+
+    /** Bytes allocated so far by every live thread **/
+    private static long allocated(com.sun.management.ThreadMXBean threads)
+    {
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+            if (bytes > 0)
+                total += bytes;
+        return total;
+    }
+}
@@ -0,0 +1,103 @@
+package com.gloomy.server;
+
+import com.gloomy.session.Client;
+import com.gloomy.session.Session;
+import org.pmw.tinylog.Configurator;
+import org.pmw.tinylog.Level;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how packet processing scales with the amount of workflow shards. A server is started with 1, 2, 4 and so
+ * on shards up to the amount of cores, and one thread standing in for the listener hands it binary HEARTBEAT packets
+ * from the hosts of 64 sessions, round robin, through PacketWorkflowHandler.addWork. Reports packets handled per
+ * second and the speedup over one shard. With one listener feeding every shard, scaling stops once the shards
+ * together handle packets faster than the listener can hand them off.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.gloomy.server.ShardScalingBenchmark
+ * Optional arguments are the seconds to measure each shard count for and the most shards to try, 3 and the amount
+ * of cores by default.
+ */
+public class ShardScalingBenchmark
+{
+    private static final int PORT = 47370;
+
+    private static final int SESSIONS = 64;
+
+    public static void main(String[] args) throws Exception
+    {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int maxShards = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() { public void write(int b) {} }));
+        Configurator.currentConfig().level(Level.OFF).activate();
+
+        try {
+            run(1, 1, null, 0);   // Warm up
+            double single = 0;
+            for (int shards = 1; shards <= Math.max(1, maxShards); shards *= 2)
+            {
+                double rate = run(shards, seconds, out, single);
+                if (shards == 1)
+                    single = rate;
+            }
+        } finally {
+            System.setOut(out);
+        }
+        System.exit(0);
+    }
+
+    private static double run(int shards, int seconds, PrintStream report, double single) throws Exception
+    {
+        Server server = Server.Create(PORT + shards, new ServerConfig().setReceiveMode(ReceiveMode.CHANNEL)
+                .setWorkflowShards(shards).setLobbySize(2, 2));
+        server.start();
+        Configurator.currentConfig().level(Level.OFF).activate();
+
+        try {
+            InetAddress loopback = InetAddress.getByName("127.0.0.1");
+            List<byte[]> heartbeats = new ArrayList<>();
+            List<Integer> ports = new ArrayList<>();
+            for (int i = 0; i < SESSIONS; i++)
+            {
+                int port = 20000 + i;
+                Session session = server.createNewSession(new Client("host" + i, loopback, port));
+                heartbeats.add(ByteBuffer.allocate(7).put((byte) 2).put(PacketType.HEARTBEAT)
+                        .putInt(session.getSessionId()).put((byte) 0).array());
+                ports.add(port);
+            }
+
+            PacketWorkflowHandler handler = server.getPacketHandler();
+            long before = processed(handler);
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.SECONDS.toNanos(seconds);
+            for (int sent = 0; (sent & 1023) != 0 || System.nanoTime() < deadline; sent++)
+            {
+                int i = sent % SESSIONS;
+                handler.addWork(ReceivedDatagram.Wrap(ByteBuffer.wrap(heartbeats.get(i)), loopback, ports.get(i)));
+            }
+
+            double rate = (processed(handler) - before) / ((System.nanoTime() - start) / 1e9);
+            if (report != null)
+                report.printf("%2d shards %,12.0f packets/s  %5.2fx%n", shards, rate, single > 0 ? rate / single : 1.0);
+            return rate;
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static long processed(PacketWorkflowHandler handler)
+    {
+        long total = 0;
+        for (int shard = 0; shard < handler.getShardCount(); shard++)
+            total += handler.getProcessedPackets(shard);
+        return total;
+    }
+}
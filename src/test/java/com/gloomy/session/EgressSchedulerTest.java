@@ -0,0 +1,150 @@
+package com.gloomy.session;
+
+import com.gloomy.protocol.PacketFragmenter;
+import com.gloomy.server.PacketType;
+import com.gloomy.utils.GloomyNetMessageBuilder;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Kept in com.gloomy.session, like ReliableChannelTest, as it gates a sender by overriding the package private
+ * SessionCommunicator.sendPendingMessages and counts turns in EgressScheduler.MESSAGES_PER_TURN
+ */
+class EgressSchedulerTest
+{
+    private static final Pattern NUMBER = Pattern.compile("\"n\":(\\d+)");
+
+    @Test
+    void testMessagesReachEachClientInOrder() throws Exception
+    {
+        EgressScheduler scheduler = new EgressScheduler(2, false);
+        scheduler.start();
+
+        try (DatagramSocket sender = socket(); DatagramSocket first = socket(); DatagramSocket second = socket())
+        {
+            SessionCommunicator communicator = communicator(scheduler, sender);
+            Client a = client("a", first);
+            Client b = client("b", second);
+
+            for (int i = 0; i < 200; i++)
+                communicator.addMessage(message(i), i % 2 == 0 ? a : b);
+
+            List<Integer> toA = receive(first, 100);
+            List<Integer> toB = receive(second, 100);
+            for (int i = 0; i < 100; i++)
+            {
+                assertEquals(i * 2, (int) toA.get(i));
+                assertEquals(i * 2 + 1, (int) toB.get(i));
+            }
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void testBusySessionDoesNotStarveOthers() throws Exception
+    {
+        EgressScheduler scheduler = new EgressScheduler(1, false);
+        scheduler.start();
+
+        try (DatagramSocket sender = socket(); DatagramSocket receiver = socket())
+        {
+            CountDownLatch gate = new CountDownLatch(1);
+            SessionCommunicator gated = new SessionCommunicator(null, sender, scheduler, new PacketFragmenter(508))
+            {
+                @Override
+                void sendPendingMessages(int maxMessages)
+                {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    super.sendPendingMessages(maxMessages);
+                }
+            };
+            SessionCommunicator busy  = communicator(scheduler, sender);
+            SessionCommunicator quiet = communicator(scheduler, sender);
+            Client client = client("shared", receiver);
+
+            // Hold the one sender thread until both sessions have queued everything
+            gated.addMessage(message(-1), client);
+            int queued = 50 * EgressScheduler.MESSAGES_PER_TURN;
+            for (int i = 0; i < queued; i++)
+                busy.addMessage(message(i), client);
+            quiet.addMessage(message(queued), client);
+            gate.countDown();
+
+            List<Integer> received = receive(receiver, queued + 1);
+            int quietAt = received.indexOf(queued);
+            assertEquals(EgressScheduler.MESSAGES_PER_TURN, quietAt);   // Right after the busy sessions first turn
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    void testShutdownStopsEverySenderThread() throws Exception
+    {
+        EgressScheduler scheduler = new EgressScheduler(4, false, 0, true);
+        scheduler.start();
+
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(2000));
+
+        // Shutting down twice only queues more wake ups, nothing is left waiting on them
+        scheduler.shutdown();
+        assertTrue(scheduler.awaitTermination(2000));
+    }
+
+    private static DatagramSocket socket() throws Exception
+    {
+        DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        socket.setReceiveBufferSize(1 << 20);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static SessionCommunicator communicator(EgressScheduler scheduler, DatagramSocket sender)
+    {
+        return new SessionCommunicator(null, sender, scheduler, new PacketFragmenter(508));
+    }
+
+    private static Client client(String name, DatagramSocket socket)
+    {
+        return new Client(name, socket.getLocalAddress(), socket.getLocalPort());
+    }
+
+    private static SessionMessage message(int number)
+    {
+        return new SessionMessage(GloomyNetMessageBuilder.Create(PacketType.GAME_READY).addData("n", number));
+    }
+
+    private static List<Integer> receive(DatagramSocket socket, int amount) throws Exception
+    {
+        List<Integer> numbers = new ArrayList<>();
+        byte[] buffer = new byte[1024];
+        while (numbers.size() < amount)
+        {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            socket.receive(packet);
+            Matcher matcher = NUMBER.matcher(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8));
+            if (matcher.find())
+                numbers.add(Integer.parseInt(matcher.group(1)));
+        }
+        return numbers;
+    }
+}
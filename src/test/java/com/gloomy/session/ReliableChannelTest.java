@@ -0,0 +1,79 @@
+package com.gloomy.session;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+class ReliableChannelTest
+{
+    private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    void testOnlyUnacknowledgedDatagramsAreRetransmitted()
+    {
+        ReliableChannel channel = new ReliableChannel();
+        long now = 0;
+
+        byte[][] frames = new byte[4][];
+        for (int i = 0; i < frames.length; i++)
+            frames[i] = channel.frame(new byte[] { 2, 0, (byte) i }, now);
+
+        ByteBuffer header = ByteBuffer.wrap(frames[3]);
+        assertEquals(ReliableChannel.RELIABLE_MARKER, header.get());
+        assertEquals(3, header.getShort());
+
+        // Client has seen 3 and 1, sequence 0 and 2 were lost
+        channel.acknowledge(3, 0b10, now + 20 * MILLIS);
+
+        assertNull(channel.collectRetransmits(now + 40 * MILLIS));
+
+        long due = channel.nextRetransmitAt();
+        List<byte[]> retransmits = channel.collectRetransmits(due);
+        assertEquals(2, retransmits.size());
+        assertTrue(retransmits.get(0) == frames[0]);
+        assertTrue(retransmits.get(1) == frames[2]);
+
+        // Backed off, so nothing is due again straight away
+        assertNull(channel.collectRetransmits(due + 1));
+
+        channel.acknowledge(3, 0b111, due + 30 * MILLIS);
+        assertEquals(Long.MAX_VALUE, channel.nextRetransmitAt());
+    }
+
+    @Test
+    void testTimeoutFollowsRoundTripTime()
+    {
+        ReliableChannel channel = new ReliableChannel();
+        long now = 0;
+
+        for (int i = 0; i < 20; i++)
+        {
+            channel.frame(new byte[] { 2, 0 }, now);
+            now += 60 * MILLIS;
+            channel.acknowledge(i, 0, now);
+        }
+
+        long timeout = channel.getRetransmitTimeoutNanos();
+        assertTrue(timeout >= 60 * MILLIS && timeout < 120 * MILLIS);
+    }
+
+    @Test
+    void testDepartedClientIsStillRetransmittedTo()
+    {
+        ReliableChannel channel = new ReliableChannel();
+        byte[] frame = channel.frame(new byte[] { 2, 5 }, 0);
+
+        channel.markDeparted();
+        assertTrue(channel.isDeparted());
+
+        List<byte[]> retransmits = channel.collectRetransmits(channel.nextRetransmitAt());
+        assertEquals(1, retransmits.size());
+        assertTrue(retransmits.get(0) == frame);
+    }
+}
@@ -0,0 +1,101 @@
+package com.gloomy.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares IdAllocator against the preloaded ConcurrentLinkedQueue of boxed ids that sessions and the server used
+ * before it. Every thread repeatedly takes a handful of ids and gives them back, which is the shape of lobbies
+ * opening and closing, and the benchmark reports allocate and free pairs per second at each thread count.
+ *
+ * Run it with:
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.gloomy.utils.IdAllocatorBenchmark
+ */
+public class IdAllocatorBenchmark
+{
+    private static final int IDS = 65536;
+
+    private static final int HELD = 8;
+
+    private static final int OPERATIONS = 2000000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        for (int warmup = 0; warmup < 2; warmup++)
+        {
+            run("queue", 2, new QueueIds(), false);
+            run("bitmap", 2, new BitmapIds(), false);
+        }
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2)
+        {
+            run("queue", threads, new QueueIds(), true);
+            run("bitmap", threads, new BitmapIds(), true);
+        }
+    }
+
+    private static void run(String name, int threads, Ids ids, boolean print) throws InterruptedException
+    {
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done  = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++)
+        {
+            new Thread(() -> {
+                int[] held = new int[HELD];
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int i = 0; i < OPERATIONS / threads; i += HELD)
+                {
+                    for (int h = 0; h < HELD; h++)
+                        held[h] = ids.allocate();
+                    for (int h = 0; h < HELD; h++)
+                        ids.free(held[h]);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        long nanos = System.nanoTime() - startNanos;
+
+        if (print)
+            System.out.printf("%-6s threads=%-3d %8.2f M allocate+free/s%n", name, threads, OPERATIONS * 1000.0 / nanos);
+    }
+
+    private interface Ids
+    {
+        int allocate();
+        void free(int id);
+    }
+
+    private static final class QueueIds implements Ids
+    {
+        private final ConcurrentLinkedQueue<Integer> ids = new ConcurrentLinkedQueue<>();
+
+        QueueIds()
+        {
+            for (int i = 0; i < IDS; i++)
+                ids.add(i);
+        }
+
+        public int allocate()     { return ids.poll(); }
+        public void free(int id)  { ids.add(id); }
+    }
+
+    private static final class BitmapIds implements Ids
+    {
+        private final IdAllocator ids = new IdAllocator(IDS);
+
+        public int allocate()     { return ids.allocate(); }
+        public void free(int id)  { ids.free(id); }
+    }
+}
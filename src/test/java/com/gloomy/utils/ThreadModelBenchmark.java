@@ -0,0 +1,124 @@
+package com.gloomy.utils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Compares memory and wake up latency of platform threads against virtual threads when every session has its own
+ * blocked thread, which is the shape of the server before sessions shared an egress scheduler and what a virtual
+ * thread server can afford to go back to. Each simulated session parks on its own queue, the benchmark hands every
+ * session a timestamped message per round and records how long each one took to wake up and handle it.
+ *
+ * Virtual threads need a Java 21 runtime. Run each mode in its own JVM so their memory does not mix:
+ *   mvn -P java21 test-compile exec:java -Dexec.classpathScope=test
+ *       -Dexec.mainClass=com.gloomy.utils.ThreadModelBenchmark -Dexec.args="virtual 20000"
+ */
+public class ThreadModelBenchmark
+{
+    private static final int ROUNDS = 20;
+
+    private static final long STOP = -1;
+
+    public static void main(String[] args) throws Exception
+    {
+        String mode = args.length > 0 ? args[0] : "both";
+        int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        if (!mode.equals("virtual"))
+            run(false, sessions);
+
+        if (!mode.equals("platform"))
+        {
+            if (ServerThreads.virtualThreadsSupported())
+                run(true, sessions);
+            else
+                System.out.println("virtual  skipped, this JVM does not support virtual threads");
+        }
+    }
+
+    private static void run(boolean virtual, int sessions) throws Exception
+    {
+        long heapBefore = usedHeap();
+        long rssBefore  = residentSetSize();
+
+        List<ArrayBlockingQueue<Long>> mailboxes = new ArrayList<>(sessions);
+        long[] latencies = new long[sessions * ROUNDS];
+        CountDownLatch[] rounds = new CountDownLatch[ROUNDS + 1];
+        for (int r = 0; r < rounds.length; r++)
+            rounds[r] = new CountDownLatch(sessions);
+
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < sessions; i++)
+        {
+            final int session = i;
+            mailboxes.add(new ArrayBlockingQueue<>(1));
+            ServerThreads.start("session-" + i, () -> {
+                int round = 0;
+                try {
+                    long sentAt;
+                    while ((sentAt = mailboxes.get(session).take()) != STOP)
+                    {
+                        latencies[round * sessions + session] = System.nanoTime() - sentAt;
+                        rounds[round++].countDown();
+                    }
+                } catch (InterruptedException ignored) {}
+                rounds[ROUNDS].countDown();
+            }, virtual);
+        }
+        long startMillis = (System.nanoTime() - startNanos) / 1000000;
+
+        Thread.sleep(500); // Let every thread reach its take()
+        long heapAfter = usedHeap();
+        long rssAfter  = residentSetSize();
+
+        long roundStart = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++)
+        {
+            for (ArrayBlockingQueue<Long> mailbox : mailboxes)
+                mailbox.put(System.nanoTime());
+            rounds[r].await();
+        }
+        double messagesPerSecond = sessions * (double) ROUNDS / ((System.nanoTime() - roundStart) / 1e9);
+
+        for (ArrayBlockingQueue<Long> mailbox : mailboxes)
+            mailbox.put(STOP);
+        rounds[ROUNDS].await();
+
+        Arrays.sort(latencies);
+        System.out.printf("%-8s %,7d sessions  start %,6d ms  heap +%,8d KB  rss +%,9d KB  " +
+                        "wake p50 %,7d us  p99 %,8d us  p99.9 %,8d us  %,10.0f msg/s%n",
+                virtual ? "virtual" : "platform", sessions, startMillis,
+                (heapAfter - heapBefore) / 1024, (rssAfter - rssBefore) / 1024,
+                percentile(latencies, 0.50) / 1000, percentile(latencies, 0.99) / 1000,
+                percentile(latencies, 0.999) / 1000, messagesPerSecond);
+    }
+
+    private static long percentile(long[] sorted, double percentile)
+    {
+        return sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile)];
+    }
+
+    private static long usedHeap()
+    {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /** @return Resident memory of this process in bytes, or 0 where /proc is not available **/
+    private static long residentSetSize()
+    {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+        } catch (Exception ignored) {}
+        return 0;
+    }
+}